@@ -0,0 +1,160 @@
+package com.stockfishweb.core;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.stockfishweb.core.engine.enums.EvalSource;
+import com.stockfishweb.core.engine.enums.Query;
+import com.stockfishweb.model.BestMoveEval;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded in-memory cache of analysis results, keyed by normalized position and skill level.
+ * <p>
+ * Every entry remembers the depth it was searched to, and a result searched deeper satisfies
+ * any shallower request for the same position: a depth 15 entry answers depth 10 requests,
+ * while a depth 10 entry is a miss for a depth 15 request and gets replaced by its result.
+ * Entries are evicted by size and by time since they were written.
+ * <p>
+ * Results of speculative analyses, of positions nobody asked for yet, are counted apart when they are hit.
+ */
+@Component
+public class AnalysisCache {
+
+    private final Cache<String, Entry> cache;
+    private final boolean enabled;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder tooShallow = new LongAdder();
+    private final LongAdder speculativeHits = new LongAdder();
+
+    /**
+     * @param maxSize   maximum number of cached positions, zero to disable the cache
+     * @param ttlMillis time after which an entry expires
+     */
+    public AnalysisCache(@Value("${analysis.cache.max.size:10000}") long maxSize,
+                         @Value("${analysis.cache.ttl.ms:3600000}") long ttlMillis) {
+        this.enabled = maxSize > 0;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(Math.max(0, maxSize))
+                .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * @param query best move query
+     * @return cached result searched at least as deep as the query asks for, or null
+     */
+    public BestMoveEval get(Query query) {
+        if (!enabled) {
+            return null;
+        }
+        Entry entry = cache.getIfPresent(key(query));
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        if (entry.depth < query.getSearchDepth()) {
+            tooShallow.increment();
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        if (entry.speculative) {
+            speculativeHits.increment();
+        }
+        return entry.bestMoveEval;
+    }
+
+    /**
+     * @return true if the position is cached deep enough for the query, without counting as a hit or a miss
+     */
+    public boolean contains(Query query) {
+        Entry entry = enabled ? cache.getIfPresent(key(query)) : null;
+        return entry != null && entry.depth >= query.getSearchDepth();
+    }
+
+    /**
+     * Caches a result, unless the position is already cached at a greater depth.
+     *
+     * @param query        query the result was computed for
+     * @param bestMoveEval result, not to be modified once cached
+     */
+    public void put(Query query, BestMoveEval bestMoveEval) {
+        put(query, bestMoveEval, false);
+    }
+
+    /**
+     * Caches the result of a speculative analysis, see {@link #put(Query, BestMoveEval)}.
+     */
+    public void putSpeculative(Query query, BestMoveEval bestMoveEval) {
+        put(query, bestMoveEval, true);
+    }
+
+    private void put(Query query, BestMoveEval bestMoveEval, boolean speculative) {
+        if (!enabled) {
+            return;
+        }
+        Entry entry = new Entry(bestMoveEval, depth(query, bestMoveEval), speculative);
+        cache.asMap().merge(key(query), entry, (cached, computed) -> computed.depth >= cached.depth ? computed : cached);
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("size", cache.estimatedSize());
+        stats.put("hits", hits.sum());
+        stats.put("misses", misses.sum());
+        stats.put("tooShallow", tooShallow.sum());
+        stats.put("speculativeHits", speculativeHits.sum());
+        stats.put("evictions", cache.stats().evictionCount());
+        return stats;
+    }
+
+    /**
+     * @return depth the result was searched to, which is lower than the query asked for
+     * when the search ran out of its time budget
+     */
+    static int depth(Query query, BestMoveEval bestMoveEval) {
+        return bestMoveEval.getDepth() > 0 ? bestMoveEval.getDepth() : query.getSearchDepth();
+    }
+
+    /**
+     * Positions differing only in whitespace or in the fullmove number are the same to the engine.
+     * The halfmove clock is kept, since it drives the fifty-move rule. MultiPV results are kept apart
+     * from single line ones, which lack the other lines, and evals taken from the search from static ones.
+     */
+    static String key(Query query) {
+        String[] fields = query.getFen().trim().split("\\s+");
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < Math.min(fields.length, 5); i++) {
+            key.append(fields[i]).append(' ');
+        }
+        key.append('#').append(query.getDifficulty());
+        if (query.getMultiPv() > 1) {
+            key.append('#').append(query.getMultiPv());
+        }
+        if (query.getEvalSource() == EvalSource.SEARCH) {
+            key.append("#search");
+        }
+        return key.toString();
+    }
+
+    private static class Entry {
+        private final BestMoveEval bestMoveEval;
+        private final int depth;
+        private final boolean speculative;
+
+        private Entry(BestMoveEval bestMoveEval, int depth, boolean speculative) {
+            this.bestMoveEval = bestMoveEval;
+            this.depth = depth;
+            this.speculative = speculative;
+        }
+    }
+}
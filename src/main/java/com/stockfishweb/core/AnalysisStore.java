@@ -0,0 +1,550 @@
+package com.stockfishweb.core;
+
+import com.stockfishweb.core.engine.enums.Query;
+import com.stockfishweb.model.BestMoveEval;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Persistent store of analysis results, so that a restart does not throw away searches already done.
+ * <p>
+ * The store is a single memory-mapped file holding an open-addressing hash table of fixed-size records.
+ * A lookup hashes the position, probes the mapped records in place and only builds strings for the record
+ * it returns; nothing is deserialized at start-up. Each record holds:
+ * <pre>
+ *   0  long   position hash, 0 for an empty slot, written last so a torn record is never visible
+ *   8  int    last use, a logical clock driving compaction
+ *  12  byte   depth
+ *  13  byte   mate in moves, {@link Byte#MIN_VALUE} for none
+ *  14  byte   number of moves in the continuation
+ *  15  byte   unused
+ *  16  int    eval in centipawns, white side
+ *  20  short  best move
+ *  22  short  continuation moves, {@value #MAX_PV} at most
+ * </pre>
+ * Moves are packed as from square, to square and promotion piece, 0 standing for {@code none}.
+ * Results that would not read back exactly the same, such as an eval given as {@code none}, are not stored,
+ * and neither are MultiPV results, a record holding a single line.
+ * <p>
+ * The table never holds more than {@code maxEntries} records. When it is three quarters full, it is compacted
+ * in place on a background thread: the most recently used half is kept and everything else is dropped. Records
+ * to keep are picked under the read lock, so lookups go on meanwhile, only the rewrite of the table holds the
+ * write lock. Results coming in while a compaction runs, or once the table is seven eighths full, are not stored.
+ * A store left mid-compaction by a crash, or created with another size, is reset when opened.
+ * <p>
+ * Lookups mark the record they return as used with a compare-and-set on the mapped file, so concurrent
+ * readers never need the write lock.
+ */
+@Component
+public class AnalysisStore {
+
+    private static final Log log = LogFactory.getLog(AnalysisStore.class);
+
+    private static final int MAGIC = 0x53465753;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_SIZE = 128;
+    static final int MAX_PV = (RECORD_SIZE - 22) / 2;
+
+    private static final int H_MAGIC = 0, H_VERSION = 4, H_CAPACITY = 8, H_COUNT = 12, H_CLOCK = 16, H_STATE = 20;
+    private static final int STATE_CLEAN = 0, STATE_COMPACTING = 1;
+
+    private static final int R_HASH = 0, R_USED = 8, R_DEPTH = 12, R_MATE = 13, R_PV_LENGTH = 14,
+            R_EVAL = 16, R_BEST_MOVE = 20, R_PV = 22;
+
+    private static final String PROMOTIONS = " nbrq";
+
+    /**
+     * Atomic access to the ints of the mapped file, in its big-endian order. Records are aligned on their size,
+     * so their ints are aligned too.
+     */
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private final Path path;
+    private final int capacity;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicInteger clock = new AtomicInteger();
+    private FileChannel channel;
+    // nulled by close(), so lookups and stores racing shutdown check it again under the lock
+    private volatile MappedByteBuffer buffer;
+    private int count;
+
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "analysis-store-compaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile CompletableFuture<Void> compaction = CompletableFuture.completedFuture(null);
+    private volatile boolean compacting;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder compactions = new LongAdder();
+
+    /**
+     * @param path       store file, empty to disable the store
+     * @param maxEntries maximum number of stored positions, rounded up to a power of two
+     */
+    public AnalysisStore(@Value("${analysis.store.path:}") String path,
+                         @Value("${analysis.store.max.entries:262144}") int maxEntries) {
+        this.capacity = Integer.highestOneBit(Math.max(16, maxEntries - 1) << 1);
+        this.path = path == null || path.isBlank() ? null : Paths.get(path);
+        if (this.path != null) {
+            open();
+        }
+    }
+
+    private void open() {
+        try {
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            boolean reusable = channel.size() == size;
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (reusable && buffer.getInt(H_MAGIC) == MAGIC && buffer.getInt(H_VERSION) == VERSION
+                    && buffer.getInt(H_CAPACITY) == capacity && buffer.getInt(H_STATE) == STATE_CLEAN) {
+                count = buffer.getInt(H_COUNT);
+                clock.set(buffer.getInt(H_CLOCK));
+                log.info("Opened analysis store " + path + " with " + count + " positions");
+            } else {
+                clear();
+                log.info("Created analysis store " + path + " for " + capacity + " positions, " + size + " bytes");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to open analysis store " + path, e);
+        }
+    }
+
+    private void clear() {
+        for (int i = 0; i < capacity; i++) {
+            buffer.putLong(offset(i) + R_HASH, 0);
+        }
+        count = 0;
+        clock.set(0);
+        buffer.putInt(H_MAGIC, MAGIC);
+        buffer.putInt(H_VERSION, VERSION);
+        buffer.putInt(H_CAPACITY, capacity);
+        writeHeader(STATE_CLEAN);
+    }
+
+    private void writeHeader(int state) {
+        buffer.putInt(H_COUNT, count);
+        buffer.putInt(H_CLOCK, clock.get());
+        buffer.putInt(H_STATE, state);
+    }
+
+    public boolean isEnabled() {
+        return buffer != null;
+    }
+
+    /**
+     * @param query best move query
+     * @return stored result searched at least as deep as the query asks for, or null
+     */
+    public BestMoveEval get(Query query) {
+        if (!isEnabled() || query.getMultiPv() > 1) {
+            return null;
+        }
+        long hash = hash(AnalysisCache.key(query));
+        lock.readLock().lock();
+        try {
+            if (!isEnabled()) {
+                return null;
+            }
+            int slot = find(hash);
+            int offset = offset(slot);
+            if (buffer.getLong(offset + R_HASH) != hash || buffer.get(offset + R_DEPTH) < query.getSearchDepth()) {
+                misses.increment();
+                return null;
+            }
+            markUsed(offset);
+            hits.increment();
+            return read(offset);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Moves the last use of a record forward, racing other readers of the same record: the latest use wins.
+     */
+    private void markUsed(int offset) {
+        int now = clock.incrementAndGet();
+        int used;
+        do {
+            used = (int) INTS.getVolatile(buffer, offset + R_USED);
+            if (used >= now) {
+                return;
+            }
+        } while (!INTS.compareAndSet(buffer, offset + R_USED, used, now));
+    }
+
+    /**
+     * Stores a result, unless the position is already stored at a greater depth.
+     *
+     * @param query        query the result was computed for
+     * @param bestMoveEval result
+     * @return true if the result was written, false if it was not, also while the table is being compacted
+     */
+    public boolean put(Query query, BestMoveEval bestMoveEval) {
+        if (!isEnabled() || query.getMultiPv() > 1) {
+            return false;
+        }
+        short[] pv = encodeContinuation(bestMoveEval.getContinuation());
+        Integer eval = encodeEval(bestMoveEval.getEval());
+        Byte mate = encodeMate(bestMoveEval.getMate());
+        short bestMove = encodeMove(bestMoveEval.getBestMove());
+        if (pv == null || eval == null || mate == null || bestMove < 0) {
+            rejected.increment();
+            return false;
+        }
+
+        long hash = hash(AnalysisCache.key(query));
+        int depth = AnalysisCache.depth(query, bestMoveEval);
+        lock.writeLock().lock();
+        try {
+            if (!isEnabled()) {
+                return false;
+            }
+            int slot = find(hash);
+            int offset = offset(slot);
+            long current = buffer.getLong(offset + R_HASH);
+            if (current == hash && buffer.get(offset + R_DEPTH) > depth) {
+                return false;
+            }
+            if (compacting) {
+                rejected.increment();
+                return false;
+            }
+            if (current == 0) {
+                if (count + 1 > capacity / 8 * 7) {
+                    // the compaction is late, keep the probes short
+                    rejected.increment();
+                    return false;
+                }
+                if (count + 1 > capacity / 4 * 3) {
+                    compactInBackground();
+                }
+                count++;
+            }
+            buffer.putLong(offset + R_HASH, 0);
+            buffer.putInt(offset + R_USED, clock.incrementAndGet());
+            buffer.put(offset + R_DEPTH, (byte) depth);
+            buffer.put(offset + R_MATE, mate);
+            buffer.put(offset + R_PV_LENGTH, (byte) pv.length);
+            buffer.putInt(offset + R_EVAL, eval);
+            buffer.putShort(offset + R_BEST_MOVE, bestMove);
+            for (int i = 0; i < pv.length; i++) {
+                buffer.putShort(offset + R_PV + 2 * i, pv[i]);
+            }
+            buffer.putLong(offset + R_HASH, hash);
+            writeHeader(STATE_CLEAN);
+            writes.increment();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Starts a compaction on the background thread, unless one is already running.
+     * Called under the write lock.
+     */
+    private void compactInBackground() {
+        if (compacting) {
+            return;
+        }
+        compacting = true;
+        compaction = CompletableFuture.runAsync(this::compact, compactor);
+    }
+
+    /**
+     * @return future completing once the compaction running, if any, is over
+     */
+    CompletableFuture<Void> getCompaction() {
+        return compaction;
+    }
+
+    /**
+     * Keeps the most recently used half of the table and drops the rest, rehashing the kept records in place.
+     * No result is stored meanwhile.
+     */
+    public synchronized void compact() {
+        byte[] kept;
+        int k = 0;
+        lock.writeLock().lock();
+        try {
+            if (!isEnabled()) {
+                return;
+            }
+            // no put is in flight, and none is going to change the table until the rewrite is over
+            compacting = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        lock.readLock().lock();
+        try {
+            if (!isEnabled()) {
+                compacting = false;
+                return;
+            }
+            int[] used = new int[count];
+            int n = 0;
+            for (int i = 0; i < capacity && n < used.length; i++) {
+                if (buffer.getLong(offset(i) + R_HASH) != 0) {
+                    used[n++] = (int) INTS.getVolatile(buffer, offset(i) + R_USED);
+                }
+            }
+            int keep = Math.min(n, capacity / 2);
+            int[] sorted = Arrays.copyOf(used, n);
+            Arrays.sort(sorted);
+            int threshold = keep == 0 ? Integer.MAX_VALUE : sorted[n - keep];
+
+            kept = new byte[keep * RECORD_SIZE];
+            for (int i = 0; i < capacity && k < keep; i++) {
+                int offset = offset(i);
+                if (buffer.getLong(offset + R_HASH) != 0
+                        && (int) INTS.getVolatile(buffer, offset + R_USED) >= threshold) {
+                    buffer.get(offset, kept, k * RECORD_SIZE, RECORD_SIZE);
+                    k++;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (!isEnabled()) {
+                return;
+            }
+            writeHeader(STATE_COMPACTING);
+            for (int i = 0; i < capacity; i++) {
+                buffer.putLong(offset(i) + R_HASH, 0);
+            }
+            for (int i = 0; i < k; i++) {
+                long hash = readLong(kept, i * RECORD_SIZE);
+                buffer.put(offset(find(hash)), kept, i * RECORD_SIZE, RECORD_SIZE);
+            }
+            log.info("Compacted analysis store " + path + " from " + count + " to " + k + " positions");
+            count = k;
+            writeHeader(STATE_CLEAN);
+            compactions.increment();
+        } finally {
+            compacting = false;
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Linear probing from the hash slot.
+     *
+     * @return slot holding the hash, or the empty slot where it would go
+     */
+    private int find(long hash) {
+        int mask = capacity - 1;
+        int slot = (int) hash & mask;
+        while (true) {
+            long current = buffer.getLong(offset(slot) + R_HASH);
+            if (current == hash || current == 0) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    private BestMoveEval read(int offset) {
+        int length = buffer.get(offset + R_PV_LENGTH);
+        StringBuilder continuation = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                continuation.append(' ');
+            }
+            continuation.append(decodeMove(buffer.getShort(offset + R_PV + 2 * i)));
+        }
+        byte mate = buffer.get(offset + R_MATE);
+        BestMoveEval bestMoveEval = new BestMoveEval(decodeMove(buffer.getShort(offset + R_BEST_MOVE)),
+                decodeEval(buffer.getInt(offset + R_EVAL)),
+                continuation.toString(),
+                mate == Byte.MIN_VALUE ? "" : Byte.toString(mate));
+        bestMoveEval.setDepth(buffer.get(offset + R_DEPTH));
+        return bestMoveEval;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", isEnabled());
+        stats.put("capacity", capacity);
+        stats.put("size", count);
+        stats.put("hits", hits.sum());
+        stats.put("misses", misses.sum());
+        stats.put("writes", writes.sum());
+        stats.put("rejected", rejected.sum());
+        stats.put("compactions", compactions.sum());
+        return stats;
+    }
+
+    /**
+     * Flushes the mapped file to disk and closes it.
+     */
+    @PreDestroy
+    public void close() {
+        compactor.shutdown();
+        if (!isEnabled()) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            writeHeader(STATE_CLEAN);
+            buffer.force();
+            channel.close();
+        } catch (IOException e) {
+            log.error("Unable to close analysis store " + path, e);
+        } finally {
+            buffer = null;
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 64 bit FNV-1a followed by a MurmurHash3 finalizer, 0 being reserved for empty slots.
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * @return the move packed as from | to << 6 | promotion << 12, 0 for {@code none}, -1 if it is not a move
+     */
+    static short encodeMove(String move) {
+        if ("none".equals(move)) {
+            return 0;
+        }
+        if (move == null || move.length() < 4 || move.length() > 5) {
+            return -1;
+        }
+        int from = square(move.charAt(0), move.charAt(1));
+        int to = square(move.charAt(2), move.charAt(3));
+        int promotion = move.length() == 5 ? PROMOTIONS.indexOf(move.charAt(4)) : 0;
+        if (from < 0 || to < 0 || promotion < 0 || from == to) {
+            return -1;
+        }
+        return (short) (from | to << 6 | promotion << 12);
+    }
+
+    static String decodeMove(short move) {
+        if (move == 0) {
+            return "none";
+        }
+        int from = move & 63, to = (move >>> 6) & 63, promotion = (move >>> 12) & 7;
+        StringBuilder uci = new StringBuilder(5)
+                .append((char) ('a' + (from & 7))).append((char) ('1' + (from >>> 3)))
+                .append((char) ('a' + (to & 7))).append((char) ('1' + (to >>> 3)));
+        if (promotion > 0) {
+            uci.append(PROMOTIONS.charAt(promotion));
+        }
+        return uci.toString();
+    }
+
+    private static int square(char file, char rank) {
+        if (file < 'a' || file > 'h' || rank < '1' || rank > '8') {
+            return -1;
+        }
+        return (rank - '1') * 8 + (file - 'a');
+    }
+
+    private static short[] encodeContinuation(String continuation) {
+        if (continuation == null || continuation.isEmpty()) {
+            return continuation == null ? null : new short[0];
+        }
+        String[] moves = continuation.split(" ", -1);
+        if (moves.length > MAX_PV) {
+            return null;
+        }
+        short[] pv = new short[moves.length];
+        for (int i = 0; i < moves.length; i++) {
+            pv[i] = encodeMove(moves[i]);
+            if (pv[i] < 0) {
+                return null;
+            }
+        }
+        return pv;
+    }
+
+    private static Integer encodeEval(String eval) {
+        try {
+            int centipawns = (int) Math.round(Double.parseDouble(eval) * 100);
+            return decodeEval(centipawns).equals(eval) ? centipawns : null;
+        } catch (NumberFormatException | NullPointerException e) {
+            return null;
+        }
+    }
+
+    private static String decodeEval(int centipawns) {
+        return String.format(Locale.ROOT, "%.2f", centipawns / 100.0);
+    }
+
+    private static Byte encodeMate(String mate) {
+        if (mate == null || mate.isEmpty()) {
+            return Byte.MIN_VALUE;
+        }
+        try {
+            byte value = Byte.parseByte(mate);
+            return value != Byte.MIN_VALUE && Byte.toString(value).equals(mate) ? value : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.stockfishweb.core;
+
+import com.stockfishweb.core.engine.enums.Query;
+import com.stockfishweb.model.BestMoveEval;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Single-flight coalescing of identical analyses.
+ * <p>
+ * Concurrent requests for the same position and skill level share one running search instead of
+ * each taking an engine. A running search also serves requests asking for a shallower depth,
+ * while a request asking for more starts its own search, which later requests then attach to.
+ * <p>
+ * Every caller gets its own future, so one caller cancelling or timing out does not affect the others.
+ * The shared search is only cancelled once every caller attached to it is gone.
+ */
+class InFlightSearches {
+
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<>();
+
+    private final LongAdder started = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * Attaches to a running search satisfying the query, or starts one.
+     *
+     * @param query  best move query
+     * @param search starts the actual search, on the calling thread
+     * @return future of this caller, cancelling it detaches the caller from the shared search
+     */
+    CompletableFuture<BestMoveEval> join(Query query, Function<Query, CompletableFuture<BestMoveEval>> search) {
+        String key = AnalysisCache.key(query);
+        int depth = query.getSearchDepth();
+        while (true) {
+            Flight flight = flights.get(key);
+            if (flight != null && flight.depth >= depth) {
+                if (flight.subscribe()) {
+                    coalesced.increment();
+                    return flight.subscriber();
+                }
+                // the flight is winding down, replace it
+                flights.remove(key, flight);
+                continue;
+            }
+
+            Flight leader = new Flight(depth);
+            leader.subscribe();
+            boolean registered = flight == null
+                    ? flights.putIfAbsent(key, leader) == null
+                    : flights.replace(key, flight, leader);
+            if (!registered) {
+                continue;
+            }
+            started.increment();
+            leader.shared.whenComplete((bestMoveEval, e) -> flights.remove(key, leader));
+            CompletableFuture<BestMoveEval> subscriber = leader.subscriber();
+            leader.start(() -> search.apply(query));
+            return subscriber;
+        }
+    }
+
+    Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("running", flights.size());
+        stats.put("started", started.sum());
+        stats.put("coalesced", coalesced.sum());
+        return stats;
+    }
+
+    private static class Flight {
+        private final int depth;
+        private final CompletableFuture<BestMoveEval> shared = new CompletableFuture<>();
+        private int subscribers;
+        private boolean closed;
+
+        private Flight(int depth) {
+            this.depth = depth;
+        }
+
+        private synchronized boolean subscribe() {
+            if (closed || shared.isDone()) {
+                return false;
+            }
+            subscribers++;
+            return true;
+        }
+
+        private synchronized void unsubscribe() {
+            if (--subscribers == 0 && !shared.isDone()) {
+                closed = true;
+                shared.cancel(true);
+            }
+        }
+
+        private CompletableFuture<BestMoveEval> subscriber() {
+            CompletableFuture<BestMoveEval> subscriber = new CompletableFuture<>();
+            shared.whenComplete((bestMoveEval, e) -> {
+                if (e != null) {
+                    subscriber.completeExceptionally(e);
+                } else {
+                    subscriber.complete(bestMoveEval);
+                }
+            });
+            subscriber.whenComplete((bestMoveEval, e) -> {
+                if (e != null && !shared.isDone()) {
+                    unsubscribe();
+                }
+            });
+            return subscriber;
+        }
+
+        /**
+         * Starts the search and pipes its outcome into the shared future. The search is cancelled
+         * when the shared future is, that is when the last subscriber left.
+         */
+        private void start(Supplier<CompletableFuture<BestMoveEval>> search) {
+            CompletableFuture<BestMoveEval> running;
+            try {
+                running = search.get();
+            } catch (RuntimeException e) {
+                shared.completeExceptionally(e);
+                throw e;
+            }
+            running.whenComplete((bestMoveEval, e) -> {
+                if (e != null) {
+                    shared.completeExceptionally(e);
+                } else {
+                    shared.complete(bestMoveEval);
+                }
+            });
+            shared.whenComplete((bestMoveEval, e) -> {
+                if (e != null) {
+                    running.cancel(true);
+                }
+            });
+        }
+    }
+}
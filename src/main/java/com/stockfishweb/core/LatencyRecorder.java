@@ -0,0 +1,60 @@
+package com.stockfishweb.core;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the latencies of the first requests served, to tell how slow an instance is before it warmed up.
+ * Requests that failed or timed out count as well. Requests past the capacity are not recorded,
+ * so the percentiles stay those of the start.
+ */
+class LatencyRecorder {
+
+    private final long[] nanos;
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * @param capacity number of requests recorded
+     */
+    LatencyRecorder(int capacity) {
+        this.nanos = new long[Math.max(0, capacity)];
+    }
+
+    void record(long latencyNanos) {
+        int index = count.getAndIncrement();
+        if (index < nanos.length) {
+            nanos[index] = latencyNanos;
+        } else {
+            count.set(nanos.length);
+        }
+    }
+
+    /**
+     * @return number of requests recorded and their median, 99th percentile and slowest latencies in milliseconds
+     */
+    Map<String, Object> getStats() {
+        int recorded = Math.min(count.get(), nanos.length);
+        long[] sorted = Arrays.copyOf(nanos, recorded);
+        Arrays.sort(sorted);
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("requests", recorded);
+        stats.put("capacity", nanos.length);
+        stats.put("p50Millis", percentileMillis(sorted, 0.50));
+        stats.put("p99Millis", percentileMillis(sorted, 0.99));
+        stats.put("maxMillis", percentileMillis(sorted, 1.0));
+        return stats;
+    }
+
+    /**
+     * Nearest-rank percentile.
+     */
+    static double percentileMillis(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0.0;
+        }
+        int rank = (int) Math.ceil(percentile * sorted.length);
+        return sorted[Math.max(0, rank - 1)] / 1_000_000.0;
+    }
+}
@@ -0,0 +1,104 @@
+package com.stockfishweb.core;
+
+import com.stockfishweb.model.SearchProgress;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * Hands the progress of a streamed analysis from the engine reader thread to its listener.
+ * <p>
+ * The reader thread only drops the progress into a single slot, the listener is called on the executor,
+ * one progress at a time. A listener lagging behind the search skips the depths completed in the meantime
+ * and gets the latest one, so a slow client neither holds the reader thread nor piles up progress.
+ * <p>
+ * The end of the analysis goes through {@link #finish(Runnable)}, so it never overtakes a progress being delivered.
+ */
+class ProgressRelay {
+
+    private final SfService.ProgressListener listener;
+    private final Executor executor;
+    private final Consumer<Exception> onFailure;
+
+    // guarded by this
+    private SearchProgress pending;
+    private boolean sending;
+    private boolean finished;
+    private Runnable last;
+
+    /**
+     * @param listener  receives the progress
+     * @param executor  runs the listener
+     * @param onFailure gets the failure of the listener, no progress is delivered after that
+     */
+    ProgressRelay(SfService.ProgressListener listener, Executor executor, Consumer<Exception> onFailure) {
+        this.listener = listener;
+        this.executor = executor;
+        this.onFailure = onFailure;
+    }
+
+    /**
+     * Queues the progress for delivery, replacing one not delivered yet. Never blocks.
+     */
+    void offer(SearchProgress progress) {
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            pending = progress;
+            if (sending) {
+                return;
+            }
+            sending = true;
+        }
+        executor.execute(this::drain);
+    }
+
+    /**
+     * Drops the progress not delivered yet and runs the end of the analysis, once the progress being
+     * delivered, if any, is out.
+     */
+    void finish(Runnable then) {
+        synchronized (this) {
+            finished = true;
+            pending = null;
+            if (sending) {
+                last = then;
+                return;
+            }
+        }
+        then.run();
+    }
+
+    private void drain() {
+        while (true) {
+            SearchProgress progress;
+            Runnable then = null;
+            synchronized (this) {
+                progress = pending;
+                pending = null;
+                if (progress == null) {
+                    sending = false;
+                    then = last;
+                    last = null;
+                }
+            }
+            if (progress == null) {
+                if (then != null) {
+                    then.run();
+                }
+                return;
+            }
+            try {
+                listener.progress(progress);
+            } catch (IOException | RuntimeException e) {
+                synchronized (this) {
+                    finished = true;
+                    pending = null;
+                }
+                onFailure.accept(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.stockfishweb.core;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.GenericFilterBean;
+
+import java.io.IOException;
+
+/**
+ * Turns analysis requests away with 503 until the engines started with the application are ready and warmed up,
+ * see {@link WarmUp#isReady()}, and again once they are drained for shutdown, see {@link ShutdownCoordinator}.
+ * A load balancer is expected to hold traffic back by polling {@code GET /ready} meanwhile, this catches whatever
+ * gets through.
+ */
+@Component
+public class ReadinessFilter extends GenericFilterBean {
+
+    @Autowired(required = false)
+    private WarmUp warmUp;
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        if ("POST".equals(((HttpServletRequest) request).getMethod()) && warmUp != null && !warmUp.isReady()) {
+            HttpServletResponse res = (HttpServletResponse) response;
+            res.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+            res.setHeader("Retry-After", "1");
+            res.setContentType(MediaType.APPLICATION_JSON_VALUE);
+            res.getWriter().write("{\"error\": \"Engines are starting or shutting down\"}");
+            return;
+        }
+        chain.doFilter(request, response);
+    }
+}
@@ -1,15 +1,30 @@
 package com.stockfishweb.core;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.stockfishweb.core.engine.enums.Query;
+import com.stockfishweb.model.BatchResult;
 import com.stockfishweb.model.BestMoveEval;
 import jakarta.servlet.http.HttpServletRequest;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 @RestController
 public class SfController {
@@ -18,8 +33,16 @@ public class SfController {
     @Autowired
     private SfService sfService;
 
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired(required = false)
+    private WarmUp warmUp;
+
     /**
-     * Migrating away from CompletableFuture in favor of Spring @Async
+     * The search runs on the engine I/O executor, the servlet thread is handed back to Tomcat
+     * until the result is set. A client going away, or the async request timing out,
+     * cancels the analysis, which stops both engines.
      * @param query
      * @return
      */
@@ -27,9 +50,131 @@ public class SfController {
             path = "/",
             consumes="application/json", produces="application/json")
     @ResponseBody
-    public BestMoveEval postBestMoveEval(@RequestBody Query query, HttpServletRequest request) {
+    public DeferredResult<BestMoveEval> postBestMoveEval(@RequestBody Query query, HttpServletRequest request) {
         logger.debug(request.getRemoteAddr());
-        return sfService.getBestMoveEvalSync(query);
+        CompletableFuture<BestMoveEval> future = sfService.getBestMoveEvalFuture(query);
+        return toDeferredResult(future);
+    }
+
+    private static <T> DeferredResult<T> toDeferredResult(CompletableFuture<T> future) {
+        DeferredResult<T> result = new DeferredResult<>();
+        result.onError(e -> future.cancel(true));
+        result.onTimeout(() -> future.cancel(true));
+        future.whenComplete((value, e) -> {
+            if (e != null) {
+                result.setErrorResult(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+            } else {
+                result.setResult(value);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Analyzes many positions in one request. The whole batch is validated first, then every result is streamed
+     * as one JSON line as soon as it is ready, in completion order, tagged with the index of its query.
+     * A line carries the same fields as the answer of {@code POST /}, the depth reached and the MultiPV lines included.
+     * A failed position yields a line with its status and error instead of failing the batch.
+     * @param queries
+     * @return
+     */
+    @PostMapping(
+            path = "/batch",
+            consumes="application/json", produces=MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> postBatch(@RequestBody List<Query> queries) {
+        sfService.validateBatch(queries);
+        StreamingResponseBody body = out -> sfService.analyzeBatch(queries, (index, bestMoveEval, error) -> {
+            String fen = queries.get(index).getFen();
+            BatchResult line = error == null
+                    ? new BatchResult(index, fen, bestMoveEval)
+                    : new BatchResult(index, fen, error.getStatusCode().value(), error.getReason());
+            out.write(objectMapper.writeValueAsBytes(line));
+            out.write('\n');
+            out.flush();
+        });
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(body);
+    }
+
+    /**
+     * Streams the analysis of a position as Server-Sent Events: an {@code info} event with the best line of every
+     * completed depth as soon as the engine reaches it, then a {@code bestmove} event with the same result
+     * {@code POST /} returns, or an {@code error} event with its status. A client disconnecting stops the search.
+     * @param query
+     * @return
+     */
+    @PostMapping(
+            path = "/stream",
+            consumes="application/json", produces=MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter postStream(@RequestBody Query query) {
+        SseEmitter emitter = new SseEmitter();
+        CompletableFuture<BestMoveEval> future = sfService.streamBestMoveEval(query,
+                progress -> emitter.send(SseEmitter.event().name("info").data(progress)));
+        emitter.onError(e -> future.cancel(true));
+        emitter.onTimeout(() -> future.cancel(true));
+        emitter.onCompletion(() -> future.cancel(true));
+        future.whenComplete((bestMoveEval, e) -> {
+            try {
+                if (e == null) {
+                    emitter.send(SseEmitter.event().name("bestmove").data(bestMoveEval));
+                } else {
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    if (cause instanceof CancellationException) {
+                        emitter.complete();
+                        return;
+                    }
+                    Map<String, Object> error = new LinkedHashMap<>();
+                    if (cause instanceof ResponseStatusException) {
+                        error.put("status", ((ResponseStatusException) cause).getStatusCode().value());
+                        error.put("error", ((ResponseStatusException) cause).getReason());
+                    } else {
+                        error.put("status", HttpStatus.INTERNAL_SERVER_ERROR.value());
+                        error.put("error", cause.getMessage());
+                    }
+                    emitter.send(SseEmitter.event().name("error").data(error));
+                }
+                emitter.complete();
+            } catch (IOException | IllegalStateException ex) {
+                logger.debug("Unable to send the end of the stream: " + ex.getMessage());
+                emitter.completeWithError(ex);
+            }
+        });
+        return emitter;
+    }
+
+    /**
+     * Engine pool, watchdog and cache counters
+     *
+     * @return
+     */
+    @GetMapping(
+            path = "/stats",
+            produces="application/json")
+    @ResponseBody
+    public Map<String, Object> getStats() {
+        if (warmUp == null) {
+            return sfService.getStats();
+        }
+        Map<String, Object> stats = new LinkedHashMap<>(sfService.getStats());
+        stats.put("warmUp", warmUp.getReadiness().get("warmUp"));
+        return stats;
+    }
+
+    /**
+     * Readiness probe: 200 once the engines started with the application answered their handshake and were
+     * warmed up, 503 while they are starting or warming up, or if they failed to start
+     *
+     * @return
+     */
+    @GetMapping(
+            path = "/ready",
+            produces="application/json")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> getReady() {
+        if (warmUp == null) {
+            return ResponseEntity.ok(Map.of("status", "READY"));
+        }
+        return ResponseEntity.status(warmUp.isReady() ? HttpStatus.OK : HttpStatus.SERVICE_UNAVAILABLE)
+                .body(warmUp.getReadiness());
     }
 
     /**
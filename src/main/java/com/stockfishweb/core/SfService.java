@@ -1,21 +1,46 @@
 package com.stockfishweb.core;
 
 
+import com.stockfishweb.core.engine.EngineFuture;
+import com.stockfishweb.core.engine.EngineLease;
 import com.stockfishweb.core.engine.StockfishClient;
+import com.stockfishweb.core.engine.UCIInfo;
+import com.stockfishweb.core.engine.board.Board;
+import com.stockfishweb.core.engine.enums.EvalSource;
 import com.stockfishweb.core.engine.enums.Query;
 import com.stockfishweb.core.engine.enums.QueryType;
 import com.stockfishweb.core.engine.exception.StockfishPoolException;
+import com.stockfishweb.model.AnalysisLine;
 import com.stockfishweb.model.BestMoveEval;
+import com.stockfishweb.model.SearchProgress;
 import org.bughouse.fen.FenValidator;
 import org.bughouse.fen.ReturnCode;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 import org.springframework.web.server.ResponseStatusException;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
 
@@ -29,10 +54,161 @@ public class SfService {
     @Autowired
     protected StockfishClient client;
 
+    @Autowired(required = false)
+    protected AnalysisCache cache;
+
+    @Autowired(required = false)
+    protected AnalysisStore store;
+
+    private final InFlightSearches inFlight = new InFlightSearches();
+
+    @Value("${analysis.deadline.ms:40000}")
+    private long deadlineMillis = 40000;
+
+    @Value("${analysis.budget.max.ms:20000}")
+    private long budgetMaxMillis = 20000;
+
+    @Value("${analysis.multipv.max:10}")
+    private int multiPvMax = 10;
+
+    /**
+     * Eval source of queries not choosing one, {@link EvalSource#SEARCH} saves the evaluator exchange.
+     */
+    @Value("${analysis.eval.source:STATIC}")
+    private EvalSource evalSource = EvalSource.STATIC;
+
+    /**
+     * Analyzes the positions after the best move, and after the first moves of the other lines of a MultiPV
+     * answer, on engines left idle, so the cache already holds the positions users most often ask for next.
+     */
+    @Value("${analysis.speculation.enabled:false}")
+    private boolean speculation = false;
+
+    @Value("${analysis.speculation.moves:2}")
+    private int speculationMoves = 2;
+
+    private final LongAdder speculationsStarted = new LongAdder();
+    private final LongAdder speculationsCompleted = new LongAdder();
+    private final LongAdder speculationsPreempted = new LongAdder();
+    private final LongAdder speculationsFailed = new LongAdder();
+    private final LongAdder speculationsSkipped = new LongAdder();
+
+    /**
+     * Delivers the progress of streamed analyses, so a slow client never holds an engine reader thread.
+     */
+    private final ExecutorService progressSender = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "analysis-progress");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Fails the analyses outliving the deadline. A timer is removed as soon as it is cancelled,
+     * so a completed analysis is not held until its deadline would have passed.
+     */
+    private final ScheduledThreadPoolExecutor deadlines = createDeadlines();
+
+    private LatencyRecorder firstRequests = new LatencyRecorder(100);
+
+    @Value("${analysis.batch.max.size:200}")
+    private int batchMaxSize = 200;
+
+    @Value("${analysis.batch.parallelism:2}")
+    private int batchParallelism = 2;
+
+    /**
+     * Receives the results of a batch one by one, in completion order.
+     */
+    @FunctionalInterface
+    public interface BatchWriter {
+        /**
+         * @param index        position of the query in the batch
+         * @param bestMoveEval result, null if the analysis failed
+         * @param error        failure, null if the analysis succeeded
+         * @throws IOException if the result can not be written, which aborts the batch
+         */
+        void write(int index, BestMoveEval bestMoveEval, ResponseStatusException error) throws IOException;
+    }
+
+    /**
+     * Follows a streamed analysis depth by depth.
+     */
+    @FunctionalInterface
+    public interface ProgressListener {
+        /**
+         * Called on a progress thread, one call at a time, once per completed depth, shallowest first.
+         * Depths completed while a call is running are skipped, only the deepest of them is passed next.
+         *
+         * @param progress best line found so far
+         * @throws IOException if the progress can not be delivered, which cancels the analysis
+         */
+        void progress(SearchProgress progress) throws IOException;
+    }
+
+    private static ScheduledThreadPoolExecutor createDeadlines() {
+        ScheduledThreadPoolExecutor deadlines = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "analysis-deadlines");
+            thread.setDaemon(true);
+            return thread;
+        });
+        deadlines.setRemoveOnCancelPolicy(true);
+        return deadlines;
+    }
+
     protected void setClient(final StockfishClient client){
         this.client = client;
     }
 
+    protected void setCache(final AnalysisCache cache) {
+        this.cache = cache;
+    }
+
+    protected void setStore(final AnalysisStore store) {
+        this.store = store;
+    }
+
+    protected void setEvalSource(final EvalSource evalSource) {
+        this.evalSource = evalSource;
+    }
+
+    /**
+     * @param requests number of requests, counted from start-up, whose latency is reported
+     */
+    @Value("${analysis.warmup.report.requests:100}")
+    protected void setFirstRequestsReported(final int requests) {
+        this.firstRequests = new LatencyRecorder(requests);
+    }
+
+    protected void setSpeculation(final boolean speculation, final int moves) {
+        this.speculation = speculation;
+        this.speculationMoves = moves;
+    }
+
+    /**
+     * @return engine pool, watchdog, in-flight search, analysis cache and store counters
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>(client.getStats());
+        stats.put("inFlight", inFlight.getStats());
+        stats.put("firstRequests", firstRequests.getStats());
+        if (cache != null) {
+            stats.put("analysisCache", cache.getStats());
+        }
+        if (store != null) {
+            stats.put("analysisStore", store.getStats());
+        }
+        if (speculation) {
+            Map<String, Object> speculationStats = new LinkedHashMap<>();
+            speculationStats.put("started", speculationsStarted.sum());
+            speculationStats.put("completed", speculationsCompleted.sum());
+            speculationStats.put("preempted", speculationsPreempted.sum());
+            speculationStats.put("failed", speculationsFailed.sum());
+            speculationStats.put("skipped", speculationsSkipped.sum());
+            stats.put("speculation", speculationStats);
+        }
+        return stats;
+    }
+
     public String getBestMoveAsync() {
         Query query = new Query(QueryType.Best_Move, START_FEN);
         return getBestMoveAsync(query);
@@ -40,7 +216,9 @@ public class SfService {
 
 
     public String getBestMoveSync(Query query) {
-        return client.getEngine(query.getType()).getBestMove(query);
+        try (EngineLease lease = client.lease(query.getType())) {
+            return lease.engine().getBestMove(query);
+        }
     }
 
     public String getBestMoveAsync(Query query) {
@@ -83,34 +261,489 @@ public class SfService {
     }
 
     /**
-     * Migrating away from CompletableFuture in favor of Spring @Async
+     * Best move and eval without holding the calling thread: both exchanges run on the client's engine I/O executor,
+     * so a servlet thread returning this future is released for the duration of the search.
+     * <p>
+     * The search and the eval are sent to their engines in parallel, each on its own copy of the query, and share
+     * a single deadline. If either side fails, the deadline passes or the returned future is cancelled, the other
+     * side is cancelled as well, which sends it {@code stop} and hands its engine back right away.
+     * <p>
+     * Results are served from the {@link AnalysisCache}, then from the persistent {@link AnalysisStore},
+     * when the position was already searched deep enough, and only go to the engines otherwise.
+     * Identical requests arriving while a search is running attach to it, see {@link InFlightSearches}.
+     * With {@code analysis.speculation.enabled}, the positions likely to be asked for next are then analyzed
+     * in the background, see {@link #speculate(Query, BestMoveEval)}.
+     *
      * @param query
-     * @return
+     * @return future completing with the best move and eval, or with a {@link ResponseStatusException}
      */
-    public BestMoveEval getBestMoveEvalSync(Query query) {
+    public CompletableFuture<BestMoveEval> getBestMoveEvalFuture(Query query) {
+        long start = System.nanoTime();
+        validate(query);
+
+        BestMoveEval known = lookup(query);
+        if (known != null) {
+            speculate(query, known);
+            firstRequests.record(System.nanoTime() - start);
+            return CompletableFuture.completedFuture(known);
+        }
+
+        CompletableFuture<BestMoveEval> result = query.getTimeBudget() > 0
+                // a running search may go on for longer than this query's budget
+                ? search(query, null, true)
+                : inFlight.join(query, q -> search(q, null, true));
+        return recordLatency(result, start);
+    }
 
+    /**
+     * Runs a query through the same validation, engine exchanges and response building as
+     * {@link #getBestMoveEvalFuture(Query)}, leaving the cache, the store and the request latencies alone.
+     * Meant for warming the service up, see {@link WarmUp}.
+     */
+    CompletableFuture<BestMoveEval> analyzeForWarmUp(Query query) {
+        validate(query);
+        return search(query, null, false);
+    }
+
+    /**
+     * Records the latency of a request however it ends, failures and timeouts included, so the first
+     * requests are not made to look faster than they were.
+     */
+    private CompletableFuture<BestMoveEval> recordLatency(CompletableFuture<BestMoveEval> result, long start) {
+        result.whenComplete((bestMoveEval, e) -> firstRequests.record(System.nanoTime() - start));
+        return result;
+    }
+
+    /**
+     * Flavour of {@link #getBestMoveEvalFuture(Query)} reporting the search as it deepens: the listener gets the
+     * best line of every completed depth, within milliseconds for the first ones, and the future the final result.
+     * The listener runs off the engine reader thread, see {@link ProgressRelay}: a listener slower than the search
+     * skips depths, and the future completes once the progress being delivered is out.
+     * <p>
+     * A streamed analysis has its own search, it does not attach to identical ones already running.
+     * A result already cached is returned right away, without any progress. If the listener fails, typically
+     * because the client went away, the analysis is cancelled, which stops both engines.
+     *
+     * @param query    best move query
+     * @param listener receives the progress of the search
+     * @return future completing with the best move and eval, or with a {@link ResponseStatusException}
+     */
+    public CompletableFuture<BestMoveEval> streamBestMoveEval(Query query, ProgressListener listener) {
+        long start = System.nanoTime();
+        validate(query);
+
+        BestMoveEval known = lookup(query);
+        if (known != null) {
+            speculate(query, known);
+            firstRequests.record(System.nanoTime() - start);
+            return CompletableFuture.completedFuture(known);
+        }
+
+        CompletableFuture<BestMoveEval> result = new CompletableFuture<>();
+        ProgressRelay relay = new ProgressRelay(listener, progressSender, e -> {
+            logger.fine("Progress listener failed, cancelling analysis: " + e.getMessage());
+            result.cancel(true);
+        });
+        // only touched on the reader thread of the engine running the search
+        int[] lastDepth = {0};
+        CompletableFuture<BestMoveEval> search = search(query, info -> {
+            if (!info.hasScore() || info.getPvLength() == 0 || info.getBound() != UCIInfo.BOUND_EXACT
+                    || info.getMultiPv() > 1 || info.getDepth() <= lastDepth[0]) {
+                return;
+            }
+            lastDepth[0] = info.getDepth();
+            relay.offer(toSearchProgress(info));
+        }, true);
+        search.whenComplete((bestMoveEval, e) -> relay.finish(() -> {
+            if (e != null) {
+                result.completeExceptionally(e);
+            } else {
+                result.complete(bestMoveEval);
+            }
+        }));
+        result.whenComplete((bestMoveEval, e) -> {
+            if (e != null) {
+                search.cancel(true);
+            }
+        });
+        return recordLatency(result, start);
+    }
+
+    /**
+     * Checks the query and fills in the server defaults it left out, before it is looked up or searched.
+     */
+    private void validate(Query query) {
+        if (query.getEvalSource() == null) {
+            query.setEvalSource(evalSource);
+        }
         ReturnCode returnCode = FenValidator.getInstance().validate(query.getFen());
         if (!returnCode.isValid()) {
             throw new ResponseStatusException(
                     HttpStatus.CONFLICT, returnCode.getDescription());
         }
+        if (query.getTimeBudget() < 0 || query.getTimeBudget() > budgetMaxMillis) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    "Time budget must be between 0 and " + budgetMaxMillis + " ms");
+        }
+        if (query.getMultiPv() < 0 || query.getMultiPv() > multiPvMax) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    "MultiPV must be between 0 and " + multiPvMax);
+        }
+    }
 
-        String bestMoveResponse = null;
-        String evalResponse = null;
+    /**
+     * @return the result of an earlier search deep enough for the query, from the cache or the store, or null
+     */
+    private BestMoveEval lookup(Query query) {
+        if (cache != null) {
+            BestMoveEval cached = cache.get(query);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        if (store != null) {
+            BestMoveEval stored = store.get(query);
+            if (stored != null) {
+                if (cache != null) {
+                    cache.put(query, stored);
+                }
+                return stored;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sends the best move and eval exchanges of a query to the engines. With {@link EvalSource#SEARCH},
+     * the best move search is the only exchange and the eval is taken from its score.
+     *
+     * @param progress follows the best move search, null for none
+     * @param keep     caches and stores the result, and speculates on the positions following it
+     */
+    private CompletableFuture<BestMoveEval> search(Query query, Consumer<UCIInfo> progress, boolean keep) {
+        CompletableFuture<List<UCIInfo>> bestMoveFuture;
+        CompletableFuture<String> evalFuture;
         try {
-            query.setType(QueryType.Best_Move);
-            bestMoveResponse = client.getResponseSync(query);
-            query.setType(QueryType.Eval);
-            evalResponse = client.getResponseSync(query);
+            bestMoveFuture = client.getLinesAsync(query.copy(QueryType.Best_Move), progress);
+        } catch (StockfishPoolException e) {
+            throw toResponseStatus(e);
+        }
+        if (query.getEvalSource() == EvalSource.SEARCH) {
+            evalFuture = bestMoveFuture.thenApply(lines -> toWhiteEval(lines.get(0), query.getFen()));
+        } else {
+            try {
+                evalFuture = client.getResponseAsync(query.copy(QueryType.Eval));
+            } catch (StockfishPoolException e) {
+                bestMoveFuture.cancel(true);
+                throw toResponseStatus(e);
+            }
+        }
 
-            String bestmove = bestMoveResponse.substring(bestMoveResponse.indexOf("|") + 1).split("\\s+")[0];
-            String mate = bestMoveResponse.substring(0, bestMoveResponse.indexOf("|")).trim();
+        CompletableFuture<BestMoveEval> result = new CompletableFuture<>();
+        bestMoveFuture.whenComplete((response, e) -> {
+            if (e != null) {
+                result.completeExceptionally(toResponseStatus(e));
+            }
+        });
+        evalFuture.whenComplete((response, e) -> {
+            if (e != null) {
+                result.completeExceptionally(toResponseStatus(e));
+            }
+        });
+        bestMoveFuture.thenAcceptBoth(evalFuture, (lines, evalResponse) -> {
+            try {
+                BestMoveEval bestMoveEval = toBestMoveEval(lines.get(0), evalResponse);
+                if (query.getMultiPv() > 1) {
+                    bestMoveEval.setLines(toAnalysisLines(lines));
+                }
+                if (keep && cache != null) {
+                    cache.put(query, bestMoveEval);
+                }
+                if (keep && store != null) {
+                    store.put(query, bestMoveEval);
+                }
+                result.complete(bestMoveEval);
+                if (keep) {
+                    speculate(query, bestMoveEval);
+                }
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        ScheduledFuture<?> deadline = deadlines.schedule(() ->
+                result.completeExceptionally(new ResponseStatusException(
+                        HttpStatus.GATEWAY_TIMEOUT, "Analysis did not complete within " + deadlineMillis + " ms")),
+                deadlineMillis, TimeUnit.MILLISECONDS);
+        result.whenComplete((bestMoveEval, e) -> {
+            // drops the timer, and with it the request, as soon as the analysis is over
+            deadline.cancel(false);
+            if (e != null) {
+                bestMoveFuture.cancel(true);
+                evalFuture.cancel(true);
+            }
+        });
+        return result;
+    }
 
-            //todo: need something more elegant than this
-            return new BestMoveEval(bestmove, evalResponse, bestMoveResponse.substring(bestMoveResponse.indexOf("|") + 1), mate);
-        } catch (StockfishPoolException e) {
-            throw new ResponseStatusException(
+    /**
+     * Analyzes, on engines nobody is using, the positions reached by the best move and by the first moves of the
+     * other lines of an answer, with the settings of its query, and caches the results. Positions already cached
+     * are skipped, and so is the rest once no engine is idle. An engine is taken back from its speculative search
+     * as soon as a request needs it, see {@link StockfishClient#getLinesSpeculative(Query)}.
+     *
+     * @param query    query just answered
+     * @param answered its answer
+     */
+    private void speculate(Query query, BestMoveEval answered) {
+        if (!speculation || cache == null) {
+            return;
+        }
+        List<String> moves = new ArrayList<>();
+        moves.add(answered.getBestMove());
+        if (answered.getLines() != null) {
+            answered.getLines().forEach(line -> moves.add(line.getBestMove()));
+        }
+        Board board;
+        try {
+            board = Board.fromFen(query.getFen());
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+
+        List<String> fens = new ArrayList<>();
+        for (String move : moves) {
+            int found = move == null ? UCIInfo.NO_MOVE : board.findMove(move);
+            if (found == UCIInfo.NO_MOVE) {
+                continue;
+            }
+            String fen = board.play(found).toFen();
+            if (!fens.contains(fen) && fens.size() < speculationMoves) {
+                fens.add(fen);
+            }
+        }
+        for (String fen : fens) {
+            Query next = query.copy(QueryType.Best_Move);
+            next.setFen(fen);
+            if (cache.contains(next)) {
+                continue;
+            }
+            EngineFuture<List<UCIInfo>> future = client.getLinesSpeculative(next);
+            if (future == null) {
+                speculationsSkipped.increment();
+                return;
+            }
+            speculationsStarted.increment();
+            future.whenComplete((lines, e) -> {
+                if (e instanceof CancellationException) {
+                    speculationsPreempted.increment();
+                } else if (e != null) {
+                    speculationsFailed.increment();
+                    logger.fine("Speculative analysis failed: " + e.getMessage());
+                } else {
+                    cacheSpeculation(next, lines);
+                }
+            });
+        }
+    }
+
+    /**
+     * Caches a speculative search once its eval is in. A static eval is only asked of an evaluator that can be
+     * spared right away, and is dropped like the search if a request needs the evaluator meanwhile.
+     */
+    private void cacheSpeculation(Query query, List<UCIInfo> lines) {
+        if (query.getEvalSource() == EvalSource.SEARCH) {
+            cacheSpeculation(query, lines, toWhiteEval(lines.get(0), query.getFen()));
+            return;
+        }
+        EngineFuture<String> eval = client.getEvalSpeculative(query.copy(QueryType.Eval));
+        if (eval == null) {
+            speculationsSkipped.increment();
+            return;
+        }
+        eval.whenComplete((evalResponse, e) -> {
+            if (e instanceof CancellationException) {
+                speculationsPreempted.increment();
+            } else if (e != null) {
+                speculationsFailed.increment();
+                logger.fine("Speculative eval failed: " + e.getMessage());
+            } else {
+                cacheSpeculation(query, lines, evalResponse);
+            }
+        });
+    }
+
+    private void cacheSpeculation(Query query, List<UCIInfo> lines, String evalResponse) {
+        try {
+            BestMoveEval bestMoveEval = toBestMoveEval(lines.get(0), evalResponse);
+            if (query.getMultiPv() > 1) {
+                bestMoveEval.setLines(toAnalysisLines(lines));
+            }
+            cache.putSpeculative(query, bestMoveEval);
+            speculationsCompleted.increment();
+        } catch (RuntimeException e) {
+            speculationsFailed.increment();
+            logger.fine("Speculative analysis failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Checks a whole batch before any of it is analyzed.
+     *
+     * @param queries batch of queries
+     * @throws ResponseStatusException if the batch is empty, too large or holds an invalid FEN
+     */
+    public void validateBatch(List<Query> queries) {
+        if (queries == null || queries.isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Batch is empty");
+        }
+        if (queries.size() > batchMaxSize) {
+            throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE,
+                    "Batch of " + queries.size() + " positions exceeds the limit of " + batchMaxSize);
+        }
+        for (int i = 0; i < queries.size(); i++) {
+            try {
+                validate(queries.get(i));
+            } catch (ResponseStatusException e) {
+                throw new ResponseStatusException(e.getStatusCode(), "Position " + i + ": " + e.getReason());
+            }
+        }
+    }
+
+    /**
+     * Analyzes a validated batch, handing each result to the writer as soon as it is ready.
+     * <p>
+     * At most {@code analysis.batch.parallelism} analyses of the batch run at a time, and the next one only starts
+     * once a finished result has been written, so a large batch or a slow reader can not take over the engine pools.
+     * If writing fails, typically because the client went away, the running analyses are cancelled.
+     *
+     * @param queries batch of queries, see {@link #validateBatch(List)}
+     * @param writer  receives the results
+     * @throws IOException if the writer fails
+     */
+    public void analyzeBatch(List<Query> queries, BatchWriter writer) throws IOException {
+        int size = queries.size();
+        List<CompletableFuture<BestMoveEval>> futures = new ArrayList<>(size);
+        BlockingQueue<Integer> completed = new LinkedBlockingQueue<>();
+        int running = 0;
+        try {
+            while (futures.size() < size || running > 0) {
+                while (futures.size() < size && running < batchParallelism) {
+                    int index = futures.size();
+                    CompletableFuture<BestMoveEval> future;
+                    try {
+                        future = getBestMoveEvalFuture(queries.get(index));
+                    } catch (ResponseStatusException e) {
+                        future = CompletableFuture.failedFuture(e);
+                    }
+                    futures.add(future);
+                    running++;
+                    future.whenComplete((bestMoveEval, e) -> completed.add(index));
+                }
+
+                int index = completed.take();
+                running--;
+                try {
+                    writer.write(index, futures.get(index).join(), null);
+                } catch (CompletionException | CancellationException e) {
+                    RuntimeException error = toResponseStatus(e);
+                    writer.write(index, null, error instanceof ResponseStatusException
+                            ? (ResponseStatusException) error
+                            : new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, error.getMessage(), error));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Batch interrupted");
+        } finally {
+            futures.forEach(future -> future.cancel(true));
+        }
+    }
+
+    /**
+     * Builds the response strings out of the search outcome, the only place they are needed.
+     */
+    static BestMoveEval toBestMoveEval(UCIInfo search, String evalResponse) {
+        if (search.getBestMove() == UCIInfo.NO_MOVE || (search.isMate() && search.getScore() == 0)) {
+            //stalemate or checkmate
+            return new BestMoveEval("none", evalResponse, "none", "0");
+        }
+        // the head of the principal variation, as the engine's own pick is weakened by the skill level
+        String bestmove = UCIInfo.moveToString(search.getPvLength() > 0 ? search.getPvMove(0) : search.getBestMove());
+        String continuation = search.getPvLength() > 0 ? search.pvToString() : bestmove;
+        String mate = search.isMate() ? Integer.toString(search.getScore()) : "";
+
+        BestMoveEval bestMoveEval = new BestMoveEval(bestmove, evalResponse, continuation, mate);
+        bestMoveEval.setDepth(search.getDepth());
+        return bestMoveEval;
+    }
+
+    /**
+     * Turns the score of a search, given from the side to move, into an eval in the format of the engine's
+     * {@code eval} command: pawns from White, with two decimals. Mates, which a static eval never reports,
+     * read {@code #3} when White mates in 3 and {@code #-3} when Black does. A position already checkmated reads
+     * {@code #0} whichever side won, as there is no negative zero: the side to move is the one mated.
+     */
+    static String toWhiteEval(UCIInfo search, String fen) {
+        if (!search.hasScore()) {
+            return "none";
+        }
+        boolean whiteToMove = !fen.trim().split("\\s+")[1].equals("b");
+        if (search.isMate()) {
+            if (search.getScore() == 0) {
+                // the side to move is mated
+                return "#0";
+            }
+            boolean whiteMates = (search.getScore() > 0) == whiteToMove;
+            return (whiteMates ? "#" : "#-") + Math.abs(search.getScore());
+        }
+        int centipawns = whiteToMove ? search.getScore() : -search.getScore();
+        return String.format(Locale.ROOT, "%.2f", centipawns / 100.0);
+    }
+
+    /**
+     * Lines without a move, such as a slot the search never filled, are left out. The others keep the rank
+     * the engine gave them, which is their MultiPV slot.
+     */
+    static List<AnalysisLine> toAnalysisLines(List<UCIInfo> lines) {
+        List<AnalysisLine> analysisLines = new ArrayList<>(lines.size());
+        for (int i = 0; i < lines.size(); i++) {
+            UCIInfo line = lines.get(i);
+            if (line.getPvLength() == 0) {
+                continue;
+            }
+            analysisLines.add(new AnalysisLine(line.getMultiPv() > 0 ? line.getMultiPv() : i + 1, line.getDepth(),
+                    line.isMate() ? null : line.getScore(), line.isMate() ? line.getScore() : null,
+                    UCIInfo.moveToString(line.getPvMove(0)), line.pvToString()));
+        }
+        return analysisLines;
+    }
+
+    private static SearchProgress toSearchProgress(UCIInfo info) {
+        return new SearchProgress(info.getDepth(), info.getSelDepth(),
+                info.isMate() ? null : info.getScore(), info.isMate() ? info.getScore() : null,
+                info.getNodes(), info.getNps(), info.getTime(),
+                UCIInfo.moveToString(info.getPvMove(0)), info.pvToString());
+    }
+
+    private static RuntimeException toResponseStatus(Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if (cause instanceof StockfishPoolException) {
+            return new ResponseStatusException(
                     HttpStatus.SERVICE_UNAVAILABLE, "All Stockfish Engines are Busy. Please try again later");
         }
+        return cause instanceof RuntimeException ? (RuntimeException) cause : new CompletionException(cause);
+    }
+
+    /**
+     * Blocking flavour of {@link #getBestMoveEvalFuture(Query)}
+     * @param query
+     * @return
+     */
+    public BestMoveEval getBestMoveEvalSync(Query query) {
+        try {
+            return getBestMoveEvalFuture(query).join();
+        } catch (CompletionException e) {
+            throw toResponseStatus(e);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,73 @@
+package com.stockfishweb.core;
+
+import com.stockfishweb.core.engine.StockfishClient;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shuts the engines down once the searches in flight are over, rather than after a fixed delay.
+ * <p>
+ * Stopped first of all the lifecycle beans, while the web server still runs: the client stops reporting ready,
+ * so {@code GET /ready} and new analysis requests get 503 and traffic goes to other instances, while the searches
+ * in flight finish and their answers are sent. Searches still running after {@code engine.shutdown.drain.ms}
+ * are stopped and answered with the best move found so far. All engine processes are then quit at once.
+ */
+@Component
+public class ShutdownCoordinator implements SmartLifecycle {
+
+    private static final Log log = LogFactory.getLog(ShutdownCoordinator.class);
+
+    @Autowired
+    private StockfishClient client;
+
+    /**
+     * How long searches in flight may run once shutdown started.
+     */
+    @Value("${engine.shutdown.drain.ms:20000}")
+    private long drainMillis = 20000;
+
+    /**
+     * How long searches stopped at the end of the drain may take to return.
+     */
+    @Value("${engine.shutdown.stop.ms:2000}")
+    private long stopMillis = 2000;
+
+    private volatile boolean running;
+
+    @Override
+    public void start() {
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        log.info("Shutdown process initiated, draining engines...");
+        long start = System.nanoTime();
+        boolean drained = client.drain(drainMillis, stopMillis);
+        long drainNanos = System.nanoTime() - start;
+        client.close();
+        running = false;
+        log.info((drained ? "Engines drained" : "Engines did not drain") + " in "
+                + TimeUnit.NANOSECONDS.toMillis(drainNanos) + " ms, closed in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start - drainNanos) + " ms");
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return the latest phase, stopped before the web server stops serving the answers
+     */
+    @Override
+    public int getPhase() {
+        return DEFAULT_PHASE;
+    }
+}
@@ -0,0 +1,170 @@
+package com.stockfishweb.core;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.stockfishweb.core.engine.StockfishClient;
+import com.stockfishweb.core.engine.enums.Query;
+import com.stockfishweb.core.engine.enums.QueryType;
+import com.stockfishweb.model.BestMoveEval;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bughouse.fen.FenValidator;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.stockfishweb.common.Util.START_FEN;
+
+/**
+ * Warms the instance up before it reports itself ready: the first requests after a deploy otherwise pay for
+ * engine processes with their binary and hash not paged in yet, and for JVM code not compiled yet.
+ * <p>
+ * Once the engines are started, a corpus of positions is searched on every one of them, then run a few times
+ * through the whole in-process path a request takes: JSON binding, FEN validation, both engine exchanges and
+ * UCI parsing, and the response, without touching the cache or the store. The JSON binding and validation,
+ * which take microseconds, are then repeated until they are compiled. Traffic is only let in afterwards,
+ * see {@link ReadinessFilter}.
+ * <p>
+ * The time the warm-up took is reported with the readiness, and the latencies of the first requests served
+ * afterwards in the {@code firstRequests} stats.
+ */
+@Component
+public class WarmUp {
+
+    private static final Log log = LogFactory.getLog(WarmUp.class);
+
+    /**
+     * Openings, middlegames with castling, a position where en passant can be taken, and endgames
+     * with promotions.
+     */
+    static final List<String> CORPUS = List.of(
+            "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1",
+            START_FEN,
+            "r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1",
+            "rnbqkbnr/ppp1p1pp/8/3pPp2/8/8/PPPP1PPP/RNBQKBNR w KQkq f6 0 3",
+            "rnbq1k1r/pp1Pbppp/2p5/8/2B5/8/PPP1NnPP/RNBQK2R w KQ - 1 8",
+            "8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - - 0 1",
+            "8/5pk1/6p1/8/3Q4/6P1/5P1K/3q4 b - - 3 45",
+            "6k1/5ppp/8/8/8/8/5PPP/3R2K1 w - - 0 1");
+
+    @Autowired
+    private StockfishClient client;
+
+    @Autowired
+    private SfService sfService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${analysis.warmup.enabled:true}")
+    private boolean enabled = true;
+
+    /**
+     * Depth the corpus is searched to.
+     */
+    @Value("${analysis.warmup.depth:10}")
+    private int depth = 10;
+
+    /**
+     * Times the corpus goes through the whole in-process path.
+     */
+    @Value("${analysis.warmup.rounds:3}")
+    private int rounds = 3;
+
+    /**
+     * Times the JSON binding and the FEN validation of the corpus are repeated.
+     */
+    @Value("${analysis.warmup.iterations:2000}")
+    private int iterations = 2000;
+
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+    private volatile boolean running;
+    private volatile long durationMillis = -1;
+
+    @PostConstruct
+    private void start() {
+        if (!enabled) {
+            done.complete(null);
+            return;
+        }
+        client.whenStarted().whenComplete((started, e) -> {
+            if (e != null) {
+                // the client reports the failure, and stays not ready
+                return;
+            }
+            Thread thread = new Thread(this::run, "warm-up");
+            thread.setDaemon(true);
+            thread.start();
+        });
+    }
+
+    private void run() {
+        running = true;
+        long start = System.nanoTime();
+        try {
+            List<Query> corpus = CORPUS.stream().map(fen -> new Query(QueryType.Best_Move, fen, depth)).toList();
+            client.warmUpEngines(corpus);
+            long enginesMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            for (int round = 0; round < rounds; round++) {
+                for (String fen : CORPUS) {
+                    Query query = objectMapper.readValue(requestBody(fen), Query.class);
+                    BestMoveEval bestMoveEval = sfService.analyzeForWarmUp(query).get(1, TimeUnit.MINUTES);
+                    objectMapper.writeValueAsBytes(bestMoveEval);
+                }
+            }
+            for (int i = 0; i < iterations; i++) {
+                String fen = CORPUS.get(i % CORPUS.size());
+                objectMapper.readValue(requestBody(fen), Query.class);
+                FenValidator.getInstance().validate(fen);
+            }
+            log.info("Warm-up done in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, "
+                    + enginesMillis + " ms of which on the engines");
+        } catch (Exception e) {
+            log.warn("Warm-up failed, taking traffic anyway", e);
+        } finally {
+            durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            running = false;
+            done.complete(null);
+        }
+    }
+
+    private String requestBody(String fen) throws JsonProcessingException {
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("fen", fen);
+        body.put("depth", depth);
+        return objectMapper.writeValueAsString(body);
+    }
+
+    /**
+     * @return true once the engines are started and warmed up, and the instance can take traffic
+     */
+    public boolean isReady() {
+        return client.isReady() && done.isDone();
+    }
+
+    /**
+     * @return start-up state of the engines, see {@link StockfishClient#getReadiness()}, {@code WARMING_UP} while
+     * they are ready but the warm-up is not done, and how long the warm-up took
+     */
+    public Map<String, Object> getReadiness() {
+        Map<String, Object> readiness = new LinkedHashMap<>(client.getReadiness());
+        if (client.isReady() && !done.isDone()) {
+            readiness.put("status", "WARMING_UP");
+        }
+        Map<String, Object> warmUp = new LinkedHashMap<>();
+        warmUp.put("status", !enabled ? "DISABLED" : done.isDone() ? "DONE" : running ? "RUNNING" : "PENDING");
+        if (done.isDone() && enabled) {
+            warmUp.put("durationMillis", durationMillis);
+        }
+        readiness.put("warmUp", warmUp);
+        return readiness;
+    }
+}
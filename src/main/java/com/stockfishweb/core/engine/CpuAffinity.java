@@ -0,0 +1,131 @@
+package com.stockfishweb.core.engine;
+
+import com.stockfishweb.core.engine.util.CpuTopology;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hands out CPU slices to engines, so every engine searches on its own cores instead of all of them competing
+ * for the whole machine. An engine is started through {@code numactl}, which also binds its memory, the hash
+ * table mostly, to the node of its slice, or through {@code taskset} when {@code numactl} is not installed.
+ * With neither, engines start unpinned.
+ * <p>
+ * A slice goes to the engine starting on the least busy slice, and is given back when the engine process exits,
+ * however that happens. More engines than slices share them.
+ */
+class CpuAffinity {
+
+    private static final Log log = LogFactory.getLog(CpuAffinity.class);
+
+    private final List<CpuTopology.Slice> slices;
+    private final int[] engines;
+    private final String numactl;
+    private final String taskset;
+
+    CpuAffinity(List<CpuTopology.Slice> slices) {
+        this(slices, findExecutable("numactl"), findExecutable("taskset"));
+    }
+
+    CpuAffinity(List<CpuTopology.Slice> slices, String numactl, String taskset) {
+        this.slices = slices;
+        this.engines = new int[slices.size()];
+        this.numactl = numactl;
+        this.taskset = taskset;
+        if (numactl == null && taskset == null) {
+            log.warn("Neither numactl nor taskset found, engines will not be pinned to their CPUs");
+        }
+    }
+
+    /**
+     * @return number of disjoint slices, the number of engines that can search without sharing a core
+     */
+    int getSliceCount() {
+        return slices.size();
+    }
+
+    /**
+     * @return size of the smallest slice, the number of search threads every engine can be given
+     */
+    int getThreadsPerSlice() {
+        int threads = Integer.MAX_VALUE;
+        for (CpuTopology.Slice slice : slices) {
+            threads = Math.min(threads, slice.size());
+        }
+        return threads;
+    }
+
+    /**
+     * Takes the least busy slice for an engine about to start. The slice must be given back with
+     * {@link #release(CpuTopology.Slice)}, see {@link #bind(CpuTopology.Slice, Process)}.
+     */
+    synchronized CpuTopology.Slice acquire() {
+        int best = 0;
+        for (int i = 1; i < engines.length; i++) {
+            if (engines[i] < engines[best]) {
+                best = i;
+            }
+        }
+        engines[best]++;
+        return slices.get(best);
+    }
+
+    synchronized void release(CpuTopology.Slice slice) {
+        int index = slices.indexOf(slice);
+        if (index >= 0 && engines[index] > 0) {
+            engines[index]--;
+        }
+    }
+
+    /**
+     * Gives the slice back once the process exits.
+     */
+    void bind(CpuTopology.Slice slice, Process process) {
+        process.onExit().thenRun(() -> release(slice));
+    }
+
+    /**
+     * @param slice   CPUs the engine runs on
+     * @param command command starting the engine
+     * @return the command, wrapped to run on the slice
+     */
+    List<String> wrap(CpuTopology.Slice slice, List<String> command) {
+        List<String> wrapped = new ArrayList<>(command.size() + 4);
+        if (numactl != null) {
+            wrapped.add(numactl);
+            wrapped.add("--physcpubind=" + slice.getCpuList());
+            if (slice.getNode() >= 0) {
+                wrapped.add("--membind=" + slice.getNode());
+            }
+        } else if (taskset != null) {
+            wrapped.add(taskset);
+            wrapped.add("-c");
+            wrapped.add(slice.getCpuList());
+        }
+        wrapped.addAll(command);
+        return wrapped;
+    }
+
+    private static String findExecutable(String name) {
+        String path = System.getenv("PATH");
+        if (path == null) {
+            return null;
+        }
+        for (String dir : path.split(File.pathSeparator)) {
+            File file = new File(dir, name);
+            if (file.isFile() && file.canExecute()) {
+                return file.getPath();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return slices.size() + " slices of " + getThreadsPerSlice() + " CPUs through "
+                + (numactl != null ? "numactl" : taskset != null ? "taskset" : "nothing");
+    }
+}
@@ -0,0 +1,44 @@
+package com.stockfishweb.core.engine;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Result of a query running on a leased engine.
+ * <p>
+ * Cancelling the future sends {@code stop} to the engine, so a running search ends right away
+ * and the engine goes back to its pool instead of finishing work nobody waits for.
+ *
+ * @param <T> type of the result
+ */
+public class EngineFuture<T> extends CompletableFuture<T> {
+
+    private volatile EngineLease lease;
+
+    /**
+     * Binds the future to the lease currently running its query; a retry on another engine rebinds it.
+     */
+    void attach(EngineLease lease) {
+        this.lease = lease;
+        if (isCancelled()) {
+            stop(lease);
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        EngineLease current = lease;
+        if (cancelled && current != null) {
+            stop(current);
+        }
+        return cancelled;
+    }
+
+    private static void stop(EngineLease lease) {
+        try {
+            lease.sendIfHeld("stop");
+        } catch (RuntimeException e) {
+            // the engine is gone already, its lease is dropped on release
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.stockfishweb.core.engine;
+
+import java.util.function.Consumer;
+
+/**
+ * Exclusive hold on a single {@link Stockfish} process.
+ * <p>
+ * A lease is handed out by {@link StockfishClient#lease(com.stockfishweb.core.engine.enums.QueryType)}
+ * and must be closed once the UCI exchange is over, preferably with try-with-resources:
+ * <pre>
+ * try (EngineLease lease = client.lease(QueryType.Best_Move)) {
+ *     return lease.engine().getBestMove(query);
+ * }
+ * </pre>
+ * Closing is idempotent, the engine goes back to its owner exactly once.
+ */
+public class EngineLease implements AutoCloseable {
+
+    private final Stockfish engine;
+    private final Consumer<Stockfish> onRelease;
+    private volatile boolean released;
+
+    EngineLease(Stockfish engine, Consumer<Stockfish> onRelease) {
+        this.engine = engine;
+        this.onRelease = onRelease;
+    }
+
+    /**
+     * @return the leased engine, only to be used until this lease is closed
+     */
+    public Stockfish engine() {
+        return engine;
+    }
+
+    public boolean isReleased() {
+        return released;
+    }
+
+    /**
+     * Sends a command to the engine, unless the lease was already closed: once returned,
+     * the engine may be serving someone else.
+     *
+     * @param command UCI command, typically {@code stop}
+     * @return true if the command was sent
+     */
+    synchronized boolean sendIfHeld(String command) {
+        if (released) {
+            return false;
+        }
+        engine.sendCommand(command);
+        return true;
+    }
+
+    /**
+     * Returns the engine to its owner. Subsequent calls are no-ops.
+     */
+    @Override
+    public synchronized void close() {
+        if (!released) {
+            released = true;
+            onRelease.accept(engine);
+        }
+    }
+}
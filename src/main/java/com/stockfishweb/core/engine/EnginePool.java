@@ -0,0 +1,681 @@
+package com.stockfishweb.core.engine;
+
+import com.stockfishweb.core.engine.exception.StockfishEngineException;
+import com.stockfishweb.core.engine.exception.StockfishInitException;
+import com.stockfishweb.core.engine.exception.StockfishPoolException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded pool of {@link Stockfish} processes handing out exclusive {@link EngineLease}s.
+ * <p>
+ * Capacity is guarded by a fair {@link Semaphore}: one permit per engine that may ever be open,
+ * so waiting callers are served in FIFO order and a returned engine is handed straight to the
+ * longest waiter. Idle engines sit in a deque, which makes both lease and release O(1).
+ * <p>
+ * Engines are spawned either by {@link #maintain(int, long)}, which runs in the background to keep
+ * a number of idle engines warm, or as a last resort by a caller who got a permit and found no idle engine.
+ * Open slots are reserved before spawning, so the pool never grows beyond its maximum size.
+ * <p>
+ * Idle engines may also be lent for background work with {@link #tryLeaseSpeculative(Runnable)}. Such a lease
+ * never waits nor spawns, and is preempted as soon as a regular lease finds no idle engine.
+ * <p>
+ * On shutdown the pool is {@link #drain(long) drained}: no more speculative work is lent, and it waits for every
+ * lease to be returned before its engines are closed, all at once.
+ */
+public class EnginePool {
+
+    private static final Log log = LogFactory.getLog(EnginePool.class);
+
+    /**
+     * How long a returned engine may take to stop a search still running.
+     */
+    static final long SETTLE_TIMEOUT_MILLIS = 2000;
+
+    /**
+     * How often a drain checks the pool besides being told of every release.
+     */
+    private static final long DRAIN_CHECK_MILLIS = 100;
+
+    /**
+     * Creates a new engine process for the pool.
+     */
+    @FunctionalInterface
+    public interface EngineFactory {
+        Stockfish create() throws StockfishInitException;
+    }
+
+    private final String name;
+    private final EngineFactory factory;
+    private final PoolSemaphore permits;
+    private final BlockingDeque<Stockfish> idle = new LinkedBlockingDeque<>();
+    private final List<Stockfish> engines = new CopyOnWriteArrayList<>();
+    private final AtomicInteger openSlots = new AtomicInteger();
+
+    private volatile int maxSize;
+    private volatile int maxWaiting;
+
+    private volatile HashBudget hashBudget;
+
+    private volatile PositionRouter router;
+
+    /**
+     * Engines lent for speculative work, with what to run to get each back.
+     */
+    private final Map<Stockfish, Runnable> speculative = new ConcurrentHashMap<>();
+    private final LongAdder speculativeLeases = new LongAdder();
+    private final LongAdder preemptions = new LongAdder();
+
+    private final AtomicInteger leased = new AtomicInteger();
+    private volatile boolean draining;
+    private final Object drained = new Object();
+
+    /**
+     * @param name       pool name used in logs and error messages
+     * @param factory    engine factory
+     * @param maxSize    maximum number of engines open at the same time
+     * @param maxWaiting maximum number of callers allowed to queue for an engine, negative for unbounded
+     */
+    EnginePool(String name, EngineFactory factory, int maxSize, int maxWaiting) {
+        this.name = name;
+        this.factory = factory;
+        this.maxSize = maxSize;
+        this.maxWaiting = maxWaiting;
+        this.permits = new PoolSemaphore(maxSize);
+    }
+
+    /**
+     * Shares a hash budget between the engines of the pool, see {@link HashBudget}.
+     * Set it before the pool starts engines.
+     */
+    void setHashBudget(HashBudget hashBudget) {
+        this.hashBudget = hashBudget;
+    }
+
+    HashBudget getHashBudget() {
+        return hashBudget;
+    }
+
+    /**
+     * Routes searches to the idle engine that analyzed the closest position, see {@link PositionRouter}.
+     */
+    void setRouter(PositionRouter router) {
+        this.router = router;
+    }
+
+    PositionRouter getRouter() {
+        return router;
+    }
+
+    /**
+     * Spawns engines up front so the first requests do not pay for process start-up.
+     *
+     * @param count number of engines to start, capped by the pool size
+     * @throws StockfishInitException if an engine can not be started
+     */
+    void prestart(int count) throws StockfishInitException {
+        try {
+            prestartAsync(count).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof StockfishInitException) {
+                throw (StockfishInitException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Spawns engines up front, all at the same time, each on a thread of its own: start-up is mostly spent
+     * waiting for processes to load and answer their handshake, so it takes about as long for ten engines as
+     * for one. Engines are made idle as they become ready.
+     *
+     * @param count number of engines to start, capped by the pool size
+     * @return future completing once every engine is ready, or with the {@link StockfishInitException}
+     * of the first engine that could not be started, once the others are done
+     */
+    CompletableFuture<Void> prestartAsync(int count) {
+        List<CompletableFuture<Void>> starts = new ArrayList<>();
+        AtomicInteger threadNumber = new AtomicInteger();
+        while (openSlots.get() < count && reserveSlot()) {
+            starts.add(CompletableFuture.runAsync(() -> {
+                try {
+                    idle.offerLast(spawn());
+                } catch (StockfishInitException e) {
+                    throw new CompletionException(e);
+                }
+            }, r -> {
+                Thread thread = new Thread(r, name + "-engine-start-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                thread.start();
+            }));
+        }
+        CompletableFuture<Void> all = new CompletableFuture<>();
+        CompletableFuture.allOf(starts.toArray(new CompletableFuture[0])).whenComplete((done, e) -> {
+            for (CompletableFuture<Void> start : starts) {
+                if (start.isCompletedExceptionally()) {
+                    start.exceptionally(failure -> {
+                        all.completeExceptionally(failure instanceof CompletionException && failure.getCause() != null
+                                ? failure.getCause() : failure);
+                        return null;
+                    });
+                }
+            }
+            all.complete(null);
+        });
+        return all;
+    }
+
+    /**
+     * Leases an engine, waiting in FIFO order for at most {@code timeoutMillis}.
+     *
+     * @param timeoutMillis maximum time to wait for an engine to become available
+     * @return lease that must be closed to hand the engine back
+     * @throws StockfishPoolException if the wait queue is full, the timeout elapsed or a new engine could not be started
+     */
+    public EngineLease lease(long timeoutMillis) {
+        return lease(timeoutMillis, null);
+    }
+
+    /**
+     * Leases an engine for a search, preferring the idle engine whose last position is closest to the one to
+     * search when the pool has a {@link PositionRouter}.
+     *
+     * @param timeoutMillis maximum time to wait for an engine to become available
+     * @param fen           position the engine will search, null if it does not matter
+     * @return lease that must be closed to hand the engine back
+     * @throws StockfishPoolException if the wait queue is full, the timeout elapsed or a new engine could not be started
+     */
+    public EngineLease lease(long timeoutMillis, String fen) {
+        if (maxWaiting >= 0 && permits.availablePermits() == 0 && permits.getQueueLength() >= maxWaiting) {
+            throw new StockfishPoolException(name + " wait queue is full: " + permits.getQueueLength()
+                    + " callers waiting for " + maxSize + " engines");
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        if (permits.availablePermits() == 0) {
+            preemptSpeculative();
+        }
+        try {
+            if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new StockfishPoolException("Number Of Maximum Open Instances Exceeded: no " + name
+                        + " engine became available within " + timeoutMillis + " ms, " + maxSize + " threshold");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StockfishPoolException("Interrupted while waiting for " + name + " engine", e);
+        }
+
+        try {
+            Stockfish engine = takeRouted(fen);
+            if (engine == null) {
+                engine = takeIdle(deadline);
+            }
+            engine.setBusy(true);
+            leased.incrementAndGet();
+            return new EngineLease(engine, this::release);
+        } catch (StockfishInitException e) {
+            permits.release();
+            throw new StockfishPoolException("Unable to start " + name + " engine", e);
+        } catch (InterruptedException e) {
+            permits.release();
+            Thread.currentThread().interrupt();
+            throw new StockfishPoolException("Interrupted while waiting for " + name + " engine", e);
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Lends an idle engine for work nobody waits for, such as analyzing positions likely to be asked for next.
+     * The engine is only lent if it is idle right away and no one is queuing, and the pool takes it back as soon
+     * as a regular lease finds no idle engine: {@code preempt} is then run, and must end the work quickly,
+     * typically by cancelling its {@link EngineFuture}, which stops the search. The lease is closed as usual.
+     *
+     * @param preempt stops the work done on the engine
+     * @return lease on the engine idle the longest, or null if there is none to spare or the pool is draining
+     */
+    EngineLease tryLeaseSpeculative(Runnable preempt) {
+        if (draining || permits.getQueueLength() > 0 || idle.isEmpty() || !permits.tryAcquire()) {
+            return null;
+        }
+        Stockfish engine = idle.pollLast();
+        while (engine != null && engine.isDead()) {
+            discard(engine);
+            engine = idle.pollLast();
+        }
+        if (engine == null) {
+            permits.release();
+            return null;
+        }
+        engine.setBusy(true);
+        leased.incrementAndGet();
+        speculative.put(engine, preempt);
+        speculativeLeases.increment();
+        return new EngineLease(engine, this::release);
+    }
+
+    /**
+     * Takes back one engine lent for speculative work.
+     *
+     * @return true if one was preempted, and is about to be released
+     */
+    private boolean preemptSpeculative() {
+        for (Stockfish engine : speculative.keySet()) {
+            Runnable preempt = speculative.remove(engine);
+            if (preempt != null) {
+                preemptions.increment();
+                try {
+                    preempt.run();
+                } catch (RuntimeException e) {
+                    log.warn("Unable to preempt speculative work on " + name + " engine", e);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Takes the idle engine the router picked for the position, handing it its route. With no engine close
+     * enough, takes the engine idle the longest instead, so the engines most recently searching keep their
+     * analysis for the positions following theirs.
+     *
+     * @return the engine, or null to take any
+     */
+    private Stockfish takeRouted(String fen) {
+        PositionRouter positionRouter = router;
+        if (positionRouter == null || fen == null || idle.isEmpty()) {
+            return null;
+        }
+        PositionRouter.Route route = positionRouter.route(new ArrayList<>(idle), fen);
+        Stockfish engine;
+        if (route == null) {
+            engine = idle.pollLast();
+        } else {
+            engine = idle.remove(route.getEngine()) ? route.getEngine() : null;
+        }
+        if (engine == null) {
+            return null;
+        }
+        if (engine.isDead()) {
+            discard(engine);
+            return null;
+        }
+        if (route != null) {
+            engine.setRoute(route);
+        }
+        return engine;
+    }
+
+    /**
+     * Takes a live idle engine, spawning one if there is room. Holding a permit guarantees that fewer than
+     * {@code maxSize} engines are leased, so when no slot can be reserved an engine is either idle
+     * or about to become idle, being spawned in the background.
+     */
+    private Stockfish takeIdle(long deadline) throws StockfishInitException, InterruptedException {
+        while (true) {
+            Stockfish engine = idle.pollFirst();
+            if (engine == null && preemptSpeculative()) {
+                // a stopped search hands its engine back within milliseconds, sooner than a new one starts
+                long settle = Math.min(deadline - System.nanoTime(), TimeUnit.MILLISECONDS.toNanos(SETTLE_TIMEOUT_MILLIS));
+                engine = idle.pollFirst(Math.max(0, settle), TimeUnit.NANOSECONDS);
+            }
+            if (engine == null) {
+                if (reserveSlot()) {
+                    log.debug("Creating a new " + name + " engine...");
+                    return spawn();
+                }
+                engine = idle.pollFirst(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if (engine == null) {
+                    throw new StockfishPoolException("No idle " + name + " engine appeared before the deadline");
+                }
+            }
+            if (!engine.isDead()) {
+                return engine;
+            }
+            discard(engine);
+        }
+    }
+
+    /**
+     * Puts a leased engine back in front of the idle deque, so the most recently used engine is reused first,
+     * and hands the permit to the next waiter. Dead engines, and engines that could not be settled
+     * for the next exchange, are dropped instead.
+     */
+    private void release(Stockfish engine) {
+        speculative.remove(engine);
+        engine.setBusy(false);
+        engine.markIdle();
+        if (engine.isDead()) {
+            discard(engine);
+        } else if (!engine.settle(SETTLE_TIMEOUT_MILLIS)) {
+            log.warn(name + " engine " + engine.getProcess().pid() + " is out of sync with its output, closing it");
+            discard(engine);
+        } else {
+            if (rebalance(engine)) {
+                idle.offerFirst(engine);
+            }
+        }
+        leased.decrementAndGet();
+        permits.release();
+        if (draining) {
+            synchronized (drained) {
+                drained.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Moves an engine nobody holds to its hash share.
+     *
+     * @return false if the engine failed and was dropped
+     */
+    private boolean rebalance(Stockfish engine) {
+        if (hashBudget == null) {
+            return true;
+        }
+        try {
+            engine.setHash(hashBudget.rebalance(engine));
+            return true;
+        } catch (StockfishEngineException e) {
+            log.warn("Unable to resize the hash of " + name + " engine " + engine.getProcess().pid(), e);
+            discard(engine);
+            return false;
+        }
+    }
+
+    private boolean reserveSlot() {
+        int open;
+        do {
+            open = openSlots.get();
+            if (open >= maxSize) {
+                return false;
+            }
+        } while (!openSlots.compareAndSet(open, open + 1));
+        return true;
+    }
+
+    /**
+     * Starts an engine in a previously reserved slot and confirms it took its options, see {@link Stockfish#handshake()}.
+     */
+    private Stockfish spawn() throws StockfishInitException {
+        Stockfish engine;
+        try {
+            engine = factory.create();
+        } catch (StockfishInitException | RuntimeException e) {
+            openSlots.decrementAndGet();
+            throw e;
+        }
+        try {
+            if (hashBudget != null) {
+                engine.setHash(hashBudget.admit(engine));
+            }
+            engine.handshake();
+        } catch (StockfishEngineException e) {
+            openSlots.decrementAndGet();
+            if (hashBudget != null) {
+                hashBudget.remove(engine);
+            }
+            engine.cleanup();
+            throw new StockfishInitException("Stockfish process did not become ready", e);
+        }
+        engine.markIdle();
+        engines.add(engine);
+        return engine;
+    }
+
+    private void discard(Stockfish engine) {
+        if (hashBudget != null) {
+            hashBudget.remove(engine);
+        }
+        if (engines.remove(engine)) {
+            openSlots.decrementAndGet();
+            if (engine.isDead()) {
+                log.warn(name + " engine " + engine.getProcess().pid() + " died with " + engine.getProcess().exitValue());
+            }
+        }
+        idle.remove(engine);
+        engine.cleanup();
+    }
+
+    /**
+     * Housekeeping run by the client's maintenance scheduler, off the request path:
+     * drops dead engines, closes engines idle for longer than {@code idleTtlMillis} as long as more than
+     * {@code minIdle} are idle, and spawns engines until {@code minIdle} are idle again.
+     *
+     * @param minIdle       number of idle engines to keep warm, capped by the pool size
+     * @param idleTtlMillis idle time after which an engine is evicted, zero or negative to never evict
+     */
+    void maintain(int minIdle, long idleTtlMillis) {
+        pruneDead();
+
+        if (idleTtlMillis > 0) {
+            long now = System.currentTimeMillis();
+            // least recently used engines are at the tail
+            Iterator<Stockfish> lru = idle.descendingIterator();
+            while (lru.hasNext() && idle.size() > minIdle) {
+                Stockfish engine = lru.next();
+                if (now - engine.getIdleSince() > idleTtlMillis && idle.remove(engine)) {
+                    log.info("Evicting " + name + " engine " + engine.getProcess().pid() + " idle for "
+                            + (now - engine.getIdleSince()) + " ms");
+                    discard(engine);
+                }
+            }
+        }
+
+        while (idle.size() < minIdle && reserveSlot()) {
+            try {
+                idle.offerLast(spawn());
+            } catch (StockfishInitException e) {
+                log.error("Unable to pre-start " + name + " engine", e);
+                return;
+            }
+        }
+
+        rebalanceIdle();
+    }
+
+    /**
+     * Moves idle engines to their hash share, taking each out of the idle deque while it is resized so that
+     * it is not leased in the meantime. Engines grow here once others were evicted, and the shrinking of
+     * engines that were busy when the pool grew is done on release.
+     */
+    private void rebalanceIdle() {
+        HashBudget budget = hashBudget;
+        if (budget == null) {
+            return;
+        }
+        for (Stockfish engine : new ArrayList<>(idle)) {
+            if (budget.isUnbalanced(engine) && idle.remove(engine)) {
+                if (rebalance(engine)) {
+                    idle.offerLast(engine);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes engines whose process is no longer alive. Leased engines are left to their holders
+     * and dropped on release.
+     *
+     * @return engines that were removed
+     */
+    List<Stockfish> pruneDead() {
+        List<Stockfish> dead = new ArrayList<>();
+        for (Stockfish engine : engines) {
+            if (engine.isDead() && idle.remove(engine)) {
+                dead.add(engine);
+                discard(engine);
+            }
+        }
+        return dead;
+    }
+
+    /**
+     * Changes the pool capacity. Shrinking does not close engines already open,
+     * it only stops handing out permits until enough leases are returned.
+     *
+     * @param newMaxSize maximum number of engines open at the same time
+     */
+    synchronized void resize(int newMaxSize) {
+        int delta = newMaxSize - maxSize;
+        if (delta > 0) {
+            permits.release(delta);
+        } else if (delta < 0) {
+            permits.reducePermits(-delta);
+        }
+        maxSize = newMaxSize;
+    }
+
+    void setMaxWaiting(int maxWaiting) {
+        this.maxWaiting = maxWaiting;
+    }
+
+    /**
+     * @return snapshot of all engines owned by the pool, leased or idle, in creation order
+     */
+    List<Stockfish> getEngines() {
+        return new ArrayList<>(engines);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getOpenCount() {
+        return engines.size();
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public int getWaitingCount() {
+        return permits.getQueueLength();
+    }
+
+    /**
+     * @return number of engines currently lent for speculative work
+     */
+    public int getSpeculativeCount() {
+        return speculative.size();
+    }
+
+    /**
+     * @return speculative leases handed out and preempted since the pool started
+     */
+    Map<String, Object> getSpeculativeStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("running", speculative.size());
+        stats.put("leases", speculativeLeases.sum());
+        stats.put("preemptions", preemptions.sum());
+        return stats;
+    }
+
+    /**
+     * Stops lending engines for speculative work and takes back those lent, then waits until every lease is
+     * returned and no caller is queuing. Regular leases are still handed out meanwhile, so callers already
+     * queuing get their engine.
+     *
+     * @param timeoutMillis how long to wait
+     * @return true if the pool drained in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean drain(long timeoutMillis) throws InterruptedException {
+        draining = true;
+        while (preemptSpeculative()) {
+            // every engine lent is stopped, each comes back on release
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (drained) {
+            while (leased.get() > 0 || permits.getQueueLength() > 0) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    return false;
+                }
+                // a caller giving up on its wait is not notified
+                drained.wait(Math.min(remaining, DRAIN_CHECK_MILLIS));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sends {@code stop} to every engine searching, whose holder then gets the best move found so far.
+     */
+    void stopSearches() {
+        for (Stockfish engine : engines) {
+            engine.stopSearch();
+        }
+    }
+
+    /**
+     * @return number of engines currently leased, speculative leases included
+     */
+    public int getLeasedCount() {
+        return leased.get();
+    }
+
+    /**
+     * Closes every engine of the pool, leased ones included, all at once: each engine is given up to a second
+     * to exit after {@code quit} before it is killed, which would add up closing them one after the other.
+     */
+    void close() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        CompletableFuture.allOf(engines.stream().map(engine -> CompletableFuture.runAsync(() -> {
+            try {
+                log.debug("Closing " + name + " engine " + engine.getProcess().pid());
+                engine.close();
+            } catch (IOException | StockfishEngineException e) {
+                log.error("Unable to close " + name + " engine " + engine.getProcess().pid()
+                        + ", it may have to be killed manually", e);
+            }
+        }, r -> {
+            Thread thread = new Thread(r, name + "-engine-close-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            thread.start();
+        })).toArray(CompletableFuture[]::new)).join();
+        idle.clear();
+        engines.clear();
+        openSlots.set(0);
+        if (hashBudget != null) {
+            hashBudget.clear();
+        }
+    }
+
+    /**
+     * Fair semaphore whose permit count can be lowered at runtime.
+     */
+    private static class PoolSemaphore extends Semaphore {
+        PoolSemaphore(int permits) {
+            super(permits, true);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.stockfishweb.core.engine;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks every in-flight UCI exchange against a deadline.
+ * <p>
+ * Callers wait for engine output with a timeout generous enough for the deepest search, so a wedged process
+ * would still hold the calling thread and its pool slot for a long time. When an exchange misses its deadline
+ * the watchdog first sends {@code stop}, which makes a running search print its {@code bestmove} right away.
+ * If the engine still has not answered after the kill grace period, its process is destroyed: the pending wait
+ * then fails, the caller gets a {@link com.stockfishweb.core.engine.exception.StockfishEngineException} and the
+ * dead engine is dropped by its pool when the lease is closed, which gives the slot back.
+ */
+public class EngineWatchdog {
+
+    private static final Log log = LogFactory.getLog(EngineWatchdog.class);
+
+    private final long killGraceMillis;
+    private final Set<Exchange> inFlight = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicLong exchanges = new AtomicLong();
+    private final AtomicLong stopsSent = new AtomicLong();
+    private final AtomicLong killed = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param checkIntervalMillis how often deadlines are checked
+     * @param killGraceMillis     how long an engine may take to answer {@code stop} before it is killed
+     */
+    EngineWatchdog(long checkIntervalMillis, long killGraceMillis) {
+        this.killGraceMillis = killGraceMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "engine-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::check, checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts watching an exchange. The returned handle must be closed when the exchange is over.
+     *
+     * @param engine        engine running the exchange
+     * @param timeoutMillis time the engine has to answer
+     * @return handle of the watched exchange
+     */
+    Exchange watch(Stockfish engine, long timeoutMillis) {
+        Exchange exchange = new Exchange(engine, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+        exchanges.incrementAndGet();
+        inFlight.add(exchange);
+        return exchange;
+    }
+
+    void check() {
+        long now = System.nanoTime();
+        for (Exchange exchange : inFlight) {
+            try {
+                exchange.check(now);
+            } catch (RuntimeException e) {
+                log.error("Watchdog check failed", e);
+            }
+        }
+    }
+
+    void recordRetry() {
+        retried.incrementAndGet();
+    }
+
+    void recordFailure() {
+        failed.incrementAndGet();
+    }
+
+    public long getStopsSent() {
+        return stopsSent.get();
+    }
+
+    public long getKilled() {
+        return killed.get();
+    }
+
+    public long getRetried() {
+        return retried.get();
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("exchanges", exchanges.get());
+        stats.put("inFlight", inFlight.size());
+        stats.put("deadlinesMissed", stopsSent.get());
+        stats.put("enginesKilled", killed.get());
+        stats.put("retried", retried.get());
+        stats.put("failed", failed.get());
+        return stats;
+    }
+
+    void close() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * A single watched UCI exchange.
+     */
+    class Exchange implements AutoCloseable {
+        private final Stockfish engine;
+        private final long deadline;
+        private volatile boolean stopped;
+        private volatile boolean killedByWatchdog;
+        private boolean closed;
+
+        private Exchange(Stockfish engine, long deadline) {
+            this.engine = engine;
+            this.deadline = deadline;
+        }
+
+        private synchronized void check(long now) {
+            // once closed, the engine may already be leased to another request
+            if (closed || now - deadline < 0) {
+                return;
+            }
+            if (!stopped) {
+                stopped = true;
+                stopsSent.incrementAndGet();
+                log.warn("Engine " + engine.getProcess().pid() + " missed its deadline, sending stop");
+                try {
+                    engine.sendCommand("stop");
+                } catch (RuntimeException e) {
+                    log.warn("Unable to send stop to engine " + engine.getProcess().pid(), e);
+                }
+            } else if (!killedByWatchdog && now - deadline - TimeUnit.MILLISECONDS.toNanos(killGraceMillis) >= 0) {
+                killedByWatchdog = true;
+                killed.incrementAndGet();
+                log.error("Engine " + engine.getProcess().pid() + " ignored stop, killing it");
+                engine.getProcess().destroyForcibly();
+            }
+        }
+
+        /**
+         * @return true if the watchdog had to send {@code stop}
+         */
+        boolean isStopped() {
+            return stopped;
+        }
+
+        /**
+         * @return true if the watchdog had to kill the engine process
+         */
+        boolean isKilled() {
+            return killedByWatchdog;
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            inFlight.remove(this);
+        }
+    }
+}
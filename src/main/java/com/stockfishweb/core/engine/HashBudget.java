@@ -0,0 +1,174 @@
+package com.stockfishweb.core.engine;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Transposition table memory shared by the engines of a pool: every live engine is given an equal share of
+ * a single budget, so a pool of one gets all of it and a pool of ten never takes more.
+ * <p>
+ * Shares change as engines start and go. An engine is only resized while nobody holds it, which may be some time
+ * after the change, so a share shrinks right away but only grows into memory already given back by the others.
+ * The sum of the shares never exceeds the budget, but for the 1 MB every engine needs at least.
+ */
+class HashBudget {
+
+    private static final Log log = LogFactory.getLog(HashBudget.class);
+
+    /**
+     * Memory an engine process takes besides its hash, for the cgroup check.
+     */
+    static final long ENGINE_OVERHEAD_MB = 32;
+
+    /**
+     * Smallest and largest Hash Stockfish accepts.
+     */
+    private static final long MIN_HASH_MB = 1;
+    private static final long MAX_HASH_MB = 131072;
+
+    private static final List<Path> CGROUP_LIMITS = List.of(
+            Paths.get("/sys/fs/cgroup/memory.max"),
+            Paths.get("/sys/fs/cgroup/memory/memory.limit_in_bytes"));
+
+    private final long budgetMb;
+
+    /**
+     * Hash size given to every live engine.
+     */
+    private final Map<Stockfish, Long> shares = new ConcurrentHashMap<>();
+
+    HashBudget(long budgetMb) {
+        this.budgetMb = budgetMb;
+    }
+
+    /**
+     * Checks a budget against the memory limit of the container, if any, leaving room for the JVM heap and
+     * for the engine processes themselves.
+     *
+     * @param budgetMb  configured budget
+     * @param maxEngines most engines of any kind that may be open at the same time
+     * @return the budget, lowered to what fits in the container
+     */
+    static long fitToMemoryLimit(long budgetMb, int maxEngines) {
+        long limit = cgroupMemoryLimit(CGROUP_LIMITS);
+        if (limit <= 0) {
+            return budgetMb;
+        }
+        long available = limit / (1024 * 1024) - Runtime.getRuntime().maxMemory() / (1024 * 1024)
+                - (long) maxEngines * ENGINE_OVERHEAD_MB;
+        if (budgetMb > available) {
+            long fitted = Math.max(MIN_HASH_MB, available);
+            log.warn("Hash budget of " + budgetMb + " MB does not fit the " + limit / (1024 * 1024)
+                    + " MB memory limit of the container, lowering it to " + fitted + " MB");
+            return fitted;
+        }
+        return budgetMb;
+    }
+
+    /**
+     * @return memory limit in bytes from the first cgroup file found, 0 if there is no limit
+     */
+    static long cgroupMemoryLimit(List<Path> files) {
+        for (Path file : files) {
+            try {
+                String value = Files.readString(file).trim();
+                if (value.equals("max")) {
+                    return 0;
+                }
+                long limit = Long.parseLong(value);
+                // cgroup v1 reports no limit as a number close to Long.MAX_VALUE
+                return limit >= Long.MAX_VALUE / 2 ? 0 : limit;
+            } catch (IOException | NumberFormatException e) {
+                // try the next cgroup version
+            }
+        }
+        return 0;
+    }
+
+    long getBudgetMb() {
+        return budgetMb;
+    }
+
+    /**
+     * @return the equal share every live engine is heading to
+     */
+    private long target() {
+        return clamp(budgetMb / Math.max(1, shares.size()));
+    }
+
+    private long allocated() {
+        long sum = 0;
+        for (long share : shares.values()) {
+            sum += share;
+        }
+        return sum;
+    }
+
+    /**
+     * Gives a starting engine its share, out of the memory not held by the others.
+     *
+     * @return hash size to set on the engine
+     */
+    synchronized long admit(Stockfish engine) {
+        long free = budgetMb - allocated();
+        shares.put(engine, 0L);
+        long share = clamp(Math.min(target(), free));
+        shares.put(engine, share);
+        return share;
+    }
+
+    /**
+     * Moves the share of an engine nobody holds toward the target.
+     *
+     * @return new hash size to set on the engine, or the current one if it does not change
+     */
+    synchronized long rebalance(Stockfish engine) {
+        Long current = shares.get(engine);
+        if (current == null) {
+            return admit(engine);
+        }
+        long target = target();
+        long share = target < current
+                ? target
+                : clamp(Math.min(target, current + budgetMb - allocated()));
+        shares.put(engine, share);
+        return share;
+    }
+
+    /**
+     * @return true if the engine is not at its target share
+     */
+    boolean isUnbalanced(Stockfish engine) {
+        Long current = shares.get(engine);
+        return current != null && current != target();
+    }
+
+    void remove(Stockfish engine) {
+        shares.remove(engine);
+    }
+
+    void clear() {
+        shares.clear();
+    }
+
+    private static long clamp(long mb) {
+        return Math.max(MIN_HASH_MB, Math.min(MAX_HASH_MB, mb));
+    }
+
+    Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("budgetMb", budgetMb);
+        stats.put("allocatedMb", allocated());
+        stats.put("engines", shares.size());
+        return stats;
+    }
+}
@@ -0,0 +1,184 @@
+package com.stockfishweb.core.engine;
+
+import com.stockfishweb.core.engine.board.Board;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends a search to the engine that last analyzed a nearby position, so its transposition table is reused.
+ * <p>
+ * Someone stepping through a game asks for one position after another, each a ply or two away from the previous.
+ * Any idle engine would do, but only the one that searched the previous position has its subtree in the hash,
+ * and it reaches the new position from the previous one with {@code position fen <previous> moves <m1> <m2>},
+ * which also gives it the game history for repetitions.
+ * <p>
+ * Hits, and the depth per second of routed searches against cold ones, are reported in the stats.
+ */
+class PositionRouter {
+
+    private static final Log log = LogFactory.getLog(PositionRouter.class);
+
+    private final int maxPlies;
+
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder[] hits;
+    private final SearchCounters routed = new SearchCounters();
+    private final SearchCounters cold = new SearchCounters();
+
+    /**
+     * @param maxPlies most moves between the position an engine analyzed and the one routed to it
+     */
+    PositionRouter(int maxPlies) {
+        this.maxPlies = maxPlies;
+        this.hits = new LongAdder[maxPlies + 1];
+        for (int i = 0; i < hits.length; i++) {
+            hits[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Picks the engine whose last position is the fewest moves away from the one to search.
+     *
+     * @param candidates idle engines
+     * @param fen        position to search
+     * @return the route to the closest engine, null if none is within reach
+     */
+    Route route(List<Stockfish> candidates, String fen) {
+        lookups.increment();
+        Board target;
+        try {
+            target = Board.fromFen(fen);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        Route best = null;
+        for (Stockfish engine : candidates) {
+            String lastFen = engine.getLastFen();
+            if (lastFen == null) {
+                continue;
+            }
+            if (lastFen.equals(fen)) {
+                best = new Route(engine, lastFen, fen, new int[0]);
+                break;
+            }
+            int[] path;
+            try {
+                path = Board.fromFen(lastFen).pathTo(target, best == null ? maxPlies : best.getPlies() - 1);
+            } catch (IllegalArgumentException e) {
+                log.debug("Engine position can not be read: " + lastFen);
+                continue;
+            }
+            if (path != null) {
+                best = new Route(engine, lastFen, fen, path);
+                if (path.length == 0) {
+                    break;
+                }
+            }
+        }
+        if (best != null) {
+            hits[best.getPlies()].increment();
+        }
+        return best;
+    }
+
+    /**
+     * Accounts for a finished search, see {@link Stockfish#isLastSearchRouted()}.
+     */
+    void recordSearch(boolean wasRouted, UCIInfo info) {
+        (wasRouted ? routed : cold).add(info);
+    }
+
+    Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long lookupCount = lookups.sum();
+        long hitCount = 0;
+        List<Long> hitsByPlies = new ArrayList<>(hits.length);
+        for (LongAdder hit : hits) {
+            hitCount += hit.sum();
+            hitsByPlies.add(hit.sum());
+        }
+        stats.put("maxPlies", maxPlies);
+        stats.put("lookups", lookupCount);
+        stats.put("hits", hitCount);
+        stats.put("hitRate", lookupCount == 0 ? 0.0 : (double) hitCount / lookupCount);
+        stats.put("hitsByPlies", hitsByPlies);
+        stats.put("routedSearches", routed.getStats());
+        stats.put("coldSearches", cold.getStats());
+        return stats;
+    }
+
+    /**
+     * Engine picked for a search, with the moves leading from its last position to the one to search.
+     */
+    static class Route {
+        private final Stockfish engine;
+        private final String from;
+        private final String target;
+        private final int[] moves;
+
+        Route(Stockfish engine, String from, String target, int[] moves) {
+            this.engine = engine;
+            this.from = from;
+            this.target = target;
+            this.moves = moves;
+        }
+
+        Stockfish getEngine() {
+            return engine;
+        }
+
+        String getTarget() {
+            return target;
+        }
+
+        int getPlies() {
+            return moves.length;
+        }
+
+        /**
+         * @return the {@code position} command reaching the target from the engine's last position
+         */
+        String positionCommand() {
+            if (moves.length == 0) {
+                return "position fen " + target;
+            }
+            StringBuilder command = new StringBuilder("position fen ").append(from).append(" moves");
+            for (int move : moves) {
+                UCIInfo.appendMove(command.append(' '), move);
+            }
+            return command.toString();
+        }
+    }
+
+    private static class SearchCounters {
+        private final LongAdder searches = new LongAdder();
+        private final LongAdder depth = new LongAdder();
+        private final LongAdder millis = new LongAdder();
+
+        void add(UCIInfo info) {
+            if (info.getDepth() <= 0) {
+                return;
+            }
+            searches.increment();
+            depth.add(info.getDepth());
+            millis.add(info.getTime());
+        }
+
+        Map<String, Object> getStats() {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            long count = searches.sum(), totalMillis = millis.sum();
+            stats.put("searches", count);
+            stats.put("averageDepth", count == 0 ? 0.0 : (double) depth.sum() / count);
+            stats.put("averageMillis", count == 0 ? 0.0 : (double) totalMillis / count);
+            stats.put("depthPerSecond", totalMillis == 0 ? 0.0 : depth.sum() * 1000.0 / totalMillis);
+            return stats;
+        }
+    }
+}
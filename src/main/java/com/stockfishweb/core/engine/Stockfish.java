@@ -19,20 +19,27 @@ package com.stockfishweb.core.engine;
 import com.stockfishweb.core.engine.enums.Option;
 import com.stockfishweb.core.engine.enums.Query;
 import com.stockfishweb.core.engine.enums.Variant;
+import com.stockfishweb.core.engine.exception.StockfishEngineException;
 import com.stockfishweb.core.engine.exception.StockfishInitException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
-
-import static com.stockfishweb.core.engine.enums.Query.Builder.MOVE_REGEX_PATTERN;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 public class Stockfish extends UCIEngine {
 
     private static final Log log = LogFactory.getLog(Stockfish.class);
 
+    /**
+     * How long {@link #close()} waits for the process to exit after {@code quit}, then again after killing it,
+     * so that a closed engine is really gone.
+     */
+    private static final long CLOSE_TIMEOUT_MILLIS = 1000;
+
     public Stockfish(String path, Variant variant, Option... options) throws StockfishInitException {
         super(path, variant, options);
     }
@@ -41,19 +48,89 @@ public class Stockfish extends UCIEngine {
         super(path, variant, engineVersion, options);
     }
 
-    String makeMove(Query query) {
-        waitForReady();
-        sendCommand("position fen " + query.getFen() + " moves " + query.getMove());
-        return getFen();
+    Stockfish(String path, Variant variant, Integer engineVersion, CpuAffinity affinity, Option... options)
+            throws StockfishInitException {
+        super(path, variant, engineVersion, affinity, options);
     }
 
-    String getCheckers(Query query) {
-        waitForReady();
-        sendCommand("position fen " + query.getFen());
+    /**
+     * Skill level last set on the engine, so it is only sent when it changes.
+     */
+    private int skillLevel = -1;
+
+    /**
+     * Number of lines the engine is set to report. Every search sets the number it needs,
+     * so a MultiPV search is undone by the next single line search on the same engine.
+     */
+    private int multiPv = 1;
+
+    /**
+     * Hash size set on the engine by its pool's {@link HashBudget}, 0 while it has the size of its options.
+     */
+    private long hashMb;
+
+    /**
+     * Root position of the last search, whose analysis the transposition table holds, null if there is none.
+     */
+    private volatile String lastFen;
+
+    /**
+     * Way from {@link #lastFen} to the position of the next search, set by the pool routing it here.
+     */
+    private volatile PositionRouter.Route route;
+
+    private volatile boolean lastSearchRouted;
+
+    /**
+     * Resizes the transposition table, which also clears it. Only sent when the size changes.
+     */
+    void setHash(long mb) {
+        if (mb != hashMb) {
+            sendCommand(Option.Hash.command(mb));
+            hashMb = mb;
+            // resizing cleared the table
+            lastFen = null;
+        }
+    }
 
-        waitForReady();
-        sendCommand("d");
+    long getHashMb() {
+        return hashMb;
+    }
+
+    /**
+     * Clears the transposition table and the search history with {@code ucinewgame}, keeping the memory of the
+     * table, so analysis done to warm the engine up does not weigh on the next searches.
+     */
+    void newGame() {
+        sendCommand("ucinewgame");
+        lastFen = null;
+    }
 
+    String getLastFen() {
+        return lastFen;
+    }
+
+    void setRoute(PositionRouter.Route route) {
+        this.route = route;
+    }
+
+    /**
+     * @return true if the last search was routed here and reached its position from the previous one
+     */
+    boolean isLastSearchRouted() {
+        return lastSearchRouted;
+    }
+
+    String makeMove(Query query) {
+        sendCommands("position fen " + query.getFen() + " moves " + query.getMove(), "d");
+        String fen = readLine("Fen: ").substring(5);
+        // Checkers ends the board display, the next command must not find its lines
+        readLine("Checkers: ");
+        return fen;
+    }
+
+    String getCheckers(Query query) {
+        sendCommands("position fen " + query.getFen(), "d");
         return readLine("Checkers: ").substring(10);
     }
 
@@ -61,14 +138,24 @@ public class Stockfish extends UCIEngine {
     void sendGoCommand(Query query) {
         query.normalize();
 
-        if (query.getDifficulty() >= 0) {
-            waitForReady();
-            sendCommand("setoption name Skill Level value " + query.getDifficulty());
+        List<String> commands = new ArrayList<>(3);
+        if (query.getDifficulty() >= 0 && query.getDifficulty() != skillLevel) {
+            commands.add(Option.Skill_Level.command(query.getDifficulty()));
+            skillLevel = query.getDifficulty();
+        }
+
+        int lines = Math.max(1, query.getMultiPv());
+        if (lines != multiPv) {
+            commands.add(Option.MultiPV.command(lines));
+            multiPv = lines;
         }
 
-        waitForReady();
         if (query.getFen() != null) {
-            sendCommand("position fen " + query.getFen());
+            PositionRouter.Route next = route;
+            route = null;
+            lastSearchRouted = next != null && next.getTarget().equals(query.getFen());
+            commands.add(lastSearchRouted ? next.positionCommand() : "position fen " + query.getFen());
+            lastFen = query.getFen();
         }
         StringBuilder command = new StringBuilder("go ");
 
@@ -78,9 +165,12 @@ public class Stockfish extends UCIEngine {
         if (query.getMovetime() > 0)
             command.append("movetime ").append(query.getMovetime());
 
-        waitForReady();
-        System.out.println(command);
-        sendCommand(command.toString());
+        if (query.getDepth() <= 0 && query.getMovetime() <= 0)
+            command.append("infinite");
+
+        log.debug(command);
+        commands.add(command.toString());
+        sendCommands(commands.toArray(new String[0]));
     }
 
     public String getBestMove(Query query) {
@@ -88,36 +178,67 @@ public class Stockfish extends UCIEngine {
         return readLine("bestmove").substring(9).split("\\s+")[0];
     }
 
+    /**
+     * @return the best move search in the legacy {@code mate|continuation} format
+     */
     public String getBestMoveFromContinuation(Query query) {
-        sendGoCommand(query);
-        String[] bestMoveAndContinuation = getBestMoveAndContinuation();
-        System.out.println(bestMoveAndContinuation[0] + ", " + bestMoveAndContinuation[1]);
-        Matcher bestMoveMatcher = MOVE_REGEX_PATTERN.matcher(bestMoveAndContinuation[0]);
-        Matcher continuationMatcher = MOVE_REGEX_PATTERN.matcher(bestMoveAndContinuation[1]);
-        if (bestMoveMatcher.find() && continuationMatcher.find()) {
-            String bestmove = continuationMatcher.group(0);
-            int mateIndex = bestMoveAndContinuation[1].indexOf("mate ");
-            String mate = "";
-            if (mateIndex > -1) {
-                int endOfmate = bestMoveAndContinuation[1].indexOf("mate ") + "mate ".length();
-                mate = bestMoveAndContinuation[1].substring( endOfmate, endOfmate + 2).trim();// e.g. "mate 2" or "mate 10"
-            }
-            return  mate + "|" + bestMoveAndContinuation[1].substring(bestMoveAndContinuation[1].indexOf(bestmove));
+        UCIInfo info = search(query, new UCIInfo());
+        if (info.getBestMove() == UCIInfo.NO_MOVE || (info.isMate() && info.getScore() == 0)) {
+            //stalemate or checkmate
+            return "0|none";
+        }
+        String mate = info.isMate() ? Integer.toString(info.getScore()) : "";
+        return mate + "|" + (info.getPvLength() > 0 ? info.pvToString() : UCIInfo.moveToString(info.getBestMove()));
+    }
 
-        } else {
-            //stalemate?
-            if("bestmove (none)".equals(bestMoveAndContinuation[0]) || bestMoveAndContinuation[1].contains("mate 0")){
-                return "0|none";
-            }
+    /**
+     * Runs a search and waits for its best move.
+     *
+     * @param query best move query
+     * @param into  info to fill, may be reused across searches
+     * @return {@code into}, holding the last scored line of the search and its best move
+     */
+    public UCIInfo search(Query query, UCIInfo into) {
+        return search(query, into, null);
+    }
+
+    /**
+     * Runs a search, reporting its progress as the engine prints it.
+     * A search with a {@link Query#getTimeBudget() time budget} is sent {@code stop} once the budget is spent.
+     *
+     * @param query    best move query
+     * @param into     info to fill, may be reused across searches
+     * @param progress called on the engine reader thread with every scored {@code info} line of the search,
+     *                 with an info that is reused once the call returns; null for none
+     * @return {@code into}, holding the last scored line of the search and its best move
+     */
+    public UCIInfo search(Query query, UCIInfo into, Consumer<UCIInfo> progress) {
+        setProgressListener(progress);
+        try {
+            long stopAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(query.getTimeBudget());
+            sendGoCommand(query);
+            return query.getTimeBudget() > 0 ? awaitBestMove(into, stopAt) : awaitBestMove(into);
+        } finally {
+            setProgressListener(null);
         }
-        return bestMoveAndContinuation[0].substring(9).split("\\s+")[0];
+    }
+
+    /**
+     * Runs a search reporting the {@link Query#getMultiPv() requested} number of best lines.
+     *
+     * @param query    best move query
+     * @param progress see {@link #search(Query, UCIInfo, Consumer)}
+     * @return the lines of the search, best first, the first one also holding its best move
+     */
+    public List<UCIInfo> searchLines(Query query, Consumer<UCIInfo> progress) {
+        List<UCIInfo> lines = new ArrayList<>(Math.max(1, query.getMultiPv()));
+        lines.add(search(query, new UCIInfo(), progress));
+        copyOtherLines(lines, query.getMultiPv());
+        return lines;
     }
 
     String getEval(Query query) {
-        waitForReady();
-        sendCommand("position fen " + query.getFen());
-        waitForReady();
-        sendCommand("eval");
+        sendCommands("position fen " + query.getFen(), "eval");
 
         String line = readLine(new String[] {"Total evaluation", "Final evaluation"});
         return line.split("\\s+")[2];
@@ -125,11 +246,7 @@ public class Stockfish extends UCIEngine {
 
 
     String getLegalMoves(Query query) {
-        waitForReady();
-        sendCommand("position fen " + query.getFen());
-
-        waitForReady();
-        sendCommand("go perft 1");
+        sendCommands("position fen " + query.getFen(), "go perft 1");
 
         StringBuilder legal = new StringBuilder();
         List<String> response = readResponse("Nodes");
@@ -141,18 +258,51 @@ public class Stockfish extends UCIEngine {
         return legal.toString();
     }
 
+    /**
+     * Asks the engine to quit, and only kills it if it did not exit within {@link #CLOSE_TIMEOUT_MILLIS}.
+     * The pipes are closed whether the engine was still running or not.
+     */
     void close() throws IOException {
-        if (process.isAlive()) {
+        try {
+            if (process.isAlive()) {
+                try {
+                    sendCommand("quit");
+                    output.close();
+                } finally {
+                    if (!exited()) {
+                        process.destroy();
+                        if (!exited()) {
+                            process.destroyForcibly();
+                            exited();
+                        }
+                    }
+                }
+            }
+        } finally {
             try {
-                sendCommand("quit");
+                output.close();
+            } catch (IOException e) {
+                // commands left unflushed to an engine already gone, the pipe is closed all the same
+                log.debug("Unflushed commands dropped on close: " + e.getMessage());
             } finally {
+                // the reader thread holds the input until the process is gone
                 input.close();
-                output.close();
-                process.destroy();
             }
         }
     }
 
+    /**
+     * @return whether the process exited within {@link #CLOSE_TIMEOUT_MILLIS}
+     */
+    private boolean exited() {
+        try {
+            return process.waitFor(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return !process.isAlive();
+        }
+    }
+
     public void cleanup() {
         try {
             close();
@@ -165,11 +315,4 @@ public class Stockfish extends UCIEngine {
         }
 
     }
-
-    private String getFen() {
-        waitForReady();
-        sendCommand("d");
-
-        return readLine("Fen: ").substring(5);
-    }
 }
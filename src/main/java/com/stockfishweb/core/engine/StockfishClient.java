@@ -14,6 +14,7 @@
  */
 package com.stockfishweb.core.engine;
 
+import com.stockfishweb.core.engine.board.Board;
 import com.stockfishweb.core.engine.enums.Option;
 import com.stockfishweb.core.engine.enums.Query;
 import com.stockfishweb.core.engine.enums.QueryType;
@@ -21,17 +22,31 @@ import com.stockfishweb.core.engine.enums.Variant;
 import com.stockfishweb.core.engine.exception.StockfishEngineException;
 import com.stockfishweb.core.engine.exception.StockfishInitException;
 import com.stockfishweb.core.engine.exception.StockfishPoolException;
+import com.stockfishweb.core.engine.util.CpuTopology;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
-import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
@@ -51,11 +66,14 @@ public class StockfishClient {
 
     private static final Log log = LogFactory.getLog(StockfishClient.class);
 
-    private List<Stockfish> engines;
+    private EnginePool engines;
 
     @Value("${evaluator.version}")
     private Integer evaluatorVersion = 10;
-    private Stockfish evaluator;
+
+    @Value("${evaluator.pool.size:1}")
+    private int evaluatorPoolSize = 1;
+    private EnginePool evaluators;
 
     @Value("${default.instances.number}")
     private int instances;
@@ -80,6 +98,90 @@ public class StockfishClient {
     @Value("${max.number.of.open.instances}")
     private int maxNumberOfOpenInstances;
 
+    @Value("${engine.pool.acquire.timeout.ms:2000}")
+    private long acquireTimeoutMillis = 2000;
+
+    @Value("${engine.pool.max.waiting:50}")
+    private int maxWaiting = 50;
+
+    @Value("${engine.pool.min.idle:1}")
+    private int minIdle = 1;
+
+    @Value("${engine.pool.idle.ttl.ms:300000}")
+    private long idleTtlMillis = 300000;
+
+    @Value("${engine.pool.maintenance.interval.ms:0}")
+    private long maintenanceIntervalMillis = 0;
+
+    private ScheduledExecutorService maintenance;
+
+    @Value("${engine.search.timeout.ms:30000}")
+    private long searchTimeoutMillis = 30000;
+
+    @Value("${engine.command.timeout.ms:5000}")
+    private long commandTimeoutMillis = 5000;
+
+    @Value("${engine.watchdog.kill.grace.ms:2000}")
+    private long killGraceMillis = 2000;
+
+    @Value("${engine.watchdog.retries:1}")
+    private int watchdogRetries = 1;
+
+    private EngineWatchdog watchdog;
+
+    /**
+     * {@code dedicated} runs engine exchanges on a bounded executor sized to the pools,
+     * {@code common-pool} on the shared ForkJoin common pool.
+     */
+    @Value("${engine.io.executor:dedicated}")
+    private String ioExecutorMode = "dedicated";
+
+    private Executor ioExecutor;
+
+    /**
+     * Answers {@link QueryType#Legal_Moves}, {@link QueryType#Checkers} and {@link QueryType#Make_Move}
+     * with the in-JVM {@link Board} instead of leasing an engine.
+     */
+    @Value("${engine.board.queries.in.jvm:true}")
+    private boolean boardQueriesInJvm = true;
+
+    /**
+     * Pins every search engine to its own slice of {@code Threads} CPUs, see {@link CpuAffinity}. The number of
+     * search engines is then capped to the number of slices, so searches never compete for a core.
+     */
+    @Value("${engine.cpu.affinity:false}")
+    private boolean cpuAffinity = false;
+
+    private CpuAffinity affinity;
+
+    /**
+     * Transposition table memory of all search engines together, split evenly between the engines alive,
+     * see {@link HashBudget}. It takes over from the {@link Option#Hash} option, 0 keeps that option instead.
+     */
+    @Value("${engine.hash.budget.mb:0}")
+    private long hashBudgetMb = 0;
+
+    /**
+     * Most moves between the position a search engine last analyzed and the next one it is routed, see
+     * {@link PositionRouter}. A negative value leases any idle engine instead.
+     */
+    @Value("${engine.routing.max.plies:2}")
+    private int routingMaxPlies = 2;
+
+    private PositionRouter router;
+
+    /**
+     * Starts the engines in the background, so the application comes up right away and reports itself ready,
+     * see {@link #isReady()}, once every engine answered its handshake. Otherwise the client is only built
+     * once they did.
+     */
+    @Value("${engine.startup.background:true}")
+    private boolean startInBackground = true;
+
+    private volatile CompletableFuture<Void> startup = new CompletableFuture<>();
+    private volatile long startupMillis = -1;
+    private volatile boolean draining;
+
     public StockfishClient()  {
 
     }
@@ -92,13 +194,7 @@ public class StockfishClient {
             return o;
         }).collect(Collectors.toSet());
 
-        engines = new LinkedList<>();
-
-        for (int i = 0; i < instances; i++) {
-            engines.add(new Stockfish(path, variant, options.toArray(new Option[0])));
-        }
-        evaluator = new Stockfish(path, variant, evaluatorVersion, options.toArray(new Option[0]));
-        engines.add(evaluator);
+        startEngines();
     }
 
     /**
@@ -106,23 +202,235 @@ public class StockfishClient {
      *
      * @param path      path to folder with Stockfish core (default assets/engine)
      * @param instances number of Stockfish core that will be launched to process requests asynchronously
+     * @param maxInstances maximum number of Stockfish core open at the same time
+     * @param evaluators number of evaluator engines
      * @param variant   variant of Stockfish core, see {@link com.stockfishweb.core.engine.enums.Variant} enum
      * @param options   Stockfish launch options, see {@link com.stockfishweb.core.engine.enums.Option} enum
+     * @param minIdle   number of idle engines kept warm by the background maintenance
+     * @param idleTtlMillis idle time after which surplus engines are closed
+     * @param maintenanceIntervalMillis delay between maintenance runs, 0 disables the maintenance
+     * @param cpuAffinity pins search engines to disjoint CPU slices
+     * @param hashBudgetMb hash memory split between the search engines, 0 for the Hash option of each
+     * @param routingMaxPlies most moves a search is routed over to the engine of a nearby position, negative disables it
+     * @param startInBackground returns before the engines are ready, see {@link #isReady()}
      * @throws StockfishInitException throws if Stockfish process can not be initialized, starter or bind
      */
 
-    private StockfishClient(String path, int instances, Variant variant, Set<Option> options) throws StockfishInitException {
+    private StockfishClient(String path, int instances, int maxInstances, int evaluators, Variant variant, Set<Option> options,
+                            int minIdle, long idleTtlMillis, long maintenanceIntervalMillis, boolean cpuAffinity,
+                            long hashBudgetMb, int routingMaxPlies, boolean startInBackground)
+            throws StockfishInitException {
+        this.startInBackground = startInBackground;
+        this.routingMaxPlies = routingMaxPlies;
+        this.cpuAffinity = cpuAffinity;
+        this.hashBudgetMb = hashBudgetMb;
+        this.minIdle = minIdle;
+        this.idleTtlMillis = idleTtlMillis;
+        this.maintenanceIntervalMillis = maintenanceIntervalMillis;
         this.path = path;
+        this.instances = instances;
+        this.maxNumberOfOpenInstances = maxInstances;
+        this.evaluatorPoolSize = evaluators;
         this.variant = variant;
         this.options = options;
 
-        engines = new LinkedList<>();
-        for (int i = 0; i < instances; i++) {
-            engines.add(new Stockfish(path, variant, options.toArray(new Option[0])));
+        startEngines();
+    }
+
+    private void startEngines() throws StockfishInitException {
+        if (cpuAffinity) {
+            startAffinity();
+        }
+        Option[] searchOptions = hashBudgetMb > 0
+                ? options.stream().filter(o -> o != Option.Hash).toArray(Option[]::new)
+                : options.toArray(new Option[0]);
+        engines = new EnginePool("search",
+                () -> withReadTimeout(new Stockfish(path, variant, null, affinity, searchOptions)),
+                Math.max(instances, maxNumberOfOpenInstances), maxWaiting);
+        if (hashBudgetMb > 0) {
+            int maxEngines = engines.getMaxSize() + Math.max(1, evaluatorPoolSize);
+            engines.setHashBudget(new HashBudget(HashBudget.fitToMemoryLimit(hashBudgetMb, maxEngines)));
+        }
+        if (routingMaxPlies >= 0) {
+            router = new PositionRouter(routingMaxPlies);
+            engines.setRouter(router);
+        }
+
+        evaluators = new EnginePool("evaluator",
+                () -> withReadTimeout(new Stockfish(path, variant, evaluatorVersion, options.toArray(new Option[0]))),
+                Math.max(1, evaluatorPoolSize), maxWaiting);
+
+        watchdog = new EngineWatchdog(200, killGraceMillis);
+        ioExecutor = createIoExecutor();
+
+        if (maintenanceIntervalMillis > 0) {
+            maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "engine-pool-maintenance");
+                thread.setDaemon(true);
+                return thread;
+            });
+            maintenance.scheduleWithFixedDelay(this::maintainPools,
+                    maintenanceIntervalMillis, maintenanceIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+
+        prestartEngines();
+    }
+
+    /**
+     * Starts the search engines and the first evaluator all in parallel, then waits for them to be ready
+     * unless they are started in the background.
+     */
+    private void prestartEngines() throws StockfishInitException {
+        long start = System.nanoTime();
+        startup = CompletableFuture.allOf(engines.prestartAsync(instances), evaluators.prestartAsync(1))
+                .whenComplete((done, e) -> {
+                    if (e != null) {
+                        log.fatal("Engines could not be started", e);
+                    } else {
+                        startupMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                        log.info(engines.getOpenCount() + " search engines and " + evaluators.getOpenCount()
+                                + " evaluator ready in " + startupMillis + " ms");
+                    }
+                });
+        if (!startInBackground) {
+            try {
+                startup.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof StockfishInitException) {
+                    throw (StockfishInitException) e.getCause();
+                }
+                throw new StockfishInitException("Engines could not be started", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * @return future completing once the engines started up front answered their handshake, or failing
+     * if one could not be started
+     */
+    public CompletableFuture<Void> whenStarted() {
+        return startup;
+    }
+
+    /**
+     * Runs every query of a corpus on every open engine, all engines at once, so each process has its binary paged in,
+     * its hash touched and its evaluation tables loaded before real traffic comes. Search engines run the queries
+     * as best move searches, evaluators as evals. The hash is cleared afterwards, see {@link Stockfish#newGame()}.
+     * Engines are held for the whole run, which is meant to happen before the client takes traffic.
+     *
+     * @param corpus queries to run, with the depth to search them to
+     * @throws StockfishPoolException if an engine can not be leased
+     * @throws StockfishEngineException if an engine fails a query
+     */
+    public void warmUpEngines(List<Query> corpus) {
+        warmUpEngines(engines, corpus, QueryType.Best_Move);
+        warmUpEngines(evaluators, corpus, QueryType.Eval);
+    }
+
+    private void warmUpEngines(EnginePool pool, List<Query> corpus, QueryType type) {
+        List<EngineLease> leases = new ArrayList<>();
+        try {
+            for (int i = pool.getOpenCount(); i > 0; i--) {
+                leases.add(pool.lease(acquireTimeoutMillis));
+            }
+            CompletableFuture.allOf(leases.stream().map(lease -> CompletableFuture.runAsync(() -> {
+                for (Query query : corpus) {
+                    getMethod(query.copy(type), lease.engine()).get();
+                }
+                lease.engine().newGame();
+            }, ioExecutor)).toArray(CompletableFuture[]::new)).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        } finally {
+            leases.forEach(EngineLease::close);
+        }
+    }
+
+    /**
+     * @return true once the engines started up front answered their handshake, and the client can take traffic,
+     * until it is drained
+     */
+    public boolean isReady() {
+        return startup.isDone() && !startup.isCompletedExceptionally() && !draining;
+    }
+
+    /**
+     * @return start-up state, {@code STARTING}, {@code READY}, {@code FAILED} or {@code DRAINING},
+     * with the engines open in each pool
+     */
+    public Map<String, Object> getReadiness() {
+        Map<String, Object> readiness = new LinkedHashMap<>();
+        readiness.put("status", draining ? "DRAINING" : !startup.isDone() ? "STARTING" : isReady() ? "READY" : "FAILED");
+        readiness.put("searchEngines", engines.getOpenCount());
+        readiness.put("evaluators", evaluators.getOpenCount());
+        if (isReady()) {
+            readiness.put("startupMillis", startupMillis);
+        }
+        return readiness;
+    }
+
+    /**
+     * Cuts the CPUs into slices of the configured {@code Threads}, and sizes the search pool to the slices.
+     * Evaluators are left unpinned, a static eval takes microseconds of a single thread.
+     */
+    private void startAffinity() {
+        int threads = 1;
+        for (Option option : options) {
+            if (option == Option.Threads && option.getValue() > 0) {
+                threads = (int) option.getValue();
+            }
+        }
+        affinity = new CpuAffinity(CpuTopology.detect().slice(threads));
+        int slices = affinity.getSliceCount();
+        if (Math.max(instances, maxNumberOfOpenInstances) > slices) {
+            log.info("Capping search engines from " + Math.max(instances, maxNumberOfOpenInstances)
+                    + " to the " + slices + " CPU slices");
+        }
+        instances = Math.min(instances, slices);
+        maxNumberOfOpenInstances = Math.min(Math.max(instances, maxNumberOfOpenInstances), slices);
+        log.info("CPU affinity: " + affinity);
+    }
+
+    /**
+     * Readers wait a little longer than the watchdog takes to stop, then kill, an engine missing its deadline,
+     * so a hung exchange is normally ended by the watchdog rather than by a read timeout.
+     */
+    private Stockfish withReadTimeout(Stockfish engine) {
+        engine.setReadTimeout(Math.max(searchTimeoutMillis, commandTimeoutMillis) + 2 * killGraceMillis);
+        return engine;
+    }
+
+    /**
+     * Exchanges block waiting for engine output, so they are kept off the common pool by default. Work is only submitted
+     * once an engine is leased, hence one thread per engine is enough and the queue never really fills up.
+     */
+    private Executor createIoExecutor() {
+        if ("common-pool".equals(ioExecutorMode)) {
+            return ForkJoinPool.commonPool();
         }
+        int threads = engines.getMaxSize() + evaluators.getMaxSize();
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(threads), r -> {
+                    Thread thread = new Thread(r, "engine-io-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
 
-        evaluator = new Stockfish(path, variant, evaluatorVersion, options.toArray(new Option[0]));
-        engines.add(evaluator);
+    /**
+     * Keeps {@code engine.pool.min.idle} engines warm in every pool, evicts engines idle for longer than
+     * {@code engine.pool.idle.ttl.ms} and replaces dead ones, so none of that happens on the request path.
+     */
+    void maintainPools() {
+        try {
+            engines.maintain(minIdle, idleTtlMillis);
+            evaluators.maintain(Math.min(minIdle, 1), idleTtlMillis);
+        } catch (RuntimeException e) {
+            log.error("Engine pool maintenance failed", e);
+        }
     }
 
     public String getResponse(Query query) {
@@ -135,14 +443,25 @@ public class StockfishClient {
         }
     }
 
-    public CompletableFuture<String> getResponseAsync(Query query) {
+    /**
+     * Leases an engine on the calling thread, so pool exhaustion surfaces right away as
+     * {@link StockfishPoolException}, and runs the query on the engine I/O executor.
+     *
+     * @param query query to run
+     * @return future of the engine response, cancelling it sends {@code stop} to the engine
+     */
+    public EngineFuture<String> getResponseAsync(Query query) {
         log.debug("getResponseAsync(query)");
-        Stockfish engine = getEngine(query.getType());
-        engine.setBusy(true);
-        log.debug("engine reference: " + engine);
-        CompletableFuture<String> future = CompletableFuture.supplyAsync(
-                getMethod(query, engine)
-        );
+        if (isBoardQuery(query)) {
+            EngineFuture<String> answered = new EngineFuture<>();
+            try {
+                answered.complete(getBoardAnswer(query));
+            } catch (RuntimeException e) {
+                answered.completeExceptionally(e);
+            }
+            return answered;
+        }
+        EngineFuture<String> future = submit(query, engine -> getMethod(query, engine).get());
         future
                 .thenAccept(msg -> notify(msg, future, query))
                 .exceptionally(
@@ -151,11 +470,116 @@ public class StockfishClient {
                             return null;
                         }
                 )
-                .whenComplete((success, error) -> engine.setBusy(false))
         ;
         return future;
     }
 
+    /**
+     * Typed flavour of {@link #getResponseAsync(Query)} for best move queries: the search outcome is kept in
+     * a {@link UCIInfo} instead of being formatted into a string the caller then has to parse again.
+     *
+     * @param query best move query
+     * @return future of the search outcome, cancelling it sends {@code stop} to the engine
+     */
+    public EngineFuture<UCIInfo> getSearchAsync(Query query) {
+        return getSearchAsync(query, null);
+    }
+
+    /**
+     * @param query    best move query
+     * @param progress follows the search as it deepens, see {@link Stockfish#search(Query, UCIInfo, Consumer)}
+     * @return future of the search outcome, cancelling it sends {@code stop} to the engine
+     */
+    public EngineFuture<UCIInfo> getSearchAsync(Query query, Consumer<UCIInfo> progress) {
+        return submit(query, engine -> recordSearch(engine, engine.search(query, new UCIInfo(), progress)));
+    }
+
+    /**
+     * @param query    best move query, asking for {@link Query#getMultiPv()} lines
+     * @param progress follows the search as it deepens, see {@link Stockfish#search(Query, UCIInfo, Consumer)}
+     * @return future of the ranked lines of the search, cancelling it sends {@code stop} to the engine
+     */
+    public EngineFuture<List<UCIInfo>> getLinesAsync(Query query, Consumer<UCIInfo> progress) {
+        return submit(query, engine -> {
+            List<UCIInfo> lines = engine.searchLines(query, progress);
+            if (!lines.isEmpty()) {
+                recordSearch(engine, lines.get(0));
+            }
+            return lines;
+        });
+    }
+
+    /**
+     * Runs a search nobody waits for yet on an idle engine, if one can be spared right away. A regular lease
+     * needing the engine preempts the search, which then completes exceptionally with a
+     * {@link CancellationException}, see {@link EnginePool#tryLeaseSpeculative(Runnable)}.
+     *
+     * @param query best move query
+     * @return future of the ranked lines of the search, or null if no engine is idle
+     */
+    public EngineFuture<List<UCIInfo>> getLinesSpeculative(Query query) {
+        EngineFuture<List<UCIInfo>> future = new SpeculativeFuture<>();
+        EngineLease lease = engines.tryLeaseSpeculative(() -> future.cancel(true));
+        if (lease == null) {
+            return null;
+        }
+        return submit(query, lease, future, engine -> engine.searchLines(query, null));
+    }
+
+    /**
+     * Runs an eval nobody waits for yet on an idle evaluator, if one can be spared right away. Like a speculative
+     * search, it is preempted by a regular lease needing the evaluator, see {@link #getLinesSpeculative(Query)}.
+     *
+     * @param query eval query
+     * @return future of the eval, or null if no evaluator is idle
+     */
+    public EngineFuture<String> getEvalSpeculative(Query query) {
+        EngineFuture<String> future = new SpeculativeFuture<>();
+        EngineLease lease = evaluators.tryLeaseSpeculative(() -> future.cancel(true));
+        if (lease == null) {
+            return null;
+        }
+        return submit(query, lease, future, engine -> getMethod(query, engine).get());
+    }
+
+    /**
+     * Future of speculative work, which is dropped rather than retried on a regular lease.
+     */
+    private static class SpeculativeFuture<T> extends EngineFuture<T> {
+    }
+
+    private UCIInfo recordSearch(Stockfish engine, UCIInfo info) {
+        if (router != null) {
+            router.recordSearch(engine.isLastSearchRouted(), info);
+        }
+        return info;
+    }
+
+    private <T> EngineFuture<T> submit(Query query, Function<Stockfish, T> method) {
+        return submit(query, lease(query), new EngineFuture<>(), method);
+    }
+
+    private <T> EngineFuture<T> submit(Query query, EngineLease lease, EngineFuture<T> future, Function<Stockfish, T> method) {
+        log.debug("engine reference: " + lease.engine());
+        future.attach(lease);
+        try {
+            ioExecutor.execute(() -> {
+                try {
+                    future.complete(execute(query, lease, future, method));
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            lease.close();
+            throw new StockfishPoolException("Engine I/O executor is saturated", e);
+        } catch (RuntimeException e) {
+            lease.close();
+            throw e;
+        }
+        return future;
+    }
+
     /**
      * Migrating away from CompletableFuture in favor of Spring @Async
      * @param query
@@ -163,12 +587,50 @@ public class StockfishClient {
      */
     public String getResponseSync(Query query) {
         log.debug("getResponseSync(query)");
-        Stockfish engine = getEngine(query.getType());
-        engine.setBusy(true);
-        log.debug("engine reference: " + engine);
+        if (isBoardQuery(query)) {
+            return getBoardAnswer(query);
+        }
+        EngineLease lease = lease(query);
+        log.debug("engine reference: " + lease.engine());
+        return execute(query, lease, null, engine -> getMethod(query, engine).get());
+    }
 
-        Supplier supplier = getMethod(query, engine);
-        return (String) supplier.get();
+    /**
+     * Runs the query on the leased engine under the watchdog and closes the lease afterwards.
+     * A cancelled future is not run, or retried, at all.
+     * If the watchdog had to kill a hung engine, the query is retried on another engine
+     * up to {@code engine.watchdog.retries} times.
+     */
+    private <T> T execute(Query query, EngineLease lease, EngineFuture<T> future, Function<Stockfish, T> method) {
+        int attempt = 0;
+        while (true) {
+            if (future != null) {
+                if (future.isCancelled()) {
+                    lease.close();
+                    throw new CancellationException();
+                }
+                future.attach(lease);
+            }
+            EngineWatchdog.Exchange exchange = watchdog.watch(lease.engine(),
+                    QueryType.Best_Move.equals(query.getType()) ? searchTimeoutMillis : commandTimeoutMillis);
+            try {
+                return method.apply(lease.engine());
+            } catch (RuntimeException e) {
+                if (!exchange.isKilled()) {
+                    throw e;
+                }
+                if (attempt++ >= watchdogRetries || future instanceof SpeculativeFuture) {
+                    watchdog.recordFailure();
+                    throw new StockfishEngineException("Engine hung and was killed by the watchdog", e);
+                }
+                log.warn("Retrying " + query.getType() + " on another engine, the previous one hung");
+                watchdog.recordRetry();
+            } finally {
+                exchange.close();
+                lease.close();
+            }
+            lease = lease(query);
+        }
     }
 
 
@@ -179,66 +641,75 @@ public class StockfishClient {
     }
 
     protected List<Stockfish> deadEnginePruning() {
-        List<Stockfish> deadEngines = engines.stream().filter(e -> e.isDead()).collect(Collectors.toList());
-        deadEngines.forEach(sf -> {
-            log.warn(sf.getProcess().pid() + " died with " + sf.getProcess().exitValue());
-            sf.cleanup();
-        });
-        engines.removeAll(deadEngines);
-        return deadEngines;
+        List<Stockfish> dead = engines.pruneDead();
+        dead.addAll(evaluators.pruneDead());
+        return dead;
     }
 
-    public Stockfish getEngine(QueryType queryType) {
-        deadEnginePruning();
+    /**
+     * Leases an engine suitable for the given query type. The lease must be closed to give the engine back,
+     * see {@link EngineLease}.
+     *
+     * @param queryType type of the query the engine will run
+     * @return exclusive lease on an engine
+     * @throws StockfishPoolException if no engine becomes available within the acquire timeout
+     */
+    public EngineLease lease(QueryType queryType) {
+        if (QueryType.Eval.equals(queryType)) {
+            return evaluators.lease(acquireTimeoutMillis);
+        }
+        return engines.lease(acquireTimeoutMillis);
+    }
 
-        Stockfish engine;
+    /**
+     * Leases an engine for the query, a search going to the engine that analyzed the closest position.
+     */
+    private EngineLease lease(Query query) {
+        if (QueryType.Best_Move.equals(query.getType())) {
+            return engines.lease(acquireTimeoutMillis, query.getFen());
+        }
+        return lease(query.getType());
+    }
 
-        if (QueryType.Eval.equals(queryType)) {
-            if (evaluator.isDead()) {
-                try {
-                    evaluator = new Stockfish(path, variant, evaluatorVersion, options.toArray(new Option[0]));
-                } catch (StockfishInitException e) {
-                    log.error("couldn't create evaluator", e);
-                    throw new RuntimeException(e);
-                }
-            } else {
+    private boolean isBoardQuery(Query query) {
+        return boardQueriesInJvm && switch (query.getType()) {
+            case Legal_Moves, Checkers, Make_Move -> true;
+            default -> false;
+        };
+    }
 
-                while (evaluator.isBusy()) {
-                    try {
-                        log.debug("waiting for evaluator: " + new Date());
-                        Thread.sleep(500);
-                    } catch (InterruptedException e) {
-                        throw new RuntimeException(e);
-                    }
+    /**
+     * Answers a query needing no search on the calling thread, in the format the engine would have used:
+     * space terminated moves or squares, or the FEN reached.
+     *
+     * @throws StockfishEngineException if the FEN of the query is not a valid position
+     */
+    static String getBoardAnswer(Query query) {
+        Board board;
+        try {
+            board = Board.fromFen(query.getFen());
+        } catch (IllegalArgumentException e) {
+            throw new StockfishEngineException(e.getMessage(), e);
+        }
+        StringBuilder answer = new StringBuilder();
+        switch (query.getType()) {
+            case Make_Move:
+                return board.play(query.getMove()).toFen();
+            case Legal_Moves:
+                for (int move : board.legalMoves()) {
+                    UCIInfo.appendMove(answer, move).append(' ');
                 }
-            }
-
-            engine = evaluator;
-            log.debug("got evaluator");
-        } else {
-            Optional<Stockfish> engineOptional = engines.stream().filter(e -> !e.isBusy() && !e.isDead() && e != evaluator).findFirst();
-            if (engineOptional.isPresent()) {
-                engine = engineOptional.get();
-            } else {
-//                if (engines.isEmpty() || addEnginesOnDemand) {
-                if (engines.size() < maxNumberOfOpenInstances) {
-                    try {
-                        log.debug("Creating a new engine...");
-                        engine = new Stockfish(path, variant, options.toArray(new Option[0]));
-                        engines.add(engine);
-                    } catch (StockfishInitException e) {
-                        throw new RuntimeException(e);
-                    }
-                } else {
-                    throw new StockfishPoolException("Number Of Maximum Open Instances Exceeded: " + engines.size()
-                            + " actual vs " + maxNumberOfOpenInstances + " threshold");
+                return answer.toString();
+            case Checkers:
+                for (long checkers = board.checkers(); checkers != 0; checkers &= checkers - 1) {
+                    answer.append(Board.squareName(Long.numberOfTrailingZeros(checkers))).append(' ');
                 }
-            }
+                return answer.toString();
         }
-        return engine;
+        throw new StockfishEngineException("Illegal command: " + query.getType());
     }
 
-    private Supplier getMethod(Query query, Stockfish engine) {
+    private Supplier<String> getMethod(Query query, Stockfish engine) {
         switch (query.getType()) {
             case Best_Move:
 //                return () -> engine.getBestMove(query);
@@ -250,41 +721,133 @@ public class StockfishClient {
             case Checkers:
                 return () -> engine.getCheckers(query);
             case Eval:
-                return () -> evaluator.getEval(query);
+                return () -> engine.getEval(query);
         }
         log.error("Illegal command: " + query.getType());
         throw new StockfishEngineException("Illegal command: " + query.getType());
     }
 
+    /**
+     * Winds the client down before it is closed. It stops reporting ready, see {@link #isReady()}, lends no more
+     * engines for speculative work, and waits for the searches in flight, and the callers queuing for an engine,
+     * for at most {@code drainMillis}. Searches still running then are sent {@code stop}, their callers get the
+     * best move found so far, and are given {@code stopMillis} more to hand their engines back.
+     *
+     * @param drainMillis how long searches in flight may run
+     * @param stopMillis  how long stopped searches may take to return
+     * @return true if every engine was handed back, false if some still were not after being stopped
+     */
+    public boolean drain(long drainMillis, long stopMillis) {
+        draining = true;
+        try {
+            long deadline = System.currentTimeMillis() + drainMillis;
+            if (engines.drain(drainMillis)
+                    && evaluators.drain(Math.max(0, deadline - System.currentTimeMillis()))) {
+                return true;
+            }
+            log.info("Stopping " + (engines.getLeasedCount() + evaluators.getLeasedCount())
+                    + " engine exchanges still running after " + drainMillis + " ms");
+            engines.stopSearches();
+            evaluators.stopSearches();
+            deadline = System.currentTimeMillis() + stopMillis;
+            return engines.drain(stopMillis)
+                    && evaluators.drain(Math.max(0, deadline - System.currentTimeMillis()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
     /**
      * This method close all Stockfish instances that were created, as well as close all
      * threads for processing responses. You must call this method when you close
-     * your program to avoid uncontrolled memory leaks.
+     * your program to avoid uncontrolled memory leaks. Engines still searching are cut off,
+     * see {@link #drain(long, long)}.
      * <p>
      * Exceptions are thrown only after trying to close all remaining threads
      *
      * @throws StockfishEngineException when at least one of the processes could not be closed.
      */
     public void close() throws StockfishEngineException {
-        System.out.println(new Date() + "   Client is being closed. Please hold tight...");
+        log.info("Closing the client");
 
-        engines.stream().forEach(engine -> {
-            try {
-                System.out.println(new Date() + "   Closing engine with pid = " + engine.getProcess().pid());
-                engine.close();
-            } catch (IOException | StockfishEngineException e) {
-                System.err.println(new Date() +"    Can not stop Stockfish. Please, close it manually.");
-                e.printStackTrace(System.err);
-            }
-        });
+        if (maintenance != null) {
+            maintenance.shutdownNow();
+        }
+        watchdog.close();
+        if (ioExecutor instanceof ExecutorService) {
+            ((ExecutorService) ioExecutor).shutdown();
+        }
+
+        engines.close();
+        evaluators.close();
     }
 
+    /**
+     * @return snapshot of all engines, evaluators being the last ones
+     */
     public List<Stockfish> getEngines() {
+        List<Stockfish> all = engines.getEngines();
+        all.addAll(evaluators.getEngines());
+        return all;
+    }
+
+    public EnginePool getPool() {
         return engines;
     }
 
+    public EnginePool getEvaluatorPool() {
+        return evaluators;
+    }
+
+    public EngineWatchdog getWatchdog() {
+        return watchdog;
+    }
+
+    /**
+     * @return pool occupancy and watchdog counters
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        Map<String, Object> searchPool = poolStats(engines);
+        searchPool.put("speculative", engines.getSpeculativeStats());
+        stats.put("searchPool", searchPool);
+        stats.put("evaluatorPool", poolStats(evaluators));
+        stats.put("watchdog", watchdog.getStats());
+        if (affinity != null) {
+            stats.put("cpuAffinity", affinity.toString());
+        }
+        if (router != null) {
+            stats.put("routing", router.getStats());
+        }
+        return stats;
+    }
+
+    private static Map<String, Object> poolStats(EnginePool pool) {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("max", pool.getMaxSize());
+        stats.put("open", pool.getOpenCount());
+        stats.put("idle", pool.getIdleCount());
+        stats.put("waiting", pool.getWaitingCount());
+        if (pool.getHashBudget() != null) {
+            stats.put("hash", pool.getHashBudget().getStats());
+        }
+        return stats;
+    }
+
     public void setMaxNumberOfOpenInstances(int maxNumberOfOpenInstances) {
         this.maxNumberOfOpenInstances = maxNumberOfOpenInstances;
+        engines.resize(maxNumberOfOpenInstances);
+        if (ioExecutor instanceof ThreadPoolExecutor executor) {
+            int threads = engines.getMaxSize() + evaluators.getMaxSize();
+            if (threads > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(threads);
+                executor.setCorePoolSize(threads);
+            } else {
+                executor.setCorePoolSize(threads);
+                executor.setMaximumPoolSize(threads);
+            }
+        }
     }
 
     public static class Builder {
@@ -292,6 +855,15 @@ public class StockfishClient {
         private Variant variant = Variant.DEFAULT;
         private String path = null;
         private int instances = 1;
+        private int maxInstances = 0;
+        private int evaluators = 1;
+        private int minIdle = 1;
+        private long idleTtlMillis = 300000;
+        private long maintenanceIntervalMillis = 0;
+        private boolean cpuAffinity = false;
+        private long hashBudgetMb = 0;
+        private int routingMaxPlies = 2;
+        private boolean startInBackground = false;
 
         /**
          * @param num number of Stockfish core that will be launched to process requests asynchronously
@@ -302,6 +874,78 @@ public class StockfishClient {
             return this;
         }
 
+        /**
+         * @param num maximum number of Stockfish core that may be open at the same time,
+         *            never less than the number of instances launched up front
+         * @return Builder to continue creating StockfishClient
+         */
+        public final Builder setMaxInstances(int num) {
+            maxInstances = num;
+            return this;
+        }
+
+        /**
+         * @param num number of evaluator engines serving {@link QueryType#Eval} queries
+         * @return Builder to continue creating StockfishClient
+         */
+        public final Builder setEvaluators(int num) {
+            evaluators = num;
+            return this;
+        }
+
+        /**
+         * @param minIdle        number of idle engines kept pre-spawned
+         * @param idleTtlMillis  idle time after which engines above {@code minIdle} are closed
+         * @param intervalMillis delay between background maintenance runs, 0 disables the maintenance
+         * @return Builder to continue creating StockfishClient
+         */
+        public final Builder setMaintenance(int minIdle, long idleTtlMillis, long intervalMillis) {
+            this.minIdle = minIdle;
+            this.idleTtlMillis = idleTtlMillis;
+            this.maintenanceIntervalMillis = intervalMillis;
+            return this;
+        }
+
+        /**
+         * @param cpuAffinity pins search engines to disjoint slices of {@link Option#Threads} CPUs,
+         *                    capping their number to the number of slices
+         * @return Builder to continue creating StockfishClient
+         */
+        public final Builder setCpuAffinity(boolean cpuAffinity) {
+            this.cpuAffinity = cpuAffinity;
+            return this;
+        }
+
+        /**
+         * @param mb transposition table memory split evenly between the live search engines,
+         *           0 to give each the {@link Option#Hash} option instead
+         * @return Builder to continue creating StockfishClient
+         */
+        public final Builder setHashBudget(long mb) {
+            this.hashBudgetMb = mb;
+            return this;
+        }
+
+        /**
+         * @param maxPlies most moves between the position a search engine last analyzed and the next one routed
+         *                 to it, negative to lease any idle engine instead, see {@link PositionRouter}
+         * @return Builder to continue creating StockfishClient
+         */
+        public final Builder setRoutingMaxPlies(int maxPlies) {
+            this.routingMaxPlies = maxPlies;
+            return this;
+        }
+
+        /**
+         * @param startInBackground builds the client right away, engines becoming ready in the background,
+         *                          see {@link StockfishClient#isReady()}
+         * @return Builder to continue creating StockfishClient
+         */
+        public final Builder setStartInBackground(boolean startInBackground) {
+            this.startInBackground = startInBackground;
+            return this;
+        }
+
         /**
          * @param v variant of Stockfish core, see {@link com.stockfishweb.core.engine.enums.Variant} enum
          * @return Builder to continue creating StockfishClient
@@ -335,7 +979,9 @@ public class StockfishClient {
          * @throws StockfishInitException throws if Stockfish process can not be initialized, starter or bind
          */
         public final StockfishClient build() throws StockfishInitException {
-            return new StockfishClient(path, instances, variant, options);
+            return new StockfishClient(path, instances, maxInstances, evaluators, variant, options,
+                    minIdle, idleTtlMillis, maintenanceIntervalMillis, cpuAffinity, hashBudgetMb,
+                    routingMaxPlies, startInBackground);
         }
     }
 }
@@ -18,6 +18,7 @@ import com.stockfishweb.core.engine.enums.Option;
 import com.stockfishweb.core.engine.enums.Variant;
 import com.stockfishweb.core.engine.exception.StockfishEngineException;
 import com.stockfishweb.core.engine.exception.StockfishInitException;
+import com.stockfishweb.core.engine.util.CpuTopology;
 import com.stockfishweb.core.engine.util.FileEngineUtil;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -25,30 +26,112 @@ import org.apache.commons.logging.LogFactory;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 abstract class UCIEngine {
 
     private static final Log logger = LogFactory.getLog(UCIEngine.class);
-    protected BufferedReader input;
+
+    /**
+     * How long a caller waits for an expected line by default. Stuck searches are normally
+     * stopped or killed by the {@link EngineWatchdog} well before that.
+     */
+    static final long DEFAULT_READ_TIMEOUT_MILLIS = 60_000;
+
+    protected InputStream input;
 
     protected BufferedWriter output;
 
     protected Process process;
 
+    protected UCIReader reader;
+
+    private final AtomicBoolean busy = new AtomicBoolean();
+
+    private volatile long idleSince = System.currentTimeMillis();
+
+    private volatile long readTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+
+    /**
+     * Outcome of the current or last search, kept up to date by the reader thread: the last line closing a depth,
+     * with an exact score for the best move, so a search stopped halfway through a depth still answers with the
+     * deepest one it completed. Until a first depth is complete, any scored line.
+     */
+    private final UCIInfo latest = new UCIInfo();
+
+    private boolean latestCompleted;
 
-    protected boolean busy;
+    /**
+     * With MultiPV, the lines ranked second and below, kept like {@link #latest}. Guarded by {@link #latest}.
+     */
+    private UCIInfo[] otherLines = new UCIInfo[0];
+
+    private boolean[] otherLinesCompleted = new boolean[0];
+
+    /**
+     * Listener of the running search, called on the reader thread for every scored line.
+     */
+    private volatile Consumer<UCIInfo> progress;
+
+    /**
+     * A {@code go} was sent and its {@code bestmove} was not seen yet.
+     */
+    private volatile boolean searching;
+
+    /**
+     * A wait timed out, so a late answer may still be on its way and be taken for the answer to the next command.
+     */
+    private volatile boolean desynced;
 
     public UCIEngine(String path, Variant variant, Integer engineVersion, Option... options) throws StockfishInitException {
+        this(path, variant, engineVersion, null, options);
+    }
+
+    /**
+     * @param affinity CPU slices to pin the engine to, null to leave it unpinned. A pinned engine searches with
+     *                 as many threads as its slice has CPUs, whatever the {@link Option#Threads} option says.
+     */
+    UCIEngine(String path, Variant variant, Integer engineVersion, CpuAffinity affinity, Option... options)
+            throws StockfishInitException {
+        CpuTopology.Slice slice = affinity != null ? affinity.acquire() : null;
         try {
+            List<String> command = List.of(FileEngineUtil.getPath(variant, path, engineVersion));
+            if (slice != null) {
+                command = affinity.wrap(slice, command);
+            }
+            process = new ProcessBuilder(command).start();
+        } catch (IOException e) {
+            release(affinity, slice);
+            throw new StockfishInitException("Unable to start and bind Stockfish process: ", e);
+        } catch (RuntimeException e) {
+            release(affinity, slice);
+            throw e;
+        }
+        if (slice != null) {
+            affinity.bind(slice, process);
+            logger.info("Engine " + process.pid() + " pinned to " + slice);
+        }
 
-            process = Runtime.getRuntime().exec(FileEngineUtil.getPath(variant, path, engineVersion));
-            input = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            output = new BufferedWriter(new OutputStreamWriter(process.getOutputStream()));
+        input = process.getInputStream();
+        output = new BufferedWriter(new OutputStreamWriter(process.getOutputStream()));
+        readFrom(input);
 
-            for (Option option : options)
+        for (Option option : options) {
+            if (slice == null || option != Option.Threads) {
                 passOption(option);
-        } catch (IOException e) {
-            throw new StockfishInitException("Unable to start and bind Stockfish process: ", e);
+            }
+        }
+        if (slice != null) {
+            sendCommand(Option.Threads.command(slice.size()));
+        }
+    }
+
+    private static void release(CpuAffinity affinity, CpuTopology.Slice slice) {
+        if (slice != null) {
+            affinity.release(slice);
         }
     }
 
@@ -56,141 +139,313 @@ abstract class UCIEngine {
         this(path, variant, null, options);
     }
 
+    /**
+     * Starts draining the given engine output into events.
+     */
+    void readFrom(InputStream input) {
+        reader = new UCIReader(input, "engine-reader-" + process.pid(), this::onInfo, this::onBestMove);
+    }
+
+    private void onInfo(UCIInfo info) {
+        synchronized (latest) {
+            if (info.getMultiPv() <= 1) {
+                latestCompleted = keep(latest, latestCompleted, info);
+            } else {
+                int index = info.getMultiPv() - 2;
+                if (index >= otherLines.length) {
+                    otherLines = Arrays.copyOf(otherLines, index + 1);
+                    otherLinesCompleted = Arrays.copyOf(otherLinesCompleted, index + 1);
+                }
+                if (otherLines[index] == null) {
+                    otherLines[index] = new UCIInfo();
+                }
+                otherLinesCompleted[index] = keep(otherLines[index], otherLinesCompleted[index], info);
+            }
+        }
+        Consumer<UCIInfo> listener = progress;
+        if (listener != null) {
+            try {
+                listener.accept(info);
+            } catch (RuntimeException e) {
+                // the reader thread must keep draining the engine
+                logger.warn("Search progress listener failed", e);
+            }
+        }
+    }
+
+    /**
+     * Copies the info into the line held for its rank if it closes a depth, or if no depth was closed yet.
+     *
+     * @return whether the held line now closes a depth
+     */
+    private static boolean keep(UCIInfo held, boolean heldCompleted, UCIInfo info) {
+        boolean completed = info.getBound() == UCIInfo.BOUND_EXACT && info.getPvLength() > 0;
+        // a stopped search repeats the depth it completed last, with the PV cut to the move it settled on
+        if (completed && heldCompleted && info.getDepth() == held.getDepth()
+                && info.getPvLength() < held.getPvLength()) {
+            completed = false;
+        }
+        if (completed || !heldCompleted) {
+            held.copyFrom(info);
+            return completed;
+        }
+        return true;
+    }
+
+    /**
+     * Sets the listener following the next search, null to remove it.
+     * The listener runs on the reader thread, it must be quick and must copy what it keeps of the info it is given.
+     */
+    void setProgressListener(Consumer<UCIInfo> progress) {
+        this.progress = progress;
+    }
+
+    private void onBestMove(String line) {
+        synchronized (latest) {
+            latest.parseBestMove(line);
+        }
+        searching = false;
+    }
+
     void waitForReady() {
         sendCommand("isready");
-//        readResponse("readyok");
-        readLine("readyok");
+        await(e -> e.getType() == UCIEvent.Type.READYOK, "readyok");
     }
 
-    void sendCommand(String command) {
-        try {
-            output.write(command + "\n");
-            output.flush();
-        } catch (IOException e) {
-            throw new StockfishEngineException(e);
+    /**
+     * Confirms a freshly started engine speaks UCI and took the options it was started with: {@code uci} must be
+     * answered with {@code uciok}, and the {@code readyok} that follows comes once every option sent before was
+     * applied. Stockfish answers an option it does not know with {@code No such option}, which fails the handshake.
+     *
+     * @throws StockfishEngineException if the engine does not answer in time or rejected an option
+     */
+    void handshake() {
+        sendCommands("uci", "isready");
+        List<String> rejected = new ArrayList<>();
+        Predicate<UCIEvent> collectRejected = e -> {
+            if (e.getLine() != null && e.getLine().startsWith("No such option")) {
+                rejected.add(e.getLine());
+            }
+            return false;
+        };
+        await(collectRejected.or(e -> e.getType() == UCIEvent.Type.UCIOK), "uciok");
+        await(collectRejected.or(e -> e.getType() == UCIEvent.Type.READYOK), "readyok");
+        if (!rejected.isEmpty()) {
+            throw new StockfishEngineException("Engine rejected its options: " + String.join(", ", rejected));
         }
     }
 
-//    String readLine(String expected) {
-//        try {
-//            return input.lines().sequential().filter(l -> l.startsWith(expected)).findFirst()
-//                    .orElseThrow(() -> new StockfishEngineException("Can not find expected line: " + expected));
-//        } catch (UncheckedIOException e) {
-//            throw new StockfishEngineException(e);
-//        }
-//    }
+    synchronized void sendCommand(String command) {
+        sendCommands(command);
+    }
 
-    String readLine(String expected) {
-        busy = true;
+    /**
+     * Writes several commands in a single flush.
+     * <p>
+     * The engine reads its input in order and answers every command before looking at the next one,
+     * so commands that only change its state, such as {@code setoption} or {@code position}, need no
+     * {@code isready} round trip before the command they prepare. The pool synchronizes when an engine is
+     * started, and once an exchange is over with {@link #settle(long)}, a single round trip per exchange.
+     */
+    synchronized void sendCommands(String... commands) {
         try {
-            String line;
-            while ((line = input.readLine()) != null) {
-                logger.debug(line);
-                if (line.startsWith(expected)) {
-                    return line;
+            for (String command : commands) {
+                if (command.startsWith("go") && !command.startsWith("go perft")) {
+                    // set before the command is out, the reader may see its bestmove right away
+                    synchronized (latest) {
+                        latest.reset();
+                        latestCompleted = false;
+                        for (int i = 0; i < otherLines.length; i++) {
+                            if (otherLines[i] != null) {
+                                otherLines[i].reset();
+                            }
+                            otherLinesCompleted[i] = false;
+                        }
+                    }
+                    searching = true;
                 }
+                output.write(command);
+                output.write('\n');
             }
-            throw new StockfishEngineException("Can not find expected line: " + expected);
+            output.flush();
         } catch (IOException e) {
             throw new StockfishEngineException(e);
-        } finally {
-            busy = false;
         }
     }
 
-
-    String readLine(String[] expected) {
-        busy = true;
+    private UCIEvent await(Predicate<UCIEvent> matcher, String expected) {
         try {
-            String line = input.readLine();
-             while (input.ready() && line!= null) {
-                logger.debug(line);
-                if (line.contains("Total evaluation") || line.contains("Final evaluation")) {
-                    logger.debug("Evaluation line found");
-                }
-                 for (String s : expected) {
-                     if (line.contains(s)) {
-                         return line;
-                     }
-                 }
-
-                line = input.readLine();
-
-            }
-            return line;
-        } catch (IOException e) {
-            throw new StockfishEngineException(e);
-        } finally {
-            busy = false;
+            return reader.await(matcher, deadline(), expected);
+        } catch (StockfishEngineException e) {
+            desynced = true;
+            throw e;
         }
     }
 
-    String[] getBestMoveAndContinuation() {
-        busy = true;
+    private UCIEvent next(long deadline, String expected) {
         try {
-            String pastLine = null;
-            String line = input.readLine();
-            boolean mateFound = false;
+            return reader.next(deadline, expected);
+        } catch (StockfishEngineException e) {
+            desynced = true;
+            throw e;
+        }
+    }
 
-            logger.debug(line);
-            logger.debug(input.ready());
+    private long deadline() {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(readTimeoutMillis);
+    }
 
-            while (/*input.ready() && */line!= null) {
-                pastLine = line;
-                line = input.readLine();
+    String readLine(String expected) {
+        return await(e -> e.getLine().startsWith(expected), expected).getLine();
+    }
+
+    String readLine(String[] expected) {
+        return await(e -> {
+            for (String s : expected) {
+                if (e.getLine().contains(s)) {
+                    return true;
+                }
+            }
+            return false;
+        }, String.join(" or ", expected)).getLine();
+    }
 
-                logger.debug(line);
+    /**
+     * Waits for the {@code bestmove} ending the current search.
+     *
+     * @param into info to fill with the last scored line of the search and its best move
+     * @return {@code into}
+     */
+    UCIInfo awaitBestMove(UCIInfo into) {
+        await(e -> e.getType() == UCIEvent.Type.BESTMOVE, "bestmove");
+        synchronized (latest) {
+            into.copyFrom(latest);
+        }
+        return into;
+    }
 
-//                if (line.contains("mate")) {
-//                    return new String[] {line, line};
-//                }
+    /**
+     * Waits for the {@code bestmove} ending the current search, stopping the search if it runs past its budget.
+     *
+     * @param into   info to fill with the deepest completed line of the search and its best move
+     * @param stopAt {@link System#nanoTime()} at which the search is sent {@code stop}
+     * @return {@code into}
+     */
+    UCIInfo awaitBestMove(UCIInfo into, long stopAt) {
+        try {
+            reader.await(e -> e.getType() == UCIEvent.Type.BESTMOVE, stopAt, "bestmove");
+            synchronized (latest) {
+                into.copyFrom(latest);
+            }
+            return into;
+        } catch (StockfishEngineException e) {
+            if (reader.isClosed() || Thread.currentThread().isInterrupted()) {
+                desynced = true;
+                throw e;
+            }
+        }
+        // out of budget, the engine answers stop with the best move found so far
+        sendCommand("stop");
+        return awaitBestMove(into);
+    }
 
-                if (/*mateFound || */line.startsWith("bestmove")) {
-                    logger.debug("bestmove found");
-                    return new String[] {line, pastLine};
+    /**
+     * Adds the lines ranked second and below of the last search, best first, once its best move is in.
+     *
+     * @param into  list to add copies of the lines to
+     * @param count number of lines the search was asked for
+     */
+    void copyOtherLines(List<UCIInfo> into, int count) {
+        synchronized (latest) {
+            for (int i = 0; i < Math.min(count - 1, otherLines.length); i++) {
+                if (otherLines[i] != null && otherLines[i].getPvLength() > 0) {
+                    UCIInfo line = new UCIInfo();
+                    line.copyFrom(otherLines[i]);
+                    into.add(line);
                 }
             }
-            logger.debug("bestmove not found");
-            return null;
-        } catch (IOException e) {
-            throw new StockfishEngineException(e);
-        } finally {
-            busy = false;
+        }
+    }
+
+    /**
+     * @return the {@code bestmove} line and the last {@code info} line of the search
+     */
+    String[] getBestMoveAndContinuation() {
+        String bestMove = await(e -> e.getType() == UCIEvent.Type.BESTMOVE, "bestmove").getLine();
+        synchronized (latest) {
+            return new String[] {bestMove, latest.hasScore() || latest.getPvLength() > 0 ? latest.toString() : ""};
         }
     }
 
     public String[] readAllAtOnce() {
-        List<String> list = input.lines().toList();
+        List<String> list = new ArrayList<>();
+        long deadline = deadline();
+        try {
+            while (true) {
+                list.add(reader.next(deadline, "end of output").getLine());
+            }
+        } catch (StockfishEngineException e) {
+            if (!reader.isClosed()) {
+                throw e;
+            }
+        }
         return new String[]{list.get(list.size()-1), list.get(list.size()-2)};
     }
 
     List<String> readResponse(String expected) {
-        busy = true;
-        try {
-            List<String> lines = new ArrayList<>();
-            String line;
-            boolean isPresent = false;
-            while ((line = input.readLine()) != null) {
-                logger.debug(line);
-                lines.add(line);
-
-                if (line.startsWith(expected)) {
-                    isPresent = true;
-                    break;
-                }
-            }
-            if (isPresent) {
+        List<String> lines = new ArrayList<>();
+        long deadline = deadline();
+        while (true) {
+            String line = next(deadline, expected).getLine();
+            lines.add(line);
+            if (line.startsWith(expected)) {
                 return lines;
-            } else {
-                throw new StockfishEngineException("Can not find expected line: " + expected);
             }
-        } catch (IOException e) {
-            throw new StockfishEngineException(e);
-        } finally {
-            busy = false;
         }
     }
 
+    /**
+     * Gets the engine ready for its next exchange: stops a search still running and waits for its {@code bestmove},
+     * then syncs with {@code isready}, dropping everything the engine printed before its {@code readyok}.
+     * Output of the exchange still on its way, such as the lines a caller did not read to, can not reach
+     * the next caller, who only ever reads answers to its own commands.
+     *
+     * @param timeoutMillis how long to wait for a running search to stop and for the engine to answer
+     * @return false if the engine can not be trusted to answer the next exchange and should be closed
+     */
+    boolean settle(long timeoutMillis) {
+        if (desynced) {
+            return false;
+        }
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            if (searching) {
+                sendCommand("stop");
+                reader.await(e -> e.getType() == UCIEvent.Type.BESTMOVE, deadline, "bestmove");
+            }
+            sendCommand("isready");
+            reader.await(e -> e.getType() == UCIEvent.Type.READYOK, deadline, "readyok");
+            return true;
+        } catch (StockfishEngineException e) {
+            desynced = true;
+            return false;
+        }
+    }
+
+    /**
+     * Asks a running search to stop, from a thread other than the one waiting for it, which then gets the
+     * best move found so far. Does nothing if the engine is not searching.
+     */
+    void stopSearch() {
+        if (searching) {
+            sendCommand("stop");
+        }
+    }
+
+    void setReadTimeout(long readTimeoutMillis) {
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
     private void passOption(Option option) {
         logger.info(option.toString());
         sendCommand(option.toString());
@@ -201,14 +456,25 @@ abstract class UCIEngine {
     }
 
     public boolean isBusy() {
-        if (busy) {
+        if (busy.get()) {
             logger.debug(this + " is busy");
         }
-        return busy;
+        return busy.get();
     }
 
     public void setBusy(boolean busy) {
-        this.busy = busy;
+        this.busy.set(busy);
+    }
+
+    void markIdle() {
+        idleSince = System.currentTimeMillis();
+    }
+
+    /**
+     * @return time in milliseconds the engine was last handed back to its pool
+     */
+    long getIdleSince() {
+        return idleSince;
     }
 
 
@@ -0,0 +1,67 @@
+package com.stockfishweb.core.engine;
+
+/**
+ * A line of engine output, classified by what it answers. Search progress ({@code info} lines)
+ * is not queued as events, it is folded into a {@link UCIInfo} by the {@link UCIReader}.
+ */
+class UCIEvent {
+
+    enum Type {
+        /** {@code bestmove ...} end of a search */
+        BESTMOVE,
+        /** {@code readyok} answer to {@code isready} */
+        READYOK,
+        /** {@code uciok} end of the answer to {@code uci} */
+        UCIOK,
+        /** {@code option name ...} answer to {@code uci} */
+        OPTION,
+        /** {@code Total evaluation} or {@code Final evaluation} answer to {@code eval} */
+        EVAL,
+        /** anything else: banner, {@code d} and {@code perft} output, errors */
+        OTHER,
+        /** the engine output ended, the process is gone */
+        EOF
+    }
+
+    static final UCIEvent END = new UCIEvent(Type.EOF, null);
+
+    private final Type type;
+    private final String line;
+
+    private UCIEvent(Type type, String line) {
+        this.type = type;
+        this.line = line;
+    }
+
+    static UCIEvent parse(String line) {
+        return new UCIEvent(typeOf(line), line);
+    }
+
+    private static Type typeOf(String line) {
+        if (line.startsWith("bestmove")) {
+            return Type.BESTMOVE;
+        } else if (line.startsWith("readyok")) {
+            return Type.READYOK;
+        } else if (line.startsWith("uciok")) {
+            return Type.UCIOK;
+        } else if (line.startsWith("option name")) {
+            return Type.OPTION;
+        } else if (line.contains("Total evaluation") || line.contains("Final evaluation")) {
+            return Type.EVAL;
+        }
+        return Type.OTHER;
+    }
+
+    Type getType() {
+        return type;
+    }
+
+    String getLine() {
+        return line;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + line;
+    }
+}
@@ -0,0 +1,377 @@
+package com.stockfishweb.core.engine;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reusable, primitive-only view of a search: the last {@code info} line carrying a score or a PV,
+ * and the {@code bestmove} that ended it.
+ * <p>
+ * {@link #parse(byte[], int, int)} fills it in a single pass over the raw bytes of a line, without regular
+ * expressions, substrings or boxing, so the reader thread can follow a search that prints thousands of lines
+ * without allocating. Moves are packed into ints, see {@link #packMove(byte[], int, int)}, and strings are only
+ * built on demand, when a result leaves the engine layer.
+ */
+public class UCIInfo {
+
+    public static final int BOUND_EXACT = 0;
+    public static final int BOUND_LOWER = 1;
+    public static final int BOUND_UPPER = 2;
+
+    /**
+     * Packed move standing for {@code (none)} or {@code 0000}.
+     */
+    public static final int NO_MOVE = 0;
+
+    private static final String PROMOTIONS = " nbrq";
+
+    private int depth;
+    private int selDepth;
+    private int multiPv;
+    private boolean hasScore;
+    private boolean mate;
+    private int score;
+    private int bound;
+    private long nodes;
+    private long nps;
+    private int hashFull;
+    private long time;
+    private int[] pv = new int[32];
+    private int pvLength;
+    private int bestMove;
+    private int ponder;
+
+    // number() hands its result over in this field, to avoid returning a pair
+    private long value;
+
+    public void reset() {
+        depth = selDepth = multiPv = score = bound = hashFull = pvLength = 0;
+        hasScore = mate = false;
+        nodes = nps = time = 0;
+        bestMove = ponder = NO_MOVE;
+    }
+
+    /**
+     * Fills this info from an {@code info} line, fields missing from the line being reset.
+     *
+     * @param line buffer holding the line
+     * @param from index of the first byte of the line
+     * @param to   index after the last byte of the line
+     * @return true if the line carried a score or a PV, false for progress lines such as {@code currmove}
+     */
+    public boolean parse(byte[] line, int from, int to) {
+        reset();
+        int i = skipToken(line, from, to);
+        while (i < to) {
+            i = skipSpaces(line, i, to);
+            int start = i;
+            i = skipToken(line, i, to);
+            if (i == start) {
+                break;
+            }
+            if (is(line, start, i, "depth")) {
+                i = number(line, i, to);
+                depth = (int) value;
+            } else if (is(line, start, i, "seldepth")) {
+                i = number(line, i, to);
+                selDepth = (int) value;
+            } else if (is(line, start, i, "multipv")) {
+                i = number(line, i, to);
+                multiPv = (int) value;
+            } else if (is(line, start, i, "score")) {
+                i = skipSpaces(line, i, to);
+                int kind = i;
+                i = skipToken(line, i, to);
+                mate = is(line, kind, i, "mate");
+                i = number(line, i, to);
+                score = (int) value;
+                hasScore = true;
+            } else if (is(line, start, i, "lowerbound")) {
+                bound = BOUND_LOWER;
+            } else if (is(line, start, i, "upperbound")) {
+                bound = BOUND_UPPER;
+            } else if (is(line, start, i, "nodes")) {
+                i = number(line, i, to);
+                nodes = value;
+            } else if (is(line, start, i, "nps")) {
+                i = number(line, i, to);
+                nps = value;
+            } else if (is(line, start, i, "hashfull")) {
+                i = number(line, i, to);
+                hashFull = (int) value;
+            } else if (is(line, start, i, "time")) {
+                i = number(line, i, to);
+                time = value;
+            } else if (is(line, start, i, "pv")) {
+                while (true) {
+                    i = skipSpaces(line, i, to);
+                    int moveStart = i;
+                    i = skipToken(line, i, to);
+                    if (i == moveStart) {
+                        break;
+                    }
+                    addPv(packMove(line, moveStart, i));
+                }
+            } else if (is(line, start, i, "string")) {
+                break;
+            } else if (is(line, start, i, "currmove")) {
+                i = skipToken(line, skipSpaces(line, i, to), to);
+            } else if (is(line, start, i, "currmovenumber") || is(line, start, i, "tbhits")
+                    || is(line, start, i, "cpuload")) {
+                i = number(line, i, to);
+            }
+        }
+        return hasScore || pvLength > 0;
+    }
+
+    /**
+     * Reads the moves of a {@code bestmove e2e4 ponder e7e5} line, leaving the rest of the info untouched.
+     */
+    public void parseBestMove(byte[] line, int from, int to) {
+        int i = skipSpaces(line, skipToken(line, from, to), to);
+        int start = i;
+        i = skipToken(line, i, to);
+        bestMove = packMove(line, start, i);
+        i = skipSpaces(line, i, to);
+        start = i;
+        i = skipToken(line, i, to);
+        if (is(line, start, i, "ponder")) {
+            i = skipSpaces(line, i, to);
+            start = i;
+            i = skipToken(line, i, to);
+            ponder = packMove(line, start, i);
+        } else {
+            ponder = NO_MOVE;
+        }
+    }
+
+    public void parseBestMove(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.ISO_8859_1);
+        parseBestMove(bytes, 0, bytes.length);
+    }
+
+    public boolean parse(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.ISO_8859_1);
+        return parse(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Copies every field of another info, reusing this instance's PV array.
+     */
+    public void copyFrom(UCIInfo other) {
+        depth = other.depth;
+        selDepth = other.selDepth;
+        multiPv = other.multiPv;
+        hasScore = other.hasScore;
+        mate = other.mate;
+        score = other.score;
+        bound = other.bound;
+        nodes = other.nodes;
+        nps = other.nps;
+        hashFull = other.hashFull;
+        time = other.time;
+        if (pv.length < other.pvLength) {
+            pv = new int[other.pv.length];
+        }
+        System.arraycopy(other.pv, 0, pv, 0, other.pvLength);
+        pvLength = other.pvLength;
+        bestMove = other.bestMove;
+        ponder = other.ponder;
+    }
+
+    private void addPv(int move) {
+        if (pvLength == pv.length) {
+            pv = Arrays.copyOf(pv, pv.length * 2);
+        }
+        pv[pvLength++] = move;
+    }
+
+    private int number(byte[] line, int i, int to) {
+        i = skipSpaces(line, i, to);
+        boolean negative = i < to && line[i] == '-';
+        if (negative) {
+            i++;
+        }
+        long result = 0;
+        while (i < to && line[i] >= '0' && line[i] <= '9') {
+            result = result * 10 + (line[i++] - '0');
+        }
+        value = negative ? -result : result;
+        return i;
+    }
+
+    private static int skipSpaces(byte[] line, int i, int to) {
+        while (i < to && line[i] == ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    private static int skipToken(byte[] line, int i, int to) {
+        while (i < to && line[i] != ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean is(byte[] line, int from, int to, String keyword) {
+        if (to - from != keyword.length()) {
+            return false;
+        }
+        for (int i = 0; i < keyword.length(); i++) {
+            if (line[from + i] != keyword.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the UCI move packed as from | to &lt;&lt; 6 | promotion &lt;&lt; 12, {@link #NO_MOVE} if it is not a move
+     */
+    static int packMove(byte[] line, int from, int to) {
+        int length = to - from;
+        if (length < 4 || length > 5) {
+            return NO_MOVE;
+        }
+        int fromSquare = square(line[from], line[from + 1]);
+        int toSquare = square(line[from + 2], line[from + 3]);
+        int promotion = length == 5 ? PROMOTIONS.indexOf(line[from + 4]) : 0;
+        if (fromSquare < 0 || toSquare < 0 || promotion < 0 || fromSquare == toSquare) {
+            return NO_MOVE;
+        }
+        return fromSquare | toSquare << 6 | promotion << 12;
+    }
+
+    private static int square(byte file, byte rank) {
+        if (file < 'a' || file > 'h' || rank < '1' || rank > '8') {
+            return -1;
+        }
+        return (rank - '1') * 8 + (file - 'a');
+    }
+
+    /**
+     * Appends a packed move in UCI notation, {@code none} for {@link #NO_MOVE}.
+     */
+    public static StringBuilder appendMove(StringBuilder out, int move) {
+        if (move == NO_MOVE) {
+            return out.append("none");
+        }
+        int from = move & 63, to = (move >>> 6) & 63, promotion = (move >>> 12) & 7;
+        out.append((char) ('a' + (from & 7))).append((char) ('1' + (from >>> 3)))
+                .append((char) ('a' + (to & 7))).append((char) ('1' + (to >>> 3)));
+        if (promotion > 0) {
+            out.append(PROMOTIONS.charAt(promotion));
+        }
+        return out;
+    }
+
+    public static String moveToString(int move) {
+        return appendMove(new StringBuilder(5), move).toString();
+    }
+
+    /**
+     * @return the PV as space separated UCI moves
+     */
+    public String pvToString() {
+        StringBuilder out = new StringBuilder(pvLength * 5);
+        for (int i = 0; i < pvLength; i++) {
+            if (i > 0) {
+                out.append(' ');
+            }
+            appendMove(out, pv[i]);
+        }
+        return out.toString();
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getSelDepth() {
+        return selDepth;
+    }
+
+    public int getMultiPv() {
+        return multiPv;
+    }
+
+    public boolean hasScore() {
+        return hasScore;
+    }
+
+    /**
+     * @return true if {@link #getScore()} is a number of moves to mate rather than centipawns
+     */
+    public boolean isMate() {
+        return mate;
+    }
+
+    /**
+     * @return centipawns, or moves to mate, from the side to move
+     */
+    public int getScore() {
+        return score;
+    }
+
+    public int getBound() {
+        return bound;
+    }
+
+    public long getNodes() {
+        return nodes;
+    }
+
+    public long getNps() {
+        return nps;
+    }
+
+    public int getHashFull() {
+        return hashFull;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public int getPvLength() {
+        return pvLength;
+    }
+
+    public int getPvMove(int index) {
+        return pv[index];
+    }
+
+    public int getBestMove() {
+        return bestMove;
+    }
+
+    public int getPonder() {
+        return ponder;
+    }
+
+    /**
+     * Renders the info back as an {@code info} line, for logs and legacy callers.
+     */
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder("info depth ").append(depth).append(" seldepth ").append(selDepth);
+        if (multiPv > 0) {
+            out.append(" multipv ").append(multiPv);
+        }
+        if (hasScore) {
+            out.append(mate ? " score mate " : " score cp ").append(score);
+            if (bound == BOUND_LOWER) {
+                out.append(" lowerbound");
+            } else if (bound == BOUND_UPPER) {
+                out.append(" upperbound");
+            }
+        }
+        out.append(" nodes ").append(nodes).append(" nps ").append(nps)
+                .append(" hashfull ").append(hashFull).append(" time ").append(time);
+        if (pvLength > 0) {
+            out.append(" pv ").append(pvToString());
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,189 @@
+package com.stockfishweb.core.engine;
+
+import com.stockfishweb.core.engine.exception.StockfishEngineException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Drains the output of one engine process on its own daemon thread.
+ * <p>
+ * {@code info} lines, the bulk of the output during a search, are parsed straight from the read buffer into a
+ * reusable {@link UCIInfo} and handed to the engine, no string being built for them unless trace logging is on.
+ * Every other line is turned into a {@link UCIEvent} and queued until a caller awaits it, so the pipe never fills
+ * up whether or not anybody is reading, and callers never block on the pipe itself: they wait on the queue,
+ * with a timeout. The queue is bounded; when nobody consumes the output, the oldest events are dropped.
+ * Once the output ends, every pending and future wait fails with a {@link StockfishEngineException}.
+ */
+class UCIReader {
+
+    private static final Log logger = LogFactory.getLog(UCIReader.class);
+
+    static final int CAPACITY = 4096;
+
+    private static final byte[] INFO = "info".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final InputStream input;
+    private final BlockingQueue<UCIEvent> events = new ArrayBlockingQueue<>(CAPACITY);
+    private final Thread thread;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Consumer<UCIInfo> onInfo;
+    private final Consumer<String> onBestMove;
+    private final UCIInfo scratch = new UCIInfo();
+    private volatile boolean closed;
+
+    /**
+     * @param input      engine output
+     * @param name       name of the reader thread
+     * @param onInfo     called on the reader thread with every {@code info} line carrying a score or a PV,
+     *                   the instance is reused for the next line
+     * @param onBestMove called on the reader thread with the {@code bestmove} line ending a search,
+     *                   before it is queued
+     */
+    UCIReader(InputStream input, String name, Consumer<UCIInfo> onInfo, Consumer<String> onBestMove) {
+        this.input = input;
+        this.onInfo = onInfo;
+        this.onBestMove = onBestMove;
+        this.thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        byte[] buffer = new byte[8192];
+        byte[] line = new byte[256];
+        int length = 0;
+        try {
+            int read;
+            while ((read = input.read(buffer)) >= 0) {
+                for (int i = 0; i < read; i++) {
+                    byte b = buffer[i];
+                    if (b == '\n') {
+                        handle(line, length > 0 && line[length - 1] == '\r' ? length - 1 : length);
+                        length = 0;
+                    } else {
+                        if (length == line.length) {
+                            line = Arrays.copyOf(line, length * 2);
+                        }
+                        line[length++] = b;
+                    }
+                }
+            }
+            if (length > 0) {
+                handle(line, length);
+            }
+        } catch (IOException e) {
+            logger.debug(thread.getName() + " stopped reading: " + e.getMessage());
+        } finally {
+            closed = true;
+            enqueue(UCIEvent.END);
+        }
+    }
+
+    private void handle(byte[] line, int length) {
+        if (startsWith(line, length, INFO)) {
+            if (logger.isTraceEnabled()) {
+                logger.trace(new String(line, 0, length, StandardCharsets.ISO_8859_1));
+            }
+            if (scratch.parse(line, 0, length)) {
+                onInfo.accept(scratch);
+            }
+            return;
+        }
+        String text = new String(line, 0, length, StandardCharsets.ISO_8859_1);
+        logger.debug(text);
+        UCIEvent event = UCIEvent.parse(text);
+        if (event.getType() == UCIEvent.Type.BESTMOVE) {
+            onBestMove.accept(text);
+        }
+        enqueue(event);
+    }
+
+    private static boolean startsWith(byte[] line, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (line[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void enqueue(UCIEvent event) {
+        while (!events.offer(event)) {
+            if (events.poll() != null) {
+                dropped.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Waits for the next event.
+     *
+     * @param deadline {@link System#nanoTime()} by which an event must arrive
+     * @param expected what the caller is waiting for, used in error messages
+     * @return the next event, never {@link UCIEvent.Type#EOF}
+     * @throws StockfishEngineException if the output ended or no event arrived before the deadline
+     */
+    UCIEvent next(long deadline, String expected) {
+        if (closed && events.isEmpty()) {
+            throw new StockfishEngineException("Can not find expected line: " + expected);
+        }
+        UCIEvent event;
+        try {
+            event = events.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StockfishEngineException(e);
+        }
+        if (event == null) {
+            throw new StockfishEngineException("Timed out waiting for expected line: " + expected);
+        }
+        if (event.getType() == UCIEvent.Type.EOF) {
+            throw new StockfishEngineException("Can not find expected line: " + expected);
+        }
+        return event;
+    }
+
+    /**
+     * Skips events until one matches.
+     *
+     * @return the matching event
+     * @throws StockfishEngineException if the output ended or no match arrived before the deadline
+     */
+    UCIEvent await(Predicate<UCIEvent> matcher, long deadline, String expected) {
+        while (true) {
+            UCIEvent event = next(deadline, expected);
+            if (matcher.test(event)) {
+                return event;
+            }
+        }
+    }
+
+    /**
+     * Drops every queued event.
+     */
+    void clear() {
+        events.clear();
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,86 @@
+package com.stockfishweb.core.engine.board;
+
+/**
+ * Attack tables over 64-bit boards, bit 0 being a1, bit 7 h1 and bit 63 h8.
+ * <p>
+ * Leaper attacks are looked up directly. Slider attacks walk precomputed rays: the first blocker along a ray
+ * is its lowest set bit for rays going up the board and its highest for rays going down, and everything beyond
+ * it is cut off with the ray starting at the blocker.
+ */
+final class Bitboards {
+
+    static final long FILE_A = 0x0101010101010101L;
+    static final long FILE_H = FILE_A << 7;
+    static final long RANK_1 = 0xFFL;
+    static final long RANK_8 = RANK_1 << 56;
+
+    static final long[] KNIGHT = new long[64];
+    static final long[] KING = new long[64];
+    /**
+     * Squares attacked by a pawn of the given color standing on a square.
+     */
+    static final long[][] PAWN = new long[2][64];
+
+    private static final int NORTH = 0, EAST = 1, NORTH_EAST = 2, NORTH_WEST = 3;
+    private static final int SOUTH = 4, WEST = 5, SOUTH_EAST = 6, SOUTH_WEST = 7;
+
+    private static final int[] FILE_STEPS = {0, 1, 1, -1, 0, -1, 1, -1};
+    private static final int[] RANK_STEPS = {1, 0, 1, 1, -1, 0, -1, -1};
+
+    private static final long[][] RAYS = new long[8][64];
+
+    static {
+        for (int square = 0; square < 64; square++) {
+            int file = square & 7, rank = square >>> 3;
+            KNIGHT[square] = leaper(file, rank, new int[][]{{1, 2}, {2, 1}, {2, -1}, {1, -2}, {-1, -2}, {-2, -1}, {-2, 1}, {-1, 2}});
+            KING[square] = leaper(file, rank, new int[][]{{0, 1}, {1, 1}, {1, 0}, {1, -1}, {0, -1}, {-1, -1}, {-1, 0}, {-1, 1}});
+            PAWN[Board.WHITE][square] = leaper(file, rank, new int[][]{{-1, 1}, {1, 1}});
+            PAWN[Board.BLACK][square] = leaper(file, rank, new int[][]{{-1, -1}, {1, -1}});
+            for (int direction = 0; direction < 8; direction++) {
+                long ray = 0;
+                for (int f = file + FILE_STEPS[direction], r = rank + RANK_STEPS[direction];
+                     f >= 0 && f < 8 && r >= 0 && r < 8;
+                     f += FILE_STEPS[direction], r += RANK_STEPS[direction]) {
+                    ray |= 1L << (r * 8 + f);
+                }
+                RAYS[direction][square] = ray;
+            }
+        }
+    }
+
+    private Bitboards() {
+    }
+
+    private static long leaper(int file, int rank, int[][] steps) {
+        long attacks = 0;
+        for (int[] step : steps) {
+            int f = file + step[0], r = rank + step[1];
+            if (f >= 0 && f < 8 && r >= 0 && r < 8) {
+                attacks |= 1L << (r * 8 + f);
+            }
+        }
+        return attacks;
+    }
+
+    private static long up(int direction, int square, long occupied) {
+        long ray = RAYS[direction][square];
+        long blockers = ray & occupied;
+        return blockers == 0 ? ray : ray ^ RAYS[direction][Long.numberOfTrailingZeros(blockers)];
+    }
+
+    private static long down(int direction, int square, long occupied) {
+        long ray = RAYS[direction][square];
+        long blockers = ray & occupied;
+        return blockers == 0 ? ray : ray ^ RAYS[direction][63 - Long.numberOfLeadingZeros(blockers)];
+    }
+
+    static long rook(int square, long occupied) {
+        return up(NORTH, square, occupied) | up(EAST, square, occupied)
+                | down(SOUTH, square, occupied) | down(WEST, square, occupied);
+    }
+
+    static long bishop(int square, long occupied) {
+        return up(NORTH_EAST, square, occupied) | up(NORTH_WEST, square, occupied)
+                | down(SOUTH_EAST, square, occupied) | down(SOUTH_WEST, square, occupied);
+    }
+}
@@ -0,0 +1,518 @@
+package com.stockfishweb.core.engine.board;
+
+import com.stockfishweb.core.engine.UCIInfo;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Chess position on bitboards, with a legal move generator, enough to answer the queries that need no search:
+ * legal moves, checkers and the position reached by a move, in microseconds instead of an engine round trip.
+ * <p>
+ * Positions are read and written as FEN the way Stockfish does: an en passant square is only kept when a pawn
+ * can actually take on it, and a list of moves is played up to its first illegal one.
+ * Moves are packed like {@link UCIInfo} moves: from square, to square shifted by 6 and promotion piece,
+ * one of {@code nbrq}, shifted by 12. A board is immutable, playing a move returns a new one.
+ */
+public final class Board {
+
+    static final int WHITE = 0;
+    static final int BLACK = 1;
+
+    static final int PAWN = 0, KNIGHT = 1, BISHOP = 2, ROOK = 3, QUEEN = 4, KING = 5;
+
+    private static final String PIECES = "PNBRQKpnbrqk";
+    private static final String PROMOTIONS = " nbrq";
+
+    private static final int WHITE_OO = 1, WHITE_OOO = 2, BLACK_OO = 4, BLACK_OOO = 8;
+
+    /**
+     * Castling rights kept when a piece leaves or lands on a square.
+     */
+    private static final int[] CASTLING_MASK = new int[64];
+
+    static {
+        Arrays.fill(CASTLING_MASK, WHITE_OO | WHITE_OOO | BLACK_OO | BLACK_OOO);
+        CASTLING_MASK[square("e1")] &= ~(WHITE_OO | WHITE_OOO);
+        CASTLING_MASK[square("h1")] &= ~WHITE_OO;
+        CASTLING_MASK[square("a1")] &= ~WHITE_OOO;
+        CASTLING_MASK[square("e8")] &= ~(BLACK_OO | BLACK_OOO);
+        CASTLING_MASK[square("h8")] &= ~BLACK_OO;
+        CASTLING_MASK[square("a8")] &= ~BLACK_OOO;
+    }
+
+    /**
+     * Pieces by color * 6 + type.
+     */
+    private final long[] pieces = new long[12];
+    private final long[] colors = new long[2];
+    /**
+     * Piece index on every square, -1 for an empty one.
+     */
+    private final byte[] squares = new byte[64];
+    private int sideToMove;
+    private int castling;
+    private int epSquare = -1;
+    private int halfmoveClock;
+    private int fullmoveNumber = 1;
+
+    private Board() {
+        Arrays.fill(squares, (byte) -1);
+    }
+
+    private Board(Board other) {
+        System.arraycopy(other.pieces, 0, pieces, 0, pieces.length);
+        System.arraycopy(other.colors, 0, colors, 0, colors.length);
+        System.arraycopy(other.squares, 0, squares, 0, squares.length);
+        sideToMove = other.sideToMove;
+        castling = other.castling;
+        epSquare = other.epSquare;
+        halfmoveClock = other.halfmoveClock;
+        fullmoveNumber = other.fullmoveNumber;
+    }
+
+    /**
+     * @param fen position, the move counters may be left out
+     * @return the position
+     * @throws IllegalArgumentException if the FEN can not be read, or either side has not exactly one king
+     */
+    public static Board fromFen(String fen) {
+        if (fen == null) {
+            throw new IllegalArgumentException("Missing FEN");
+        }
+        String[] fields = fen.trim().split("\\s+");
+        if (fields.length < 2) {
+            throw new IllegalArgumentException("Incomplete FEN: " + fen);
+        }
+        Board board = new Board();
+        int rank = 7, file = 0;
+        for (char c : fields[0].toCharArray()) {
+            if (c == '/') {
+                if (file != 8 || rank == 0) {
+                    throw new IllegalArgumentException("Invalid FEN placement: " + fen);
+                }
+                rank--;
+                file = 0;
+            } else if (c >= '1' && c <= '8') {
+                file += c - '0';
+            } else {
+                int piece = PIECES.indexOf(c);
+                if (piece < 0 || file > 7) {
+                    throw new IllegalArgumentException("Invalid FEN placement: " + fen);
+                }
+                board.put(piece, rank * 8 + file++);
+            }
+            if (file > 8) {
+                throw new IllegalArgumentException("Invalid FEN placement: " + fen);
+            }
+        }
+        if (rank != 0 || file != 8) {
+            throw new IllegalArgumentException("Invalid FEN placement: " + fen);
+        }
+        if (Long.bitCount(board.pieces[KING]) != 1 || Long.bitCount(board.pieces[6 + KING]) != 1) {
+            throw new IllegalArgumentException("Each side needs exactly one king: " + fen);
+        }
+
+        switch (fields[1]) {
+            case "w" -> board.sideToMove = WHITE;
+            case "b" -> board.sideToMove = BLACK;
+            default -> throw new IllegalArgumentException("Invalid side to move: " + fen);
+        }
+
+        if (fields.length > 2 && !fields[2].equals("-")) {
+            for (char c : fields[2].toCharArray()) {
+                switch (c) {
+                    case 'K' -> board.castling |= board.canCastle(WHITE, "h1") ? WHITE_OO : 0;
+                    case 'Q' -> board.castling |= board.canCastle(WHITE, "a1") ? WHITE_OOO : 0;
+                    case 'k' -> board.castling |= board.canCastle(BLACK, "h8") ? BLACK_OO : 0;
+                    case 'q' -> board.castling |= board.canCastle(BLACK, "a8") ? BLACK_OOO : 0;
+                    default -> throw new IllegalArgumentException("Invalid castling rights: " + fen);
+                }
+            }
+        }
+
+        if (fields.length > 3 && !fields[3].equals("-")) {
+            int ep = fields[3].length() == 2 ? square(fields[3]) : -1;
+            if (ep < 0) {
+                throw new IllegalArgumentException("Invalid en passant square: " + fen);
+            }
+            int us = board.sideToMove, them = us ^ 1;
+            int pushed = ep + (us == WHITE ? -8 : 8);
+            if (pushed >= 0 && pushed < 64
+                    && (Bitboards.PAWN[them][ep] & board.pieces[us * 6 + PAWN]) != 0
+                    && (board.pieces[them * 6 + PAWN] & 1L << pushed) != 0) {
+                board.epSquare = ep;
+            }
+        }
+
+        try {
+            if (fields.length > 4) {
+                board.halfmoveClock = Math.max(0, Integer.parseInt(fields[4]));
+            }
+            if (fields.length > 5) {
+                board.fullmoveNumber = Math.max(1, Integer.parseInt(fields[5]));
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid move counters: " + fen, e);
+        }
+        return board;
+    }
+
+    private boolean canCastle(int color, String rookSquare) {
+        int king = color * 6 + KING, rook = color * 6 + ROOK;
+        return squares[square(color == WHITE ? "e1" : "e8")] == king && squares[square(rookSquare)] == rook;
+    }
+
+    private void put(int piece, int square) {
+        long bit = 1L << square;
+        pieces[piece] |= bit;
+        colors[piece / 6] |= bit;
+        squares[square] = (byte) piece;
+    }
+
+    private void remove(int square) {
+        int piece = squares[square];
+        long bit = 1L << square;
+        pieces[piece] &= ~bit;
+        colors[piece / 6] &= ~bit;
+        squares[square] = -1;
+    }
+
+    /**
+     * @return the position as FEN
+     */
+    public String toFen() {
+        StringBuilder fen = new StringBuilder(90);
+        for (int rank = 7; rank >= 0; rank--) {
+            int empty = 0;
+            for (int file = 0; file < 8; file++) {
+                int piece = squares[rank * 8 + file];
+                if (piece < 0) {
+                    empty++;
+                    continue;
+                }
+                if (empty > 0) {
+                    fen.append(empty);
+                    empty = 0;
+                }
+                fen.append(PIECES.charAt(piece));
+            }
+            if (empty > 0) {
+                fen.append(empty);
+            }
+            if (rank > 0) {
+                fen.append('/');
+            }
+        }
+        fen.append(sideToMove == WHITE ? " w " : " b ");
+        if (castling == 0) {
+            fen.append('-');
+        } else {
+            if ((castling & WHITE_OO) != 0) fen.append('K');
+            if ((castling & WHITE_OOO) != 0) fen.append('Q');
+            if ((castling & BLACK_OO) != 0) fen.append('k');
+            if ((castling & BLACK_OOO) != 0) fen.append('q');
+        }
+        fen.append(' ').append(epSquare < 0 ? "-" : squareName(epSquare));
+        return fen.append(' ').append(halfmoveClock).append(' ').append(fullmoveNumber).toString();
+    }
+
+    /**
+     * @return pieces giving check to the side to move, as a bitboard
+     */
+    public long checkers() {
+        int us = sideToMove;
+        return attackers(Long.numberOfTrailingZeros(pieces[us * 6 + KING]), us ^ 1, colors[WHITE] | colors[BLACK]);
+    }
+
+    /**
+     * @return every legal move of the side to move, packed
+     */
+    public int[] legalMoves() {
+        int[] moves = new int[256];
+        int count = generate(moves);
+        int legal = 0;
+        for (int i = 0; i < count; i++) {
+            if (isLegal(moves[i])) {
+                moves[legal++] = moves[i];
+            }
+        }
+        return Arrays.copyOf(moves, legal);
+    }
+
+    /**
+     * Plays moves given in UCI notation, the way {@code position fen ... moves ...} does:
+     * the moves are played in turn until one of them is not legal, which ends the list.
+     *
+     * @param moves space separated moves, null or blank for none
+     * @return the position reached
+     */
+    public Board play(String moves) {
+        Board board = this;
+        if (moves == null) {
+            return board;
+        }
+        for (String move : moves.trim().split("\\s+")) {
+            int legal = board.findMove(move);
+            if (legal == UCIInfo.NO_MOVE) {
+                break;
+            }
+            board = board.play(legal);
+        }
+        return board;
+    }
+
+    /**
+     * @param move move in UCI notation
+     * @return the legal move it stands for, {@link UCIInfo#NO_MOVE} if there is none
+     */
+    public int findMove(String move) {
+        if (move.length() < 4 || move.length() > 5) {
+            return UCIInfo.NO_MOVE;
+        }
+        String normalized = move.toLowerCase(Locale.ROOT);
+        for (int legal : legalMoves()) {
+            if (UCIInfo.moveToString(legal).equals(normalized)) {
+                return legal;
+            }
+        }
+        return UCIInfo.NO_MOVE;
+    }
+
+    /**
+     * @param move legal move, as generated by {@link #legalMoves()}
+     * @return the position after the move
+     */
+    public Board play(int move) {
+        Board next = new Board(this);
+        next.make(move);
+        return next;
+    }
+
+    /**
+     * Looks for the moves leading from this position to another one, such as from the position a user analyzed
+     * to the one they stepped to next. Positions must match in full, move counters aside, halfmove clock included.
+     *
+     * @param target   position to reach
+     * @param maxPlies most moves to try
+     * @return the shortest sequence of moves found, empty if the positions are the same, null if there is none
+     */
+    public int[] pathTo(Board target, int maxPlies) {
+        for (int plies = 0; plies <= maxPlies; plies++) {
+            int[] path = new int[plies];
+            if (search(target, path, 0)) {
+                return path;
+            }
+        }
+        return null;
+    }
+
+    private boolean search(Board target, int[] path, int ply) {
+        int remaining = path.length - ply;
+        if (remaining == 0) {
+            return samePosition(target);
+        }
+        // a move changes at most 4 squares, castling, and the side to move alternates
+        if (changedSquares(target) > 4 * remaining || (sideToMove == target.sideToMove) != (remaining % 2 == 0)) {
+            return false;
+        }
+        for (int move : legalMoves()) {
+            path[ply] = move;
+            if (play(move).search(target, path, ply + 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean samePosition(Board other) {
+        return sideToMove == other.sideToMove && castling == other.castling && epSquare == other.epSquare
+                && halfmoveClock == other.halfmoveClock && Arrays.equals(squares, other.squares);
+    }
+
+    private int changedSquares(Board other) {
+        int changed = 0;
+        for (int color = WHITE; color <= BLACK; color++) {
+            changed += Long.bitCount(colors[color] ^ other.colors[color]);
+        }
+        return changed;
+    }
+
+    /**
+     * Counts the leaf nodes of the legal move tree, to check the move generator against known counts.
+     */
+    public long perft(int depth) {
+        if (depth == 0) {
+            return 1;
+        }
+        int[] moves = legalMoves();
+        if (depth == 1) {
+            return moves.length;
+        }
+        long nodes = 0;
+        for (int move : moves) {
+            nodes += play(move).perft(depth - 1);
+        }
+        return nodes;
+    }
+
+    private void make(int move) {
+        int from = move & 63, to = (move >>> 6) & 63, promotion = (move >>> 12) & 7;
+        int us = sideToMove, them = us ^ 1;
+        int piece = squares[from];
+        int type = piece % 6;
+        boolean capture = squares[to] >= 0;
+
+        if (capture) {
+            remove(to);
+        } else if (type == PAWN && to == epSquare) {
+            remove(to + (us == WHITE ? -8 : 8));
+            capture = true;
+        }
+        remove(from);
+        put(promotion > 0 ? us * 6 + promotion : piece, to);
+
+        if (type == KING && Math.abs(to - from) == 2) {
+            int rookFrom = to > from ? to + 1 : to - 2;
+            int rookTo = to > from ? to - 1 : to + 1;
+            remove(rookFrom);
+            put(us * 6 + ROOK, rookTo);
+        }
+
+        castling &= CASTLING_MASK[from] & CASTLING_MASK[to];
+
+        epSquare = -1;
+        if (type == PAWN && Math.abs(to - from) == 16) {
+            int skipped = (from + to) / 2;
+            // as Stockfish does, only a square an enemy pawn attacks is worth recording
+            if ((Bitboards.PAWN[us][skipped] & pieces[them * 6 + PAWN]) != 0) {
+                epSquare = skipped;
+            }
+        }
+
+        halfmoveClock = type == PAWN || capture ? 0 : halfmoveClock + 1;
+        if (us == BLACK) {
+            fullmoveNumber++;
+        }
+        sideToMove = them;
+    }
+
+    private boolean isLegal(int move) {
+        Board next = new Board(this);
+        next.make(move);
+        int us = sideToMove;
+        long occupied = next.colors[WHITE] | next.colors[BLACK];
+        return next.attackers(Long.numberOfTrailingZeros(next.pieces[us * 6 + KING]), us ^ 1, occupied) == 0;
+    }
+
+    /**
+     * @return pieces of the given color attacking a square
+     */
+    private long attackers(int square, int color, long occupied) {
+        int base = color * 6;
+        return (Bitboards.PAWN[color ^ 1][square] & pieces[base + PAWN])
+                | (Bitboards.KNIGHT[square] & pieces[base + KNIGHT])
+                | (Bitboards.KING[square] & pieces[base + KING])
+                | (Bitboards.bishop(square, occupied) & (pieces[base + BISHOP] | pieces[base + QUEEN]))
+                | (Bitboards.rook(square, occupied) & (pieces[base + ROOK] | pieces[base + QUEEN]));
+    }
+
+    /**
+     * Generates the pseudo-legal moves of the side to move.
+     *
+     * @return number of moves written
+     */
+    private int generate(int[] moves) {
+        int us = sideToMove, them = us ^ 1, base = us * 6;
+        long own = colors[us], enemy = colors[them], occupied = own | enemy, empty = ~occupied;
+        int count = 0;
+
+        long pawns = pieces[base + PAWN];
+        int forward = us == WHITE ? 8 : -8;
+        long lastRank = us == WHITE ? Bitboards.RANK_8 : Bitboards.RANK_1;
+        long startRank = us == WHITE ? Bitboards.RANK_1 << 8 : Bitboards.RANK_8 >>> 8;
+        long epBit = epSquare < 0 ? 0 : 1L << epSquare;
+        for (long b = pawns; b != 0; b &= b - 1) {
+            int from = Long.numberOfTrailingZeros(b);
+            long targets = Bitboards.PAWN[us][from] & (enemy | epBit);
+            int single = from + forward;
+            if ((empty & 1L << single) != 0) {
+                targets |= 1L << single;
+                if ((startRank & 1L << from) != 0 && (empty & 1L << (single + forward)) != 0) {
+                    targets |= 1L << (single + forward);
+                }
+            }
+            for (; targets != 0; targets &= targets - 1) {
+                int to = Long.numberOfTrailingZeros(targets);
+                if ((lastRank & 1L << to) != 0) {
+                    for (int promotion = 1; promotion <= 4; promotion++) {
+                        moves[count++] = from | to << 6 | promotion << 12;
+                    }
+                } else {
+                    moves[count++] = from | to << 6;
+                }
+            }
+        }
+
+        for (int type = KNIGHT; type <= KING; type++) {
+            for (long b = pieces[base + type]; b != 0; b &= b - 1) {
+                int from = Long.numberOfTrailingZeros(b);
+                long targets = switch (type) {
+                    case KNIGHT -> Bitboards.KNIGHT[from];
+                    case BISHOP -> Bitboards.bishop(from, occupied);
+                    case ROOK -> Bitboards.rook(from, occupied);
+                    case QUEEN -> Bitboards.bishop(from, occupied) | Bitboards.rook(from, occupied);
+                    default -> Bitboards.KING[from];
+                };
+                for (targets &= ~own; targets != 0; targets &= targets - 1) {
+                    moves[count++] = from | Long.numberOfTrailingZeros(targets) << 6;
+                }
+            }
+        }
+
+        int king = Long.numberOfTrailingZeros(pieces[base + KING]);
+        int kingSide = us == WHITE ? WHITE_OO : BLACK_OO;
+        int queenSide = us == WHITE ? WHITE_OOO : BLACK_OOO;
+        if ((castling & (kingSide | queenSide)) != 0 && attackers(king, them, occupied) == 0) {
+            if ((castling & kingSide) != 0
+                    && (occupied & (3L << (king + 1))) == 0
+                    && attackers(king + 1, them, occupied) == 0) {
+                // the destination square is checked with the other moves, by isLegal
+                moves[count++] = king | (king + 2) << 6;
+            }
+            if ((castling & queenSide) != 0
+                    && (occupied & (7L << (king - 3))) == 0
+                    && attackers(king - 1, them, occupied) == 0) {
+                moves[count++] = king | (king - 2) << 6;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return side to move, 0 for white and 1 for black
+     */
+    public int getSideToMove() {
+        return sideToMove;
+    }
+
+    static int square(String name) {
+        char file = name.charAt(0), rank = name.charAt(1);
+        if (file < 'a' || file > 'h' || rank < '1' || rank > '8') {
+            return -1;
+        }
+        return (rank - '1') * 8 + (file - 'a');
+    }
+
+    /**
+     * @return the square in algebraic notation, such as {@code e4}
+     */
+    public static String squareName(int square) {
+        return new String(new char[]{(char) ('a' + (square & 7)), (char) ('1' + (square >>> 3))});
+    }
+
+    @Override
+    public String toString() {
+        return toFen();
+    }
+}
@@ -92,6 +92,24 @@ public enum Option {
         return this;
     }
 
+    /**
+     * @return value the option is set to at launch
+     */
+    public long getValue() {
+        return value;
+    }
+
+    /**
+     * Generates the UCI command setting this option to the given value, leaving the shared value of the constant
+     * untouched, for options set per query.
+     *
+     * @param value option value
+     * @return UCI command to Stockfish
+     */
+    public String command(long value) {
+        return "setoption name " + optionString + " value " + value;
+    }
+
     /**
      * Generate UCI command string to set option to Stockfish.
      *
@@ -29,6 +29,9 @@ public class Query {
     private String fen, move;
     private int difficulty, depth;
     private long movetime;
+    private long timeBudget;
+    private int multiPv;
+    private EvalSource evalSource;
 
     public Query(){
 
@@ -118,6 +121,47 @@ public class Query {
         return movetime;
     }
 
+    /**
+     * @return milliseconds a best move search may take before it is stopped and answers with the deepest
+     * line it completed, 0 for no budget. With a budget and no depth, the search is not limited by depth.
+     */
+    public long getTimeBudget() {
+        return timeBudget;
+    }
+
+    public void setTimeBudget(long timeBudget) {
+        this.timeBudget = timeBudget;
+    }
+
+    /**
+     * @return number of best lines a search reports, ranked; 0 or 1 for the best line only
+     */
+    public int getMultiPv() {
+        return multiPv;
+    }
+
+    public void setMultiPv(int multiPv) {
+        this.multiPv = multiPv;
+    }
+
+    /**
+     * @return where the eval of the response comes from, null for the server default
+     */
+    public EvalSource getEvalSource() {
+        return evalSource;
+    }
+
+    public void setEvalSource(EvalSource evalSource) {
+        this.evalSource = evalSource;
+    }
+
+    /**
+     * @return the depth a best move search for this query runs to once normalized
+     */
+    public int getSearchDepth() {
+        return getDepth() <= 0 || getDepth() > MAX_DEPTH ? MAX_DEPTH : getDepth();
+    }
+
     public void setDepth(int depth) {
         this.depth = depth;
     }
@@ -134,6 +178,20 @@ public class Query {
         this.type = type;
     }
 
+    /**
+     * Copies the query, so that sub-queries running concurrently never share mutable state.
+     *
+     * @param type type of the copy
+     * @return a new query with the given type and the same parameters
+     */
+    public Query copy(QueryType type) {
+        Query copy = new Query(type, getFen(), getMove(), getDifficulty(), getDepth(), getMovetime());
+        copy.setTimeBudget(getTimeBudget());
+        copy.setMultiPv(getMultiPv());
+        copy.setEvalSource(getEvalSource());
+        return copy;
+    }
+
     private boolean isWithinLimits() {
         if (/* Best_Move.equals(getType()) && */ ((getDepth() <= 0 || getMovetime() <= 0)
                 || (getDepth() > MAX_DEPTH || getMovetime() > MAX_TIME))) {
@@ -144,6 +202,10 @@ public class Query {
 
     public void normalize() {
         setMovetime(0);
+        if (getTimeBudget() > 0 && getDepth() <= 0) {
+            // searched until the budget runs out
+            return;
+        }
         if (!isWithinLimits()) {
             if(getDepth() <= 0 || getDepth() > MAX_DEPTH) {
                 setDepth(MAX_DEPTH);
@@ -171,6 +233,9 @@ public class Query {
         private String fen, move;
         private int difficulty = -1, depth = -1;
         private long movetime = -1;
+        private long timeBudget;
+        private int multiPv;
+        private EvalSource evalSource;
 
         /**
          * @param type type of UCI query
@@ -227,6 +292,34 @@ public class Query {
             return this;
         }
 
+        /**
+         * @param timeBudget milliseconds a best move search may take before it is stopped
+         *                   and answers with the deepest line it completed, 0 for no budget
+         * @return Builder
+         */
+        public Builder setTimeBudget(long timeBudget) {
+            this.timeBudget = timeBudget;
+            return this;
+        }
+
+        /**
+         * @param multiPv number of best lines a search reports, ranked; 0 or 1 for the best line only
+         * @return Builder
+         */
+        public Builder setMultiPv(int multiPv) {
+            this.multiPv = multiPv;
+            return this;
+        }
+
+        /**
+         * @param evalSource where the eval of the response comes from, null for the server default
+         * @return Builder
+         */
+        public Builder setEvalSource(EvalSource evalSource) {
+            this.evalSource = evalSource;
+            return this;
+        }
+
         /**
          * Build Query.
          *
@@ -244,11 +337,13 @@ public class Query {
             if (!fenPattern.matcher(fen).matches()) {
                 throw new IllegalArgumentException("Incorrect FEN in Query: " + fen);
             }
-            if (move != null) {
-                return new Query(type, fen, move, difficulty, depth, movetime);
-            }
-
-            return new Query(type, fen, difficulty, depth, movetime);
+            Query query = move != null
+                    ? new Query(type, fen, move, difficulty, depth, movetime)
+                    : new Query(type, fen, difficulty, depth, movetime);
+            query.setTimeBudget(timeBudget);
+            query.setMultiPv(multiPv);
+            query.setEvalSource(evalSource);
+            return query;
         }
     }
 }
@@ -0,0 +1,258 @@
+package com.stockfishweb.core.engine.util;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * CPUs this process may run on, with the physical core and NUMA node of each, as read from
+ * {@code /sys/devices/system}. Used to cut the machine into disjoint slices of whole cores, one per engine.
+ */
+public class CpuTopology {
+    private static final Log log = LogFactory.getLog(CpuTopology.class);
+
+    private static final Path SYS_ROOT = Paths.get("/sys/devices/system");
+    private static final Path PROC_STATUS = Paths.get("/proc/self/status");
+
+    /**
+     * Allowed CPUs, ordered by node, package and core, so hyper-thread siblings are next to each other.
+     */
+    private final List<Cpu> cpus;
+
+    private CpuTopology(List<Cpu> cpus) {
+        this.cpus = cpus;
+    }
+
+    /**
+     * Reads the topology of this machine, restricted to the CPUs the process is allowed on, which is less than
+     * the whole machine in a container or under {@code taskset}. Missing information degrades to a single node
+     * with every CPU being its own core.
+     */
+    public static CpuTopology detect() {
+        String allowed = null;
+        try {
+            for (String line : Files.readAllLines(PROC_STATUS)) {
+                if (line.startsWith("Cpus_allowed_list:")) {
+                    allowed = line.substring("Cpus_allowed_list:".length()).trim();
+                }
+            }
+        } catch (IOException e) {
+            log.debug("Unable to read the allowed CPUs: " + e.getMessage());
+        }
+        return read(SYS_ROOT, allowed);
+    }
+
+    /**
+     * @param sysRoot {@code /sys/devices/system} or a copy of it
+     * @param allowed allowed CPUs as a list such as {@code 0-3,8-11}, null for every online CPU
+     */
+    static CpuTopology read(Path sysRoot, String allowed) {
+        int[] ids = null;
+        if (allowed != null && !allowed.isEmpty()) {
+            ids = parseList(allowed);
+        } else {
+            String online = readFirstLine(sysRoot.resolve("cpu/online"));
+            if (online != null) {
+                ids = parseList(online);
+            }
+        }
+        if (ids == null || ids.length == 0) {
+            ids = new int[Runtime.getRuntime().availableProcessors()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = i;
+            }
+        }
+
+        Map<Integer, Integer> nodes = new HashMap<>();
+        try (DirectoryStream<Path> nodeDirs = Files.newDirectoryStream(sysRoot.resolve("node"), "node[0-9]*")) {
+            for (Path nodeDir : nodeDirs) {
+                int node = Integer.parseInt(nodeDir.getFileName().toString().substring(4));
+                String cpuList = readFirstLine(nodeDir.resolve("cpulist"));
+                if (cpuList != null && !cpuList.isEmpty()) {
+                    for (int cpu : parseList(cpuList)) {
+                        nodes.put(cpu, node);
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            log.debug("No NUMA topology: " + e.getMessage());
+        }
+
+        List<Cpu> cpus = new ArrayList<>(ids.length);
+        for (int id : ids) {
+            Path topology = sysRoot.resolve("cpu/cpu" + id + "/topology");
+            cpus.add(new Cpu(id, nodes.getOrDefault(id, 0),
+                    readInt(topology.resolve("physical_package_id"), 0),
+                    readInt(topology.resolve("core_id"), id)));
+        }
+        cpus.sort(Comparator.comparingInt((Cpu c) -> c.node).thenComparingInt(c -> c.pkg)
+                .thenComparingInt(c -> c.core).thenComparingInt(c -> c.id));
+        return new CpuTopology(cpus);
+    }
+
+    /**
+     * @return number of CPUs the process may run on
+     */
+    public int getCpuCount() {
+        return cpus.size();
+    }
+
+    /**
+     * Cuts the allowed CPUs into disjoint slices of at least {@code size} CPUs, keeping every slice on a single
+     * NUMA node. Slices are made of whole cores, hyper-thread siblings are never split between two slices: with
+     * two threads per core, a slice of 1 or 3 CPUs takes 1 or 2 whole cores, leaving the extra sibling idle rather
+     * than letting another engine share the core. A node holding fewer CPUs than a slice is not split that way,
+     * slices then span nodes. Cores left over at the end of a node are dropped rather than making a smaller slice.
+     *
+     * @param size CPUs per slice
+     * @return the slices, at least one even if it has fewer CPUs than asked for
+     */
+    public List<Slice> slice(int size) {
+        size = Math.max(1, size);
+        Map<Integer, List<Cpu>> byNode = new TreeMap<>();
+        for (Cpu cpu : cpus) {
+            byNode.computeIfAbsent(cpu.node, n -> new ArrayList<>()).add(cpu);
+        }
+        boolean perNode = true;
+        for (List<Cpu> nodeCpus : byNode.values()) {
+            perNode &= nodeCpus.size() >= size;
+        }
+
+        List<Slice> slices = new ArrayList<>();
+        if (perNode) {
+            for (Map.Entry<Integer, List<Cpu>> node : byNode.entrySet()) {
+                addSlices(slices, node.getValue(), size, node.getKey());
+            }
+        } else {
+            addSlices(slices, cpus, size, -1);
+        }
+        if (slices.isEmpty()) {
+            slices.add(new Slice(cpus.stream().mapToInt(c -> c.id).toArray(), -1));
+        }
+        return slices;
+    }
+
+    /**
+     * @param cpus CPUs ordered by core, siblings next to each other
+     */
+    private static void addSlices(List<Slice> slices, List<Cpu> cpus, int size, int node) {
+        List<Integer> ids = new ArrayList<>();
+        Cpu previous = null;
+        for (Cpu cpu : cpus) {
+            if (previous != null && !previous.isSiblingOf(cpu) && ids.size() >= size) {
+                slices.add(new Slice(ids.stream().mapToInt(Integer::intValue).toArray(), node));
+                ids.clear();
+            }
+            ids.add(cpu.id);
+            previous = cpu;
+        }
+        if (ids.size() >= size) {
+            slices.add(new Slice(ids.stream().mapToInt(Integer::intValue).toArray(), node));
+        }
+    }
+
+    /**
+     * @param list CPU list as found in sysfs, such as {@code 0-3,8,10-11}
+     * @return the CPUs, in the order of the list
+     */
+    public static int[] parseList(String list) {
+        List<Integer> ids = new ArrayList<>();
+        for (String range : list.trim().split(",")) {
+            if (range.isEmpty()) {
+                continue;
+            }
+            int dash = range.indexOf('-');
+            int first = Integer.parseInt(range.substring(0, dash < 0 ? range.length() : dash).trim());
+            int last = dash < 0 ? first : Integer.parseInt(range.substring(dash + 1).trim());
+            for (int id = first; id <= last; id++) {
+                ids.add(id);
+            }
+        }
+        return ids.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static String readFirstLine(Path file) {
+        try {
+            List<String> lines = Files.readAllLines(file);
+            return lines.isEmpty() ? null : lines.get(0).trim();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static int readInt(Path file, int fallback) {
+        String line = readFirstLine(file);
+        try {
+            return line == null ? fallback : Integer.parseInt(line);
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    private static class Cpu {
+        private final int id, node, pkg, core;
+
+        private Cpu(int id, int node, int pkg, int core) {
+            this.id = id;
+            this.node = node;
+            this.pkg = pkg;
+            this.core = core;
+        }
+
+        /**
+         * @return true if both CPUs are hyper-threads of the same physical core
+         */
+        boolean isSiblingOf(Cpu other) {
+            return node == other.node && pkg == other.pkg && core == other.core;
+        }
+    }
+
+    /**
+     * Set of CPUs given to one engine.
+     */
+    public static class Slice {
+        private final int[] cpus;
+        private final int node;
+
+        Slice(int[] cpus, int node) {
+            this.cpus = cpus;
+            this.node = node;
+        }
+
+        public int size() {
+            return cpus.length;
+        }
+
+        /**
+         * @return NUMA node holding every CPU of the slice, -1 if it spans nodes
+         */
+        public int getNode() {
+            return node;
+        }
+
+        /**
+         * @return the CPUs as a comma separated list, as {@code taskset -c} and {@code numactl} take them
+         */
+        public String getCpuList() {
+            StringBuilder list = new StringBuilder();
+            for (int cpu : cpus) {
+                if (list.length() > 0) {
+                    list.append(',');
+                }
+                list.append(cpu);
+            }
+            return list.toString();
+        }
+
+        @Override
+        public String toString() {
+            return "cpus " + getCpuList() + (node >= 0 ? " on node " + node : "");
+        }
+    }
+}
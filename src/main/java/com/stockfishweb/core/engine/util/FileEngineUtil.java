@@ -10,6 +10,7 @@ import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Set;
 import java.util.TreeSet;
@@ -24,32 +25,52 @@ public class FileEngineUtil {
     public static final String ENGINE_FILE_NAME_SUFFIX = "_x64";
     public static final String FILE_MASK = ENGINE_FILE_NAME_PREFIX + "??" + ENGINE_FILE_NAME_SUFFIX + "*";
 
-    public static Set<Integer> SUPPORTED_VERSIONS = new TreeSet<>(Comparator.reverseOrder());
+    private static volatile Set<Integer> supportedVersions;
 
-    static {
-        try {
-            try (DirectoryStream<Path> assetsDir = Files.newDirectoryStream(
-                    Paths.get(ASSETS_LOCATION), FILE_MASK)) {
-                Pattern pattern = Pattern.compile("[1-9][0-9]");
-                log.debug("Supported engines:");
-                for (Path executable : assetsDir) {
-                    log.debug(executable.toString());
-
-                    String entry = executable.toString();
-                    Matcher matcher = pattern.matcher(entry);
-                    if (matcher.find()) {
-                        SUPPORTED_VERSIONS.add(Integer.parseInt(matcher.group(0)));
-                    }
+    /**
+     * Engine versions found in the assets directory, highest first. The directory is scanned on first use rather
+     * than when the class is loaded, so a missing engine surfaces as an exception of the caller, and is scanned
+     * again on the next call if it failed.
+     *
+     * @throws StockfishEngineException if the directory can not be read or holds no engine
+     */
+    public static Set<Integer> getSupportedVersions() {
+        Set<Integer> versions = supportedVersions;
+        if (versions == null) {
+            synchronized (FileEngineUtil.class) {
+                versions = supportedVersions;
+                if (versions == null) {
+                    versions = Collections.unmodifiableSet(scan());
+                    supportedVersions = versions;
                 }
             }
-            if (SUPPORTED_VERSIONS.isEmpty()) {
-                log.fatal("No engines found.");
-                throw new StockfishEngineException("No engines found.");
+        }
+        return versions;
+    }
+
+    private static Set<Integer> scan() {
+        Set<Integer> versions = new TreeSet<>(Comparator.reverseOrder());
+        try (DirectoryStream<Path> assetsDir = Files.newDirectoryStream(Paths.get(ASSETS_LOCATION), FILE_MASK)) {
+            Pattern pattern = Pattern.compile("[1-9][0-9]");
+            log.debug("Supported engines:");
+            for (Path executable : assetsDir) {
+                log.debug(executable.toString());
+
+                String entry = executable.toString();
+                Matcher matcher = pattern.matcher(entry);
+                if (matcher.find()) {
+                    versions.add(Integer.parseInt(matcher.group(0)));
+                }
             }
         } catch (IOException e) {
             log.fatal("Error accessing assets location.", e);
             throw new StockfishEngineException("Error accessing assets location.", e);
         }
+        if (versions.isEmpty()) {
+            log.fatal("No engines found.");
+            throw new StockfishEngineException("No engines found.");
+        }
+        return versions;
     }
 
     public static String getPath(Variant variant, String override) {
@@ -57,16 +78,17 @@ public class FileEngineUtil {
     }
 
     public static String getPath(Variant variant, String override, Integer requestedEngineVersion) {
+        Set<Integer> supportedVersions = getSupportedVersions();
         int engineVersion;
         if (requestedEngineVersion != null) {
-            if (SUPPORTED_VERSIONS.contains(requestedEngineVersion)) {
+            if (supportedVersions.contains(requestedEngineVersion)) {
                 engineVersion = requestedEngineVersion;
             } else {
-                engineVersion = SUPPORTED_VERSIONS.iterator().next();
+                engineVersion = supportedVersions.iterator().next();
                 log.info("Version " + requestedEngineVersion + " not found. Defaulting to highest available: " + engineVersion);
             }
         } else {
-            engineVersion = SUPPORTED_VERSIONS.iterator().next();
+            engineVersion = supportedVersions.iterator().next();
             log.info("No version was specified. Defaulting to highest available: " + engineVersion);
         }
 
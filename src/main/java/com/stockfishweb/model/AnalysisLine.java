@@ -0,0 +1,87 @@
+package com.stockfishweb.model;
+
+/**
+ * One of the ranked lines of a MultiPV search. Scores are from the side to move, as the engine reports them.
+ */
+public class AnalysisLine {
+    private int rank;
+    private int depth;
+    private Integer score;
+    private Integer mate;
+    private String bestMove;
+    private String continuation;
+
+    public AnalysisLine() {
+    }
+
+    public AnalysisLine(int rank, int depth, Integer score, Integer mate, String bestMove, String continuation) {
+        this.rank = rank;
+        this.depth = depth;
+        this.score = score;
+        this.mate = mate;
+        this.bestMove = bestMove;
+        this.continuation = continuation;
+    }
+
+    /**
+     * @return 1 for the best line
+     */
+    public int getRank() {
+        return rank;
+    }
+
+    public void setRank(int rank) {
+        this.rank = rank;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public void setDepth(int depth) {
+        this.depth = depth;
+    }
+
+    /**
+     * @return centipawns, null when the line leads to mate
+     */
+    public Integer getScore() {
+        return score;
+    }
+
+    public void setScore(Integer score) {
+        this.score = score;
+    }
+
+    /**
+     * @return moves to mate, negative when the side to move gets mated, null if the line leads to no mate
+     */
+    public Integer getMate() {
+        return mate;
+    }
+
+    public void setMate(Integer mate) {
+        this.mate = mate;
+    }
+
+    public String getBestMove() {
+        return bestMove;
+    }
+
+    public void setBestMove(String bestMove) {
+        this.bestMove = bestMove;
+    }
+
+    public String getContinuation() {
+        return continuation;
+    }
+
+    public void setContinuation(String continuation) {
+        this.continuation = continuation;
+    }
+
+    @Override
+    public String toString() {
+        return rank + ": " + continuation;
+    }
+}
@@ -0,0 +1,80 @@
+package com.stockfishweb.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonUnwrapped;
+
+/**
+ * One line of a batch response: the index and position of a query, then either the same fields
+ * {@code POST /} answers with, or the status and error of a failed analysis.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class BatchResult {
+    private int index;
+    private String fen;
+    @JsonUnwrapped
+    private BestMoveEval result;
+    private Integer status;
+    private String error;
+
+    public BatchResult() {
+    }
+
+    public BatchResult(int index, String fen, BestMoveEval result) {
+        this.index = index;
+        this.fen = fen;
+        this.result = result;
+    }
+
+    public BatchResult(int index, String fen, int status, String error) {
+        this.index = index;
+        this.fen = fen;
+        this.status = status;
+        this.error = error;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public void setIndex(int index) {
+        this.index = index;
+    }
+
+    public String getFen() {
+        return fen;
+    }
+
+    public void setFen(String fen) {
+        this.fen = fen;
+    }
+
+    /**
+     * @return result of the analysis, null if it failed
+     */
+    public BestMoveEval getResult() {
+        return result;
+    }
+
+    public void setResult(BestMoveEval result) {
+        this.result = result;
+    }
+
+    /**
+     * @return HTTP status of a failed analysis, null if it succeeded
+     */
+    public Integer getStatus() {
+        return status;
+    }
+
+    public void setStatus(Integer status) {
+        this.status = status;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+}
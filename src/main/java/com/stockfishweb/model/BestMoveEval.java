@@ -1,5 +1,9 @@
 package com.stockfishweb.model;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.List;
+
 public class BestMoveEval {
     private String bestMove;
     private String eval;
@@ -22,6 +26,32 @@ public class BestMoveEval {
 
     private String continuation;
     private String mate;
+    private int depth;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private List<AnalysisLine> lines;
+
+    /**
+     * @return depth the search actually completed, lower than requested when it ran out of time budget,
+     * 0 if unknown
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    public void setDepth(int depth) {
+        this.depth = depth;
+    }
+
+    /**
+     * @return the ranked lines of a MultiPV search, best first, null for a single line search
+     */
+    public List<AnalysisLine> getLines() {
+        return lines;
+    }
+
+    public void setLines(List<AnalysisLine> lines) {
+        this.lines = lines;
+    }
 
     public BestMoveEval() {
     }
@@ -0,0 +1,115 @@
+package com.stockfishweb.model;
+
+/**
+ * One completed depth of a running search. Scores are from the side to move, as the engine reports them.
+ */
+public class SearchProgress {
+    private int depth;
+    private int selDepth;
+    private Integer score;
+    private Integer mate;
+    private long nodes;
+    private long nps;
+    private long time;
+    private String bestMove;
+    private String continuation;
+
+    public SearchProgress() {
+    }
+
+    public SearchProgress(int depth, int selDepth, Integer score, Integer mate, long nodes, long nps, long time,
+                          String bestMove, String continuation) {
+        this.depth = depth;
+        this.selDepth = selDepth;
+        this.score = score;
+        this.mate = mate;
+        this.nodes = nodes;
+        this.nps = nps;
+        this.time = time;
+        this.bestMove = bestMove;
+        this.continuation = continuation;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public void setDepth(int depth) {
+        this.depth = depth;
+    }
+
+    public int getSelDepth() {
+        return selDepth;
+    }
+
+    public void setSelDepth(int selDepth) {
+        this.selDepth = selDepth;
+    }
+
+    /**
+     * @return centipawns, null when the search found a mate
+     */
+    public Integer getScore() {
+        return score;
+    }
+
+    public void setScore(Integer score) {
+        this.score = score;
+    }
+
+    /**
+     * @return moves to mate, negative when the side to move gets mated, null if no mate was found
+     */
+    public Integer getMate() {
+        return mate;
+    }
+
+    public void setMate(Integer mate) {
+        this.mate = mate;
+    }
+
+    public long getNodes() {
+        return nodes;
+    }
+
+    public void setNodes(long nodes) {
+        this.nodes = nodes;
+    }
+
+    public long getNps() {
+        return nps;
+    }
+
+    public void setNps(long nps) {
+        this.nps = nps;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public void setTime(long time) {
+        this.time = time;
+    }
+
+    public String getBestMove() {
+        return bestMove;
+    }
+
+    public void setBestMove(String bestMove) {
+        this.bestMove = bestMove;
+    }
+
+    public String getContinuation() {
+        return continuation;
+    }
+
+    public void setContinuation(String continuation) {
+        this.continuation = continuation;
+    }
+
+    @Override
+    public String toString() {
+        return depth + ": " + continuation;
+    }
+}
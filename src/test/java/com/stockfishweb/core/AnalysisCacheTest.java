@@ -0,0 +1,75 @@
+package com.stockfishweb.core;
+
+import com.stockfishweb.core.engine.enums.EvalSource;
+import com.stockfishweb.core.engine.enums.Query;
+import com.stockfishweb.core.engine.enums.QueryType;
+import com.stockfishweb.model.BestMoveEval;
+import org.junit.jupiter.api.Test;
+
+import static com.stockfishweb.common.Util.START_FEN;
+import static org.junit.jupiter.api.Assertions.*;
+
+class AnalysisCacheTest {
+
+    private final AnalysisCache cache = new AnalysisCache(100, 60000);
+
+    @Test
+    void deeperResultSatisfiesShallowerRequest() {
+        BestMoveEval deep = new BestMoveEval("c4f7", "0.5", "c4f7 e8f7", "");
+        cache.put(new Query(QueryType.Best_Move, START_FEN, 15), deep);
+
+        assertSame(deep, cache.get(new Query(QueryType.Best_Move, START_FEN, 10)));
+        assertSame(deep, cache.get(new Query(QueryType.Best_Move, START_FEN, 0)));
+        assertEquals(2L, cache.getStats().get("hits"));
+    }
+
+    @Test
+    void shallowerResultIsAMissAndIsReplaced() {
+        BestMoveEval shallow = new BestMoveEval("c4f7", "0.5", "c4f7", "");
+        BestMoveEval deep = new BestMoveEval("d2d3", "0.5", "d2d3", "");
+        cache.put(new Query(QueryType.Best_Move, START_FEN, 5), shallow);
+
+        assertNull(cache.get(new Query(QueryType.Best_Move, START_FEN, 10)));
+        assertEquals(1L, cache.getStats().get("tooShallow"));
+
+        cache.put(new Query(QueryType.Best_Move, START_FEN, 10), deep);
+        cache.put(new Query(QueryType.Best_Move, START_FEN, 5), shallow);
+        assertSame(deep, cache.get(new Query(QueryType.Best_Move, START_FEN, 10)));
+    }
+
+    @Test
+    void resultOutOfTimeBudgetIsCachedAtTheDepthItReached() {
+        BestMoveEval stopped = new BestMoveEval("c4f7", "0.5", "c4f7 e8f7", "");
+        stopped.setDepth(9);
+        cache.put(new Query(QueryType.Best_Move, START_FEN, 15), stopped);
+
+        assertSame(stopped, cache.get(new Query(QueryType.Best_Move, START_FEN, 9)));
+        assertNull(cache.get(new Query(QueryType.Best_Move, START_FEN, 10)));
+    }
+
+    @Test
+    void keyIgnoresWhitespaceAndFullmoveNumberButNotSkill() {
+        BestMoveEval result = new BestMoveEval("c4f7", "0.5", "c4f7", "");
+        cache.put(new Query(QueryType.Best_Move, START_FEN, 10), result);
+
+        String otherMoveNumber = "  " + START_FEN.replace(" 0 1", "  0 42") + " ";
+        assertSame(result, cache.get(new Query(QueryType.Best_Move, otherMoveNumber, 10)));
+        assertNull(cache.get(new Query(QueryType.Best_Move, START_FEN.replace(" 0 1", " 7 1"), 10)));
+        assertNull(cache.get(new Query(QueryType.Best_Move, START_FEN, 3, 10, 0)));
+
+        Query multiPv = new Query(QueryType.Best_Move, START_FEN, 10);
+        multiPv.setMultiPv(3);
+        assertNull(cache.get(multiPv));
+
+        Query searchEval = new Query(QueryType.Best_Move, START_FEN, 10);
+        searchEval.setEvalSource(EvalSource.SEARCH);
+        assertNull(cache.get(searchEval));
+    }
+
+    @Test
+    void disabledCacheNeverHits() {
+        AnalysisCache disabled = new AnalysisCache(0, 60000);
+        disabled.put(new Query(QueryType.Best_Move, START_FEN, 10), new BestMoveEval());
+        assertNull(disabled.get(new Query(QueryType.Best_Move, START_FEN, 10)));
+    }
+}
@@ -0,0 +1,126 @@
+package com.stockfishweb.core;
+
+import com.stockfishweb.core.engine.enums.Query;
+import com.stockfishweb.core.engine.enums.QueryType;
+import com.stockfishweb.model.BestMoveEval;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.stockfishweb.common.Util.START_FEN;
+import static org.junit.jupiter.api.Assertions.*;
+
+class AnalysisStoreTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void resultSurvivesReopening() {
+        String file = dir.resolve("analysis.store").toString();
+        AnalysisStore store = new AnalysisStore(file, 64);
+        assertTrue(store.put(new Query(QueryType.Best_Move, START_FEN, 12),
+                new BestMoveEval("c4f7", "-1.09", "c4f7 e8f7 d1h5 g7g6 h5c5", "")));
+        store.close();
+
+        AnalysisStore reopened = new AnalysisStore(file, 64);
+        BestMoveEval stored = reopened.get(new Query(QueryType.Best_Move, START_FEN, 10));
+        assertNotNull(stored);
+        assertEquals("c4f7", stored.getBestMove());
+        assertEquals("-1.09", stored.getEval());
+        assertEquals("c4f7 e8f7 d1h5 g7g6 h5c5", stored.getContinuation());
+        assertEquals("", stored.getMate());
+
+        assertNull(reopened.get(new Query(QueryType.Best_Move, START_FEN, 15)));
+        reopened.close();
+    }
+
+    @Test
+    void shallowerResultDoesNotOverwriteDeeperOne() {
+        AnalysisStore store = new AnalysisStore(dir.resolve("analysis.store").toString(), 64);
+        store.put(new Query(QueryType.Best_Move, START_FEN, 15), new BestMoveEval("c4f7", "0.83", "c4f7", "2"));
+        assertFalse(store.put(new Query(QueryType.Best_Move, START_FEN, 5), new BestMoveEval("d2d3", "0.83", "d2d3", "")));
+
+        BestMoveEval stored = store.get(new Query(QueryType.Best_Move, START_FEN, 15));
+        assertEquals("c4f7", stored.getBestMove());
+        assertEquals("2", stored.getMate());
+        store.close();
+    }
+
+    @Test
+    void promotionsAndNoneRoundTrip() {
+        for (String move : new String[]{"a7a8q", "h2h1n", "e1g1", "none"}) {
+            assertEquals(move, AnalysisStore.decodeMove(AnalysisStore.encodeMove(move)));
+        }
+        assertEquals(-1, AnalysisStore.encodeMove("z9a1"));
+    }
+
+    @Test
+    void resultsThatDoNotRoundTripAreRejected() {
+        AnalysisStore store = new AnalysisStore(dir.resolve("analysis.store").toString(), 64);
+        assertFalse(store.put(new Query(QueryType.Best_Move, START_FEN, 10), new BestMoveEval("c4f7", "none", "c4f7", "")));
+        assertFalse(store.put(new Query(QueryType.Best_Move, START_FEN, 10), new BestMoveEval("c4f7", "0.5", "c4f7", "")));
+        assertNull(store.get(new Query(QueryType.Best_Move, START_FEN, 10)));
+        store.close();
+    }
+
+    @Test
+    void compactionKeepsMostRecentlyUsedHalfWithinCap() {
+        AnalysisStore store = new AnalysisStore(dir.resolve("analysis.store").toString(), 64);
+        Query first = new Query(QueryType.Best_Move, "8/8/8/8/8/8/8/K6k w - - 0 1", 10);
+        store.put(first, new BestMoveEval("a1a2", "0.00", "a1a2", ""));
+        for (int i = 0; i < 200; i++) {
+            store.get(first);
+            Query query = new Query(QueryType.Best_Move, "8/8/8/8/8/8/8/K6k w - - " + i + " 1", 10);
+            if (!store.put(query, new BestMoveEval("a1b1", "0.00", "a1b1", ""))) {
+                // turned away while the table is compacted in the background
+                store.getCompaction().join();
+                assertTrue(store.put(query, new BestMoveEval("a1b1", "0.00", "a1b1", "")));
+            }
+            assertTrue((int) store.getStats().get("size") <= 56);
+        }
+        store.getCompaction().join();
+        assertTrue((long) store.getStats().get("compactions") > 0);
+        assertNotNull(store.get(first));
+        assertNotNull(store.get(new Query(QueryType.Best_Move, "8/8/8/8/8/8/8/K6k w - - 199 1", 10)));
+        store.close();
+    }
+
+    @Test
+    void lookupsAndStoresRacingCloseAreTurnedAway() throws Exception {
+        AnalysisStore store = new AnalysisStore(dir.resolve("analysis.store").toString(), 1024);
+        Query query = new Query(QueryType.Best_Move, START_FEN, 10);
+        store.put(query, new BestMoveEval("c4f7", "0.83", "c4f7", ""));
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch started = new CountDownLatch(4);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                started.countDown();
+                try {
+                    for (int i = 0; i < 100_000; i++) {
+                        store.get(query);
+                        store.put(query, new BestMoveEval("c4f7", "0.83", "c4f7", ""));
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        started.await();
+        store.close();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+        assertNull(store.get(query));
+        assertFalse(store.put(query, new BestMoveEval("c4f7", "0.83", "c4f7", "")));
+    }
+}
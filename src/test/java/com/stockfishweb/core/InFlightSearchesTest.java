@@ -0,0 +1,77 @@
+package com.stockfishweb.core;
+
+import com.stockfishweb.core.engine.enums.Query;
+import com.stockfishweb.core.engine.enums.QueryType;
+import com.stockfishweb.model.BestMoveEval;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import static com.stockfishweb.common.Util.START_FEN;
+import static org.junit.jupiter.api.Assertions.*;
+
+class InFlightSearchesTest {
+
+    private final InFlightSearches inFlight = new InFlightSearches();
+    private final List<CompletableFuture<BestMoveEval>> searches = new ArrayList<>();
+    private final Function<Query, CompletableFuture<BestMoveEval>> search = query -> {
+        CompletableFuture<BestMoveEval> future = new CompletableFuture<>();
+        searches.add(future);
+        return future;
+    };
+
+    @Test
+    void identicalQueriesShareOneSearch() {
+        CompletableFuture<BestMoveEval> a = inFlight.join(new Query(QueryType.Best_Move, START_FEN, 10), search);
+        CompletableFuture<BestMoveEval> b = inFlight.join(new Query(QueryType.Best_Move, START_FEN, 10), search);
+        assertEquals(1, searches.size());
+
+        BestMoveEval result = new BestMoveEval("c4f7", "0.83", "c4f7", "");
+        searches.get(0).complete(result);
+        assertSame(result, a.join());
+        assertSame(result, b.join());
+
+        inFlight.join(new Query(QueryType.Best_Move, START_FEN, 10), search);
+        assertEquals(2, searches.size());
+    }
+
+    @Test
+    void deeperSearchServesShallowerQueryOnly() {
+        inFlight.join(new Query(QueryType.Best_Move, START_FEN, 15), search);
+        inFlight.join(new Query(QueryType.Best_Move, START_FEN, 10), search);
+        assertEquals(1, searches.size());
+
+        Query other = new Query(QueryType.Best_Move, START_FEN.replace(" w ", " b "), 5);
+        inFlight.join(other, search);
+        inFlight.join(new Query(QueryType.Best_Move, other.getFen(), 12), search);
+        assertEquals(3, searches.size());
+        assertEquals(1L, inFlight.getStats().get("coalesced"));
+    }
+
+    @Test
+    void searchIsCancelledOnlyWhenEveryCallerLeft() {
+        CompletableFuture<BestMoveEval> a = inFlight.join(new Query(QueryType.Best_Move, START_FEN, 10), search);
+        CompletableFuture<BestMoveEval> b = inFlight.join(new Query(QueryType.Best_Move, START_FEN, 10), search);
+
+        a.cancel(true);
+        assertFalse(searches.get(0).isCancelled());
+        b.cancel(true);
+        assertTrue(searches.get(0).isCancelled());
+
+        inFlight.join(new Query(QueryType.Best_Move, START_FEN, 10), search);
+        assertEquals(2, searches.size());
+    }
+
+    @Test
+    void failureReachesEveryCaller() {
+        CompletableFuture<BestMoveEval> a = inFlight.join(new Query(QueryType.Best_Move, START_FEN, 10), search);
+        CompletableFuture<BestMoveEval> b = inFlight.join(new Query(QueryType.Best_Move, START_FEN, 10), search);
+        searches.get(0).completeExceptionally(new IllegalStateException("engine died"));
+
+        assertTrue(a.isCompletedExceptionally());
+        assertTrue(b.isCompletedExceptionally());
+    }
+}
@@ -0,0 +1,43 @@
+package com.stockfishweb.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyRecorderTest {
+
+    @Test
+    void percentilesOfRecordedLatencies() {
+        LatencyRecorder recorder = new LatencyRecorder(100);
+        for (int millis = 100; millis >= 1; millis--) {
+            recorder.record(millis * 1_000_000L);
+        }
+
+        Map<String, Object> stats = recorder.getStats();
+        assertEquals(100, stats.get("requests"));
+        assertEquals(50.0, stats.get("p50Millis"));
+        assertEquals(99.0, stats.get("p99Millis"));
+        assertEquals(100.0, stats.get("maxMillis"));
+    }
+
+    @Test
+    void onlyFirstRequestsAreRecorded() {
+        LatencyRecorder recorder = new LatencyRecorder(2);
+        recorder.record(5_000_000L);
+        recorder.record(7_000_000L);
+        recorder.record(900_000_000L);
+
+        Map<String, Object> stats = recorder.getStats();
+        assertEquals(2, stats.get("requests"));
+        assertEquals(7.0, stats.get("maxMillis"));
+    }
+
+    @Test
+    void noRequestsYet() {
+        Map<String, Object> stats = new LatencyRecorder(10).getStats();
+        assertEquals(0, stats.get("requests"));
+        assertEquals(0.0, stats.get("p99Millis"));
+    }
+}
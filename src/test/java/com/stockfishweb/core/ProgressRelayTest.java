@@ -0,0 +1,115 @@
+package com.stockfishweb.core;
+
+import com.stockfishweb.model.SearchProgress;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProgressRelayTest {
+
+    private final List<Runnable> tasks = new ArrayList<>();
+    private final Executor executor = tasks::add;
+
+    private static SearchProgress progress(int depth) {
+        SearchProgress progress = new SearchProgress();
+        progress.setDepth(depth);
+        return progress;
+    }
+
+    @Test
+    void laggingListenerSkipsToTheLatestDepth() {
+        List<Integer> delivered = new ArrayList<>();
+        ProgressRelay relay = new ProgressRelay(p -> delivered.add(p.getDepth()), executor, e -> fail(e));
+
+        relay.offer(progress(1));
+        relay.offer(progress(2));
+        relay.offer(progress(3));
+        // one delivery at a time, however many depths were offered
+        assertEquals(1, tasks.size());
+        assertTrue(delivered.isEmpty());
+
+        tasks.remove(0).run();
+        assertEquals(List.of(3), delivered);
+
+        relay.offer(progress(4));
+        tasks.remove(0).run();
+        assertEquals(List.of(3, 4), delivered);
+    }
+
+    @Test
+    void offerNeverWaitsForTheListener() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Integer> delivered = new ArrayList<>();
+        ProgressRelay relay = new ProgressRelay(p -> {
+            entered.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            delivered.add(p.getDepth());
+        }, r -> new Thread(r).start(), e -> fail(e));
+
+        relay.offer(progress(1));
+        assertTrue(entered.await(10, TimeUnit.SECONDS));
+        long start = System.nanoTime();
+        for (int depth = 2; depth <= 20; depth++) {
+            relay.offer(progress(depth));
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+
+        CountDownLatch finished = new CountDownLatch(1);
+        relay.finish(finished::countDown);
+        release.countDown();
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        // the first depth was being delivered, the later ones were dropped by the end of the analysis
+        assertEquals(List.of(1), delivered);
+    }
+
+    @Test
+    void endWaitsForTheProgressBeingDelivered() {
+        List<String> events = new ArrayList<>();
+        ProgressRelay relay = new ProgressRelay(p -> events.add("info " + p.getDepth()), executor, e -> fail(e));
+
+        relay.offer(progress(5));
+        relay.finish(() -> events.add("bestmove"));
+        assertTrue(events.isEmpty());
+
+        tasks.remove(0).run();
+        assertEquals(List.of("bestmove"), events);
+
+        relay.offer(progress(6));
+        assertTrue(tasks.isEmpty());
+    }
+
+    @Test
+    void failingListenerStopsTheDelivery() {
+        AtomicInteger calls = new AtomicInteger();
+        List<Exception> failures = new ArrayList<>();
+        ProgressRelay relay = new ProgressRelay(p -> {
+            calls.incrementAndGet();
+            throw new IOException("client went away");
+        }, executor, failures::add);
+
+        relay.offer(progress(1));
+        tasks.remove(0).run();
+        assertEquals(1, failures.size());
+
+        relay.offer(progress(2));
+        assertTrue(tasks.isEmpty());
+        assertEquals(1, calls.get());
+
+        List<String> events = new ArrayList<>();
+        relay.finish(() -> events.add("end"));
+        assertEquals(List.of("end"), events);
+    }
+}
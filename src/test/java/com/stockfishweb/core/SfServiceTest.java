@@ -1,19 +1,35 @@
 package com.stockfishweb.core;
 
+import com.stockfishweb.core.engine.EngineLease;
 import com.stockfishweb.core.engine.StockfishClient;
+import com.stockfishweb.core.engine.UCIInfo;
+import com.stockfishweb.core.engine.board.Board;
+import com.stockfishweb.core.engine.enums.EvalSource;
 import com.stockfishweb.core.engine.enums.Query;
 import com.stockfishweb.core.engine.enums.QueryType;
 import com.stockfishweb.core.engine.exception.StockfishEngineException;
 import com.stockfishweb.core.engine.exception.StockfishInitException;
+import com.stockfishweb.model.AnalysisLine;
 import com.stockfishweb.model.BestMoveEval;
+import com.stockfishweb.model.SearchProgress;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.springframework.web.server.ResponseStatusException;
 
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import static com.stockfishweb.common.Util.START_FEN;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.junit.jupiter.api.Assertions.fail;
 
 public class SfServiceTest {
@@ -66,6 +82,244 @@ public class SfServiceTest {
         }
     }
 
+    @Test
+    void getBestMoveEvalFuture() {
+        try {
+            Query query = new Query(QueryType.Best_Move, START_FEN, 10);
+            BestMoveEval b = sfService.getBestMoveEvalFuture(query).get();
+
+            assertThat(b).isNotNull();
+            assertThat(b.getEval()).isNotNull();
+            assertThat(b.getBestMove()).isNotNull();
+            assertThat(b.getContinuation()).isNotNull();
+
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    @Test
+    void getBestMoveEvalFutureIsCached() {
+        try {
+            sfService.setCache(new AnalysisCache(10, 60000));
+            BestMoveEval first = sfService.getBestMoveEvalFuture(new Query(QueryType.Best_Move, START_FEN, 10)).get();
+            BestMoveEval second = sfService.getBestMoveEvalFuture(new Query(QueryType.Best_Move, START_FEN, 8)).get();
+
+            assertThat(second).isSameAs(first);
+            assertThat(sfService.getStats()).containsKey("analysisCache");
+
+        } catch (Exception e) {
+            fail(e);
+        } finally {
+            sfService.setCache(null);
+        }
+    }
+
+    @Test
+    void analyzeBatchStreamsEveryPosition() {
+        try {
+            List<Query> batch = List.of(
+                    new Query(QueryType.Best_Move, START_FEN, 8),
+                    new Query(QueryType.Best_Move, "4k3/8/8/8/8/8/8/R3K3 w - - 0 1", 8),
+                    new Query(QueryType.Best_Move, "4k3/4Q3/4K3/8/8/8/8/8 b - - 0 1", 8));
+            sfService.validateBatch(batch);
+
+            Map<Integer, BestMoveEval> results = new ConcurrentHashMap<>();
+            sfService.analyzeBatch(batch, (index, bestMoveEval, error) -> {
+                assertThat(error).isNull();
+                results.put(index, bestMoveEval);
+            });
+
+            assertThat(results).containsOnlyKeys(0, 1, 2);
+            assertThat(results.get(1).getBestMove()).isNotNull();
+
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    @Test
+    void invalidBatchIsRejectedUpFront() {
+        List<Query> batch = List.of(
+                new Query(QueryType.Best_Move, START_FEN, 8),
+                new Query(QueryType.Best_Move, "Kk6/8/8/8/8/8/8/8 w - - 0 1", 8));
+
+        assertThatThrownBy(() -> sfService.validateBatch(batch))
+                .isInstanceOf(ResponseStatusException.class)
+                .hasMessageContaining("Position 1");
+        assertThatThrownBy(() -> sfService.validateBatch(List.of()))
+                .isInstanceOf(ResponseStatusException.class);
+    }
+
+    @Test
+    void timeBudgetBoundsTheSearchAndReportsDepthReached() {
+        try {
+            Query query = new Query(QueryType.Best_Move, START_FEN);
+            query.setTimeBudget(300);
+            long start = System.currentTimeMillis();
+            BestMoveEval b = sfService.getBestMoveEvalFuture(query).get(10, TimeUnit.SECONDS);
+
+            assertThat(System.currentTimeMillis() - start).isLessThan(2000);
+            assertThat(b.getBestMove()).isNotNull();
+            assertThat(b.getDepth()).isPositive();
+            assertThat(b.getContinuation()).startsWith(b.getBestMove());
+
+            Query tooLong = new Query(QueryType.Best_Move, START_FEN);
+            tooLong.setTimeBudget(3_600_000);
+            assertThatThrownBy(() -> sfService.getBestMoveEvalFuture(tooLong))
+                    .isInstanceOf(ResponseStatusException.class);
+
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    @Test
+    void multiPvReturnsRankedLinesFromOneSearch() {
+        try {
+            Query query = new Query(QueryType.Best_Move, START_FEN, 10);
+            query.setMultiPv(3);
+            BestMoveEval b = sfService.getBestMoveEvalFuture(query).get(30, TimeUnit.SECONDS);
+
+            assertThat(b.getLines()).hasSize(3);
+            assertThat(b.getLines()).extracting(AnalysisLine::getRank).containsExactly(1, 2, 3);
+            assertThat(b.getLines().get(0).getBestMove()).isEqualTo(b.getBestMove());
+            assertThat(b.getLines()).extracting(AnalysisLine::getBestMove).doesNotHaveDuplicates();
+
+            BestMoveEval single = sfService.getBestMoveEvalFuture(new Query(QueryType.Best_Move, START_FEN, 10))
+                    .get(30, TimeUnit.SECONDS);
+            assertThat(single.getLines()).isNull();
+
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    @Test
+    void searchEvalNeedsNoEvaluator() {
+        // the only evaluator is taken, a static eval would wait for it and fail
+        try (EngineLease evaluator = client.lease(QueryType.Eval)) {
+            Query query = new Query(QueryType.Best_Move, START_FEN, 10);
+            query.setEvalSource(EvalSource.SEARCH);
+            BestMoveEval b = sfService.getBestMoveEvalFuture(query).get(30, TimeUnit.SECONDS);
+
+            assertThat(b.getBestMove()).isNotNull();
+            assertThat(b.getEval()).matches("-?\\d+\\.\\d\\d");
+
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    @Test
+    void positionAfterBestMoveIsAnalyzedOnIdleEngine() {
+        try {
+            AnalysisCache cache = new AnalysisCache(100, 60000);
+            sfService.setCache(cache);
+            sfService.setSpeculation(true, 1);
+            Query query = new Query(QueryType.Best_Move, START_FEN, 10);
+            query.setEvalSource(EvalSource.SEARCH);
+            BestMoveEval b = sfService.getBestMoveEvalFuture(query).get(30, TimeUnit.SECONDS);
+
+            Query next = new Query(QueryType.Best_Move, Board.fromFen(START_FEN).play(b.getBestMove()).toFen(), 10);
+            next.setEvalSource(EvalSource.SEARCH);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!cache.contains(next) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertThat(sfService.getBestMoveEvalFuture(next).get(30, TimeUnit.SECONDS).getBestMove()).isNotNull();
+            assertThat(cache.getStats().get("speculativeHits")).isEqualTo(1L);
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    @Test
+    void bestMoveIsHeadOfPrincipalVariation() {
+        UCIInfo info = new UCIInfo();
+        info.parse("info depth 10 score cp 38 pv c4f7 e8f7 d1h5");
+        // a weakened skill level picks another move than the one it searched best
+        info.parseBestMove("bestmove d2d3 ponder a7a5");
+        BestMoveEval bestMoveEval = SfService.toBestMoveEval(info, "0.38");
+        assertThat(bestMoveEval.getBestMove()).isEqualTo("c4f7");
+        assertThat(bestMoveEval.getContinuation()).isEqualTo("c4f7 e8f7 d1h5");
+
+        UCIInfo noPv = new UCIInfo();
+        noPv.parseBestMove("bestmove d2d3");
+        assertThat(SfService.toBestMoveEval(noPv, "0.38").getBestMove()).isEqualTo("d2d3");
+    }
+
+    @Test
+    void analysisLinesKeepTheirMultiPvRank() {
+        UCIInfo first = new UCIInfo();
+        first.parse("info depth 12 multipv 1 score cp 38 pv c4f7 e8f7");
+        UCIInfo empty = new UCIInfo();
+        empty.parse("info depth 12 multipv 2 score cp 20");
+        UCIInfo third = new UCIInfo();
+        third.parse("info depth 12 multipv 3 score cp 10 pv d2d3");
+
+        List<AnalysisLine> lines = SfService.toAnalysisLines(List.of(first, empty, third));
+        assertThat(lines).hasSize(2);
+        assertThat(lines.get(0).getRank()).isEqualTo(1);
+        assertThat(lines.get(1).getRank()).isEqualTo(3);
+        assertThat(lines.get(1).getBestMove()).isEqualTo("d2d3");
+    }
+
+    @Test
+    void searchScoreIsTurnedIntoWhiteEvalInPawns() {
+        UCIInfo info = new UCIInfo();
+        info.parse("info depth 10 score cp 38 pv e2e4");
+        assertThat(SfService.toWhiteEval(info, START_FEN)).isEqualTo("0.38");
+        assertThat(SfService.toWhiteEval(info, START_FEN.replace(" w ", " b "))).isEqualTo("-0.38");
+
+        info.parse("info depth 10 score mate 3 pv e2e4");
+        assertThat(SfService.toWhiteEval(info, START_FEN)).isEqualTo("#3");
+        assertThat(SfService.toWhiteEval(info, START_FEN.replace(" w ", " b "))).isEqualTo("#-3");
+
+        // checkmated, with White to move, then with Black to move
+        info.parse("info depth 0 score mate 0");
+        assertThat(SfService.toWhiteEval(info, "rnb1kbnr/pppp1ppp/8/4p3/6Pq/5P2/PPPPP2P/RNBQKBNR w KQkq - 1 3"))
+                .isEqualTo("#0");
+        assertThat(SfService.toWhiteEval(info, "r1bqkb1r/pppp1Qpp/2n2n2/4p3/2B1P3/8/PPPP1PPP/RNB1K1NR b KQkq - 0 4"))
+                .isEqualTo("#0");
+    }
+
+    @Test
+    void streamBestMoveEvalReportsEveryDepth() {
+        try {
+            List<SearchProgress> progress = new CopyOnWriteArrayList<>();
+            BestMoveEval b = sfService.streamBestMoveEval(new Query(QueryType.Best_Move, START_FEN, 10), progress::add)
+                    .get(30, TimeUnit.SECONDS);
+
+            assertThat(b.getBestMove()).isNotNull();
+            assertThat(progress).isNotEmpty();
+            assertThat(progress).extracting(SearchProgress::getDepth).isSorted().doesNotHaveDuplicates();
+            assertThat(progress.get(progress.size() - 1).getDepth()).isEqualTo(10);
+            assertThat(progress).allSatisfy(p -> assertThat(p.getContinuation()).startsWith(p.getBestMove()));
+
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    @Test
+    void failingProgressListenerCancelsStreamedAnalysis() {
+        try {
+            CompletableFuture<BestMoveEval> future = sfService.streamBestMoveEval(
+                    new Query(QueryType.Best_Move, START_FEN, 40), progress -> {
+                        throw new IOException("client went away");
+                    });
+
+            assertThatThrownBy(() -> future.get(10, TimeUnit.SECONDS)).isInstanceOf(CancellationException.class);
+            // the engine is handed back once stopped, it can serve the next request
+            assertThat(sfService.getBestMoveEvalFuture(new Query(QueryType.Best_Move, START_FEN, 8))
+                    .get(30, TimeUnit.SECONDS).getBestMove()).isNotNull();
+
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
     @Test
     void getBestMoveAsync() {
         try {
@@ -6,6 +6,7 @@ import com.stockfishweb.core.engine.enums.Query;
 import com.stockfishweb.core.engine.enums.QueryType;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.RepeatedTest;
 import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
@@ -55,6 +56,20 @@ class StockfishWebApplicationTests {
 //		}
 //	}
 
+    /**
+     * Engines start and warm up in the background, analysis requests are turned away until then.
+     */
+    @BeforeEach
+    void awaitReady() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 60000;
+        while (restTemplate.getForEntity("http://localhost:" + port + "/ready", String.class).getStatusCode()
+                != HttpStatus.OK) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Engines not ready");
+            }
+            Thread.sleep(100);
+        }
+    }
 
     @Test
     void contextLoads() {
@@ -0,0 +1,27 @@
+package com.stockfishweb.core;
+
+import com.stockfishweb.core.engine.UCIInfo;
+import com.stockfishweb.core.engine.board.Board;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WarmUpTest {
+
+    @Test
+    void corpusTakesEnPassant() {
+        boolean enPassant = false;
+        for (String fen : WarmUp.CORPUS) {
+            Board board = Board.fromFen(fen);
+            String[] fields = fen.split(" ");
+            if (!fields[3].equals("-")) {
+                char file = fields[3].charAt(0);
+                for (char from : new char[]{(char) (file - 1), (char) (file + 1)}) {
+                    String rank = fields[1].equals("w") ? "5" : "4";
+                    enPassant |= board.findMove("" + from + rank + fields[3]) != UCIInfo.NO_MOVE;
+                }
+            }
+        }
+        assertTrue(enPassant);
+    }
+}
@@ -1,15 +1,30 @@
 package com.stockfishweb.core;
 
+import com.stockfishweb.model.AnalysisLine;
+import com.stockfishweb.model.BestMoveEval;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.web.server.ResponseStatusException;
 
+import java.util.List;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultHandlers.print;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @WebMvcTest(SfController.class)
@@ -30,4 +45,31 @@ class WebMockTest {
 //                        .string(containsString("<html><body><h1>Please use POST instead of GET ;)</h1></body></html>")));
                     .json("{'error':'POST must be used instead of GET'}"));
     }
+
+    @Test
+    void batchLinesCarryTheWholeAnswer() throws Exception {
+        BestMoveEval bestMoveEval = new BestMoveEval("c4f7", "0.83", "c4f7 e8f7", "");
+        // depth a budget query reached before its time ran out
+        bestMoveEval.setDepth(9);
+        bestMoveEval.setLines(List.of(new AnalysisLine(1, 9, 83, null, "c4f7", "c4f7 e8f7"),
+                new AnalysisLine(2, 9, 20, null, "d2d3", "d2d3")));
+        doAnswer(invocation -> {
+            SfService.BatchWriter writer = invocation.getArgument(1);
+            writer.write(0, bestMoveEval, null);
+            writer.write(1, null, new ResponseStatusException(HttpStatus.CONFLICT, "Invalid FEN"));
+            return null;
+        }).when(service).analyzeBatch(anyList(), any());
+
+        MvcResult result = this.mockMvc.perform(post("/batch").contentType(MediaType.APPLICATION_JSON)
+                        .content("[{\"fen\":\"a\",\"multiPv\":2,\"timeBudget\":500},{\"fen\":\"b\"}]"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        this.mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk())
+                .andExpect(content().string(containsString("{\"index\":0,\"fen\":\"a\",\"bestMove\":\"c4f7\","
+                        + "\"eval\":\"0.83\",\"continuation\":\"c4f7 e8f7\",\"mate\":\"\",\"depth\":9,")))
+                .andExpect(content().string(containsString("\"lines\":[{\"rank\":1,")))
+                .andExpect(content().string(containsString("{\"rank\":2,\"depth\":9,\"score\":20,")))
+                .andExpect(content().string(containsString(
+                        "{\"index\":1,\"fen\":\"b\",\"status\":409,\"error\":\"Invalid FEN\"}")));
+    }
 }
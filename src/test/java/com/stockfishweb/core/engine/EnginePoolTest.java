@@ -0,0 +1,231 @@
+package com.stockfishweb.core.engine;
+
+import com.stockfishweb.core.engine.enums.Variant;
+import com.stockfishweb.core.engine.exception.StockfishInitException;
+import com.stockfishweb.core.engine.exception.StockfishPoolException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.stockfishweb.core.engine.StockfishTest.getEnginePidsSpawnedByTest;
+import static org.junit.jupiter.api.Assertions.*;
+
+class EnginePoolTest {
+
+    private EnginePool pool;
+
+    @BeforeAll
+    static void beforeAllTests() {
+        getEnginePidsSpawnedByTest().forEach(ProcessHandle::destroy);
+    }
+
+    @BeforeEach
+    void setUp() {
+        pool = new EnginePool("test", () -> new Stockfish(null, Variant.DEFAULT), 2, 1);
+    }
+
+    @AfterEach
+    void tearDown() {
+        pool.close();
+    }
+
+    @Test
+    void hashBudgetIsSplitBetweenLiveEngines() throws Exception {
+        pool.setHashBudget(new HashBudget(64));
+        EngineLease a = pool.lease(100);
+        assertEquals(64, a.engine().getHashMb());
+
+        EngineLease b = pool.lease(100);
+        // all of the budget is still held by the first engine
+        assertEquals(1, b.engine().getHashMb());
+
+        a.close();
+        assertEquals(32, a.engine().getHashMb());
+        b.close();
+        assertEquals(32, b.engine().getHashMb());
+
+        Thread.sleep(20);
+        // the least recently used engine goes, the other one grows into its memory
+        pool.maintain(1, 10);
+        assertEquals(1, pool.getOpenCount());
+        assertEquals(64, b.engine().getHashMb());
+    }
+
+    @Test
+    void speculativeLeaseIsPreemptedByRegularLease() throws Exception {
+        pool.resize(1);
+        pool.prestart(1);
+        EngineLease[] speculative = new EngineLease[1];
+        speculative[0] = pool.tryLeaseSpeculative(() -> CompletableFuture.runAsync(() -> speculative[0].close()));
+        assertNotNull(speculative[0]);
+        assertEquals(1, pool.getSpeculativeCount());
+        assertNull(pool.tryLeaseSpeculative(() -> { }));
+
+        try (EngineLease lease = pool.lease(1000)) {
+            assertSame(speculative[0].engine(), lease.engine());
+            assertTrue(speculative[0].isReleased());
+        }
+        assertEquals(0, pool.getSpeculativeCount());
+        assertEquals(1L, pool.getSpeculativeStats().get("preemptions"));
+    }
+
+    @Test
+    void drainWaitsForLeasesAndTakesBackSpeculativeOnes() throws Exception {
+        pool.prestart(2);
+        EngineLease regular = pool.lease(100);
+        EngineLease[] speculative = new EngineLease[1];
+        speculative[0] = pool.tryLeaseSpeculative(() -> CompletableFuture.runAsync(() -> speculative[0].close()));
+        assertNotNull(speculative[0]);
+
+        assertFalse(pool.drain(50));
+        assertTrue(speculative[0].isReleased());
+        assertEquals(1, pool.getLeasedCount());
+        assertNull(pool.tryLeaseSpeculative(() -> { }));
+
+        CompletableFuture.delayedExecutor(100, TimeUnit.MILLISECONDS).execute(regular::close);
+        long start = System.nanoTime();
+        assertTrue(pool.drain(5000));
+        // told of the release rather than finding out on the next check
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1000));
+        assertEquals(0, pool.getLeasedCount());
+    }
+
+    @Test
+    void prestartStartsEnginesTogether() throws Exception {
+        pool.prestartAsync(2).get(5, TimeUnit.SECONDS);
+        assertEquals(2, pool.getOpenCount());
+        assertEquals(2, pool.getIdleCount());
+
+        EnginePool failing = new EnginePool("failing", () -> {
+            throw new StockfishInitException("no engine");
+        }, 2, 1);
+        assertThrows(StockfishInitException.class, () -> failing.prestart(2));
+        assertEquals(0, failing.getOpenCount());
+    }
+
+    @Test
+    void leaseSpawnsLazilyAndReusesReturnedEngine() {
+        assertEquals(0, pool.getOpenCount());
+        Stockfish first;
+        try (EngineLease lease = pool.lease(100)) {
+            first = lease.engine();
+            assertTrue(first.isBusy());
+            assertEquals(1, pool.getOpenCount());
+        }
+        assertFalse(first.isBusy());
+        assertEquals(1, pool.getIdleCount());
+
+        try (EngineLease lease = pool.lease(100)) {
+            assertSame(first, lease.engine());
+        }
+        assertEquals(1, pool.getOpenCount());
+    }
+
+    @Test
+    void closingLeaseTwiceReleasesOnce() {
+        EngineLease lease = pool.lease(100);
+        lease.close();
+        lease.close();
+        assertTrue(lease.isReleased());
+
+        try (EngineLease a = pool.lease(100); EngineLease b = pool.lease(100)) {
+            assertNotSame(a.engine(), b.engine());
+            assertThrows(StockfishPoolException.class, () -> pool.lease(100));
+        }
+    }
+
+    @Test
+    void waiterIsHandedReturnedEngine() throws Exception {
+        EngineLease a = pool.lease(100);
+        EngineLease b = pool.lease(100);
+
+        CompletableFuture<EngineLease> waiter = CompletableFuture.supplyAsync(() -> pool.lease(5000));
+        while (pool.getWaitingCount() == 0) {
+            Thread.sleep(10);
+        }
+        a.close();
+        try (EngineLease c = waiter.get(5, TimeUnit.SECONDS)) {
+            assertSame(a.engine(), c.engine());
+        }
+        b.close();
+        assertEquals(2, pool.getOpenCount());
+    }
+
+    @Test
+    void fullWaitQueueIsRejectedImmediately() throws Exception {
+        EngineLease a = pool.lease(100);
+        EngineLease b = pool.lease(100);
+
+        CompletableFuture<EngineLease> waiter = CompletableFuture.supplyAsync(() -> pool.lease(5000));
+        while (pool.getWaitingCount() == 0) {
+            Thread.sleep(10);
+        }
+        long start = System.nanoTime();
+        assertThrows(StockfishPoolException.class, () -> pool.lease(5000));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+
+        a.close();
+        waiter.get(5, TimeUnit.SECONDS).close();
+        b.close();
+    }
+
+    @Test
+    void maintainKeepsMinIdleWarm() {
+        pool.maintain(1, 0);
+        assertEquals(1, pool.getIdleCount());
+
+        try (EngineLease lease = pool.lease(100)) {
+            assertEquals(0, pool.getIdleCount());
+            pool.maintain(1, 0);
+            assertEquals(1, pool.getIdleCount());
+            assertEquals(2, pool.getOpenCount());
+
+            pool.maintain(2, 0);
+            assertEquals(2, pool.getOpenCount());
+        }
+    }
+
+    @Test
+    void maintainEvictsEnginesIdleForTooLong() throws Exception {
+        EngineLease a = pool.lease(100);
+        EngineLease b = pool.lease(100);
+        a.close();
+        b.close();
+        assertEquals(2, pool.getIdleCount());
+
+        Thread.sleep(50);
+        pool.maintain(1, 10);
+        assertEquals(1, pool.getOpenCount());
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    @Test
+    void maintainReplacesDeadIdleEngine() throws Exception {
+        pool.maintain(1, 0);
+        Stockfish engine = pool.getEngines().get(0);
+        engine.getProcess().destroy();
+        engine.getProcess().waitFor();
+
+        pool.maintain(1, 0);
+        assertEquals(1, pool.getIdleCount());
+        assertNotSame(engine, pool.getEngines().get(0));
+    }
+
+    @Test
+    void deadEngineIsDroppedOnRelease() throws Exception {
+        EngineLease lease = pool.lease(100);
+        Stockfish engine = lease.engine();
+        engine.getProcess().destroy();
+        engine.getProcess().waitFor();
+        lease.close();
+
+        assertEquals(0, pool.getOpenCount());
+        try (EngineLease next = pool.lease(100)) {
+            assertNotSame(engine, next.engine());
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.stockfishweb.core.engine;
+
+import com.stockfishweb.core.engine.enums.Variant;
+import com.stockfishweb.core.engine.exception.StockfishEngineException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static com.stockfishweb.common.Util.START_FEN;
+import static com.stockfishweb.core.engine.StockfishTest.getEnginePidsSpawnedByTest;
+import static org.junit.jupiter.api.Assertions.*;
+
+class EngineWatchdogTest {
+
+    private EngineWatchdog watchdog;
+    private Stockfish stockfish;
+
+    @BeforeAll
+    static void beforeAllTests() {
+        getEnginePidsSpawnedByTest().forEach(ProcessHandle::destroy);
+    }
+
+    @BeforeEach
+    void setUp() throws Exception {
+        watchdog = new EngineWatchdog(20, 300);
+        stockfish = new Stockfish(null, Variant.DEFAULT);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        watchdog.close();
+        stockfish.close();
+    }
+
+    @Test
+    void exchangeWithinDeadlineIsLeftAlone() {
+        try (EngineWatchdog.Exchange exchange = watchdog.watch(stockfish, 5000)) {
+            stockfish.waitForReady();
+            assertFalse(exchange.isStopped());
+        }
+        assertEquals(0, watchdog.getStopsSent());
+    }
+
+    @Test
+    void overdueSearchIsStopped() {
+        try (EngineWatchdog.Exchange exchange = watchdog.watch(stockfish, 100)) {
+            stockfish.sendCommand("position fen " + START_FEN);
+            stockfish.sendCommand("go infinite");
+            assertTrue(stockfish.readLine("bestmove").startsWith("bestmove"));
+            assertTrue(exchange.isStopped());
+            assertFalse(exchange.isKilled());
+        }
+        assertEquals(1, watchdog.getStopsSent());
+        assertTrue(stockfish.getProcess().isAlive());
+    }
+
+    @Test
+    void hungEngineIsKilled() throws Exception {
+        // a suspended process ignores stop, just like a wedged one
+        new ProcessBuilder("kill", "-STOP", Long.toString(stockfish.getProcess().pid())).start().waitFor();
+        try (EngineWatchdog.Exchange exchange = watchdog.watch(stockfish, 100)) {
+            assertThrows(StockfishEngineException.class, () -> stockfish.readLine("bestmove"));
+            assertTrue(exchange.isKilled());
+        }
+        assertEquals(1, watchdog.getKilled());
+        stockfish.getProcess().waitFor();
+        assertTrue(stockfish.isDead());
+    }
+}
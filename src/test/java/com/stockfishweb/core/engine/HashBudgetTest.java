@@ -0,0 +1,37 @@
+package com.stockfishweb.core.engine;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HashBudgetTest {
+
+    @TempDir
+    Path cgroup;
+
+    private Path write(String name, String content) throws IOException {
+        return Files.writeString(cgroup.resolve(name), content + "\n");
+    }
+
+    @Test
+    void cgroupV2Limit() throws IOException {
+        assertEquals(2147483648L, HashBudget.cgroupMemoryLimit(List.of(write("memory.max", "2147483648"))));
+        assertEquals(0, HashBudget.cgroupMemoryLimit(List.of(write("memory.max", "max"))));
+    }
+
+    @Test
+    void cgroupV1LimitIsReadWhenV2IsMissing() throws IOException {
+        Path v2 = cgroup.resolve("missing");
+        assertEquals(1073741824L, HashBudget.cgroupMemoryLimit(
+                List.of(v2, write("memory.limit_in_bytes", "1073741824"))));
+        assertEquals(0, HashBudget.cgroupMemoryLimit(
+                List.of(v2, write("memory.limit_in_bytes", "9223372036854771712"))));
+        assertEquals(0, HashBudget.cgroupMemoryLimit(List.of(v2)));
+    }
+}
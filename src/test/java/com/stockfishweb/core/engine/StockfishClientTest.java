@@ -6,16 +6,23 @@ import com.stockfishweb.core.engine.enums.QueryType;
 import com.stockfishweb.core.engine.enums.Variant;
 import com.stockfishweb.core.engine.exception.StockfishEngineException;
 import com.stockfishweb.core.engine.exception.StockfishInitException;
+import com.stockfishweb.core.engine.util.CpuTopology;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 import static com.stockfishweb.common.Util.START_FEN;
 import static com.stockfishweb.core.engine.StockfishTest.getEnginePidsSpawnedByTest;
@@ -169,6 +176,203 @@ class StockfishClientTest {
 
 
 
+    @Test
+    void concurrentEvalsShareEvaluatorPool() {
+        try {
+            client = new StockfishClient.Builder()
+                    .setEvaluators(2)
+                    .build();
+            Query query = new Query.Builder(QueryType.Eval, START_FEN).build();
+            List<CompletableFuture<String>> futures = List.of(
+                    client.getResponseAsync(query),
+                    client.getResponseAsync(query),
+                    client.getResponseAsync(query));
+            futures.forEach(f -> assertNotNull(f.join()));
+            // whether the evals overlapped, and a second evaluator was started, is up to timing
+            assertTrue(client.getEvaluatorPool().getOpenCount() <= 2);
+
+            try (EngineLease a = client.getEvaluatorPool().lease(1000);
+                 EngineLease b = client.getEvaluatorPool().lease(1000)) {
+                assertNotSame(a.engine(), b.engine());
+                assertEquals(2, client.getEvaluatorPool().getOpenCount());
+            }
+        } catch (Throwable e) {
+            fail(e);
+        }
+    }
+
+    @Test
+    void cancellingSearchStopsEngineAndReturnsIt() {
+        try {
+            client = new StockfishClient.Builder().build();
+            Query query = new Query() {
+                @Override
+                public int getDepth() {
+                    return 40;
+                }
+            };
+            query.setType(QueryType.Best_Move);
+            query.setFen(START_FEN);
+
+            EngineFuture<String> future = client.getResponseAsync(query);
+            Thread.sleep(500);
+            assertFalse(future.isDone());
+            assertEquals(0, client.getPool().getIdleCount());
+
+            long start = System.currentTimeMillis();
+            assertTrue(future.cancel(true));
+            while (client.getPool().getIdleCount() == 0) {
+                Thread.sleep(10);
+            }
+            assertTrue(System.currentTimeMillis() - start < 1000);
+            assertNotNull(client.getResponse(new Query(QueryType.Best_Move, START_FEN, 5)));
+        } catch (Throwable e) {
+            fail(e);
+        }
+    }
+
+    @Test
+    void boardQueriesAreAnsweredWithoutAnEngine() {
+        try {
+            client = new StockfishClient.Builder().build();
+            client.getPool().lease(1000);
+
+            EngineFuture<String> legalMoves = client.getResponseAsync(new Query(QueryType.Legal_Moves, START_FEN));
+            assertTrue(legalMoves.isDone());
+            assertTrue(legalMoves.get().matches("^(([a-h][1-8]){2}[nbrq]?\\s)+$"));
+
+            Query makeMove = new Query.Builder(QueryType.Make_Move, START_FEN).setMove("d2d3").build();
+            assertEquals("r1bqk1nr/p2p1ppp/2p5/1pb5/2BpP3/2PP4/PP3PPP/RNBQ1RK1 b - - 0 1", client.getResponseSync(makeMove));
+            makeMove = new Query.Builder(QueryType.Make_Move, START_FEN).setMove("d2d4").build();
+            assertEquals(START_FEN, client.getResponseSync(makeMove));
+            assertEquals("", client.getResponseSync(new Query(QueryType.Checkers, START_FEN)));
+
+            EngineFuture<String> invalid = client.getResponseAsync(new Query(QueryType.Checkers, "8/8/8/8/8/8/8/8 b KQkq - 0 1"));
+            ExecutionException e = assertThrows(ExecutionException.class, invalid::get);
+            assertTrue(e.getCause() instanceof StockfishEngineException);
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    @Test
+    void pinnedEnginesAreCappedToTheirCpuSlices() {
+        try {
+            client = new StockfishClient.Builder()
+                    .setMaxInstances(4 * Runtime.getRuntime().availableProcessors())
+                    .setCpuAffinity(true)
+                    .build();
+            int cpus = CpuTopology.detect().getCpuCount();
+            assertEquals(cpus, client.getPool().getMaxSize());
+            assertTrue(client.getStats().containsKey("cpuAffinity"));
+
+            Stockfish engine = client.getEngines().get(0);
+            Path status = Path.of("/proc/" + engine.getProcess().pid() + "/status");
+            if (Files.exists(status) && (new File("/usr/bin/taskset").exists() || new File("/usr/bin/numactl").exists())) {
+                String allowed = Files.readAllLines(status).stream()
+                        .filter(line -> line.startsWith("Cpus_allowed_list:")).findFirst().orElseThrow();
+                assertEquals(1, CpuTopology.parseList(allowed.substring(allowed.indexOf(':') + 1).trim()).length);
+            }
+            assertNotNull(client.getResponse(new Query(QueryType.Best_Move, START_FEN, 5)));
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    @Test
+    void searchesAreRoutedToTheEngineOfTheLastPosition() {
+        try {
+            client = new StockfishClient.Builder().setInstances(3).build();
+            String afterD3 = "r1bqk1nr/p2p1ppp/2p5/1pb5/2BpP3/2PP4/PP3PPP/RNBQ1RK1 b - - 0 1";
+            client.getSearchAsync(new Query.Builder(QueryType.Best_Move, START_FEN).setDepth(10).build()).get();
+            client.getSearchAsync(new Query.Builder(QueryType.Best_Move, afterD3).setDepth(10).build()).get();
+
+            List<Stockfish> searched = client.getEngines().stream().filter(e -> e.getLastFen() != null).toList();
+            assertEquals(1, searched.size());
+            assertEquals(afterD3, searched.get(0).getLastFen());
+            assertTrue(searched.get(0).isLastSearchRouted());
+
+            Map<?, ?> routing = (Map<?, ?>) client.getStats().get("routing");
+            assertEquals(1L, routing.get("hits"));
+            assertEquals(1L, ((Map<?, ?>) routing.get("routedSearches")).get("searches"));
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    @Test
+    void enginesStartedInBackgroundReportReadiness() {
+        try {
+            client = new StockfishClient.Builder().setInstances(4).setStartInBackground(true).build();
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!client.isReady() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Map<String, Object> readiness = client.getReadiness();
+            assertEquals("READY", readiness.get("status"));
+            assertEquals(4, readiness.get("searchEngines"));
+            assertEquals(1, readiness.get("evaluators"));
+            assertEquals(4, client.getPool().getIdleCount());
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    @Test
+    void warmUpSearchesCorpusOnEveryEngine() {
+        try {
+            client = new StockfishClient.Builder().setInstances(3).build();
+            client.warmUpEngines(List.of(new Query(QueryType.Best_Move, START_FEN, 5),
+                    new Query(QueryType.Best_Move, "8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - - 0 1", 5)));
+            assertEquals(3, client.getPool().getIdleCount());
+            for (Stockfish engine : client.getEngines()) {
+                // a fresh game, nothing routed to the warm-up positions
+                assertNull(engine.getLastFen());
+            }
+            assertNotNull(client.getResponse(new Query(QueryType.Best_Move, START_FEN, 5)));
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    @Test
+    void drainStopsSearchesStillRunning() {
+        try {
+            client = new StockfishClient.Builder().setInstances(1).build();
+            EngineFuture<UCIInfo> search = client.getSearchAsync(
+                    new Query.Builder(QueryType.Best_Move, START_FEN).setDepth(60).build());
+            long deadline = System.currentTimeMillis() + 5000;
+            while (client.getPool().getLeasedCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            assertTrue(client.drain(200, 2000));
+            assertFalse(client.isReady());
+            assertEquals("DRAINING", client.getReadiness().get("status"));
+            // answered with the best move found so far
+            assertTrue(search.get(1, TimeUnit.SECONDS).getBestMove() != 0);
+            assertEquals(0, client.getPool().getLeasedCount());
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    @Test
+    void speculativeEvalOnlyRunsOnASpareEvaluator() {
+        try {
+            client = new StockfishClient.Builder().setEvaluators(1).build();
+            Query eval = new Query.Builder(QueryType.Eval, START_FEN).build();
+            try (EngineLease held = client.getEvaluatorPool().lease(1000)) {
+                assertNull(client.getEvalSpeculative(eval));
+            }
+            EngineFuture<String> future = client.getEvalSpeculative(eval);
+            assertNotNull(future);
+            assertNotNull(future.get(5, TimeUnit.SECONDS));
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
     @Test
     void deadEnginePruningTest() throws StockfishInitException, InterruptedException {
         int localInstances = 5;
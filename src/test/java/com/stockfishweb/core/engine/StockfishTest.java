@@ -112,6 +112,15 @@ public class StockfishTest {
         }
     }
 
+    @Test
+    void handshakeRejectsUnknownOption() {
+        assertDoesNotThrow(() -> stockfish.handshake());
+        stockfish.sendCommand("setoption name Bogus value 1");
+        StockfishEngineException e = assertThrows(StockfishEngineException.class, () -> stockfish.handshake());
+        assertTrue(e.getMessage().contains("No such option: Bogus"));
+        assertDoesNotThrow(() -> stockfish.waitForReady());
+    }
+
     @RepeatedTest(50)
     void waitForReady() {
         assertDoesNotThrow(() -> stockfish.waitForReady());
@@ -135,6 +144,43 @@ public class StockfishTest {
         }
     }
 
+    @Test
+    void goCommandIsPipelinedWithoutReadyRoundTrips() {
+        try {
+            File tempFile = creteTempFile();
+            setOutput(tempFile);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(tempFile)));
+            stockfish.sendGoCommand(new Query(QueryType.Best_Move, Util.START_FEN, 3, 5, 0));
+            assertEquals("setoption name Skill Level value 3", reader.readLine());
+            assertEquals("position fen " + Util.START_FEN, reader.readLine());
+            assertEquals("go depth 5 ", reader.readLine());
+            // the skill level is only sent again when it changes
+            stockfish.sendGoCommand(new Query(QueryType.Best_Move, Util.START_FEN, 3, 5, 0));
+            assertEquals("position fen " + Util.START_FEN, reader.readLine());
+            assertEquals("go depth 5 ", reader.readLine());
+            assertNull(reader.readLine());
+        } catch (IOException | NoSuchFieldException | IllegalAccessException e) {
+            fail(e);
+        }
+    }
+
+    @Test
+    void multiPvIsSetForItsSearchOnly() {
+        try {
+            File tempFile = creteTempFile();
+            setOutput(tempFile);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(tempFile)));
+            stockfish.sendGoCommand(new Query.Builder(QueryType.Best_Move, Util.START_FEN).setMultiPv(3).build());
+            assertEquals("setoption name MultiPV value 3", reader.readLine());
+            assertEquals("position fen " + Util.START_FEN, reader.readLine());
+            reader.readLine();
+            stockfish.sendGoCommand(new Query.Builder(QueryType.Best_Move, Util.START_FEN).build());
+            assertEquals("setoption name MultiPV value 1", reader.readLine());
+        } catch (IOException | NoSuchFieldException | IllegalAccessException e) {
+            fail(e);
+        }
+    }
+
     @Test
     void readLine() {
         try {
@@ -151,12 +197,10 @@ public class StockfishTest {
             assertEquals("1", stockfish.readLine("1"));
             assertEquals("3", stockfish.readLine("3"));
             assertThrows(StockfishEngineException.class, () -> stockfish.readLine("40"));
+            // the end of the output is final, like the end of the process
             assertThrows(StockfishEngineException.class, () -> stockfish.readLine("21"));
-            outputStream.write("21\n".getBytes());
-            outputStream.flush();
-            assertEquals("21", stockfish.readLine("21"));
 
-        } catch (IOException | NoSuchFieldException | IllegalAccessException e) {
+        } catch (IOException e) {
             fail(e);
         }
     }
@@ -179,13 +223,90 @@ public class StockfishTest {
             assertArrayEquals(response.toArray(), stockfish.readResponse("32").toArray());
             assertThrows(StockfishEngineException.class, () -> stockfish.readResponse("36").toArray());
             assertThrows(StockfishEngineException.class, () -> stockfish.readResponse("31").toArray());
+        } catch (IOException e) {
 
-            outputStream.write("31\n".getBytes());
-            outputStream.flush();
+            fail(e);
+        }
+    }
 
-            assertArrayEquals(new String[]{"31"}, stockfish.readResponse("31").toArray());
-        } catch (IOException | NoSuchFieldException | IllegalAccessException e) {
+    @Test
+    void outputIsDrainedWithoutReader() {
+        try {
+            stockfish.sendCommand("position fen " + Util.START_FEN);
+            stockfish.sendCommand("go depth 12");
+            // nobody reads the search output, the engine must not stall on a full pipe
+            assertEquals("bestmove", stockfish.readLine("bestmove").substring(0, 8));
+            assertDoesNotThrow(() -> stockfish.waitForReady());
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
 
+    @Test
+    void settleStopsRunningSearchSoNextExchangeGetsItsOwnAnswer() {
+        try {
+            stockfish.sendCommand("position fen " + Util.START_FEN);
+            stockfish.sendCommand("go infinite");
+            Thread.sleep(200);
+
+            assertTrue(stockfish.settle(2000));
+            Query query = new Query.Builder(QueryType.Checkers, Util.START_FEN).build();
+            assertEquals("", stockfish.getCheckers(query).trim());
+            stockfish.sendCommand("go depth 1");
+            String bestMove = stockfish.readLine("bestmove");
+            stockfish.waitForReady();
+            assertTrue(stockfish.settle(2000));
+            assertNotNull(bestMove);
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    @Test
+    void settleDropsOutputNotReadByTheExchange() {
+        try {
+            // the board display goes on with its Key and Checkers lines after the Fen
+            stockfish.sendCommands("position fen " + Util.START_FEN, "d");
+            assertNotNull(stockfish.readLine("Fen: "));
+
+            assertTrue(stockfish.settle(2000));
+            String legalMoves = stockfish.getLegalMoves(new Query.Builder(QueryType.Legal_Moves, Util.START_FEN).build());
+            assertFalse(legalMoves.contains("Key"));
+            assertFalse(legalMoves.contains("Checkers"));
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    @Test
+    void timedOutWaitLeavesEngineUnsettled() {
+        stockfish.setReadTimeout(100);
+        assertThrows(StockfishEngineException.class, () -> stockfish.readLine("never printed"));
+        assertFalse(stockfish.settle(100));
+    }
+
+    @Test
+    void closeLetsTheEngineQuitOnItsOwn() {
+        try {
+            stockfish.close();
+
+            assertFalse(stockfish.process.isAlive());
+            // 0 rather than the 143 of a SIGTERM
+            assertEquals(0, stockfish.process.exitValue());
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    @Test
+    void closeReleasesThePipesOfADeadEngine() {
+        try {
+            stockfish.process.destroyForcibly().waitFor();
+            stockfish.close();
+
+            assertThrows(IOException.class, () -> stockfish.output.write("isready\n"));
+            assertThrows(IOException.class, () -> stockfish.input.read());
+        } catch (Exception e) {
             fail(e);
         }
     }
@@ -341,6 +462,53 @@ public class StockfishTest {
         }
     }
 
+    @Test
+    void searchOutOfTimeBudgetAnswersWithDeepestCompletedLine() {
+        try {
+            Query query = new Query.Builder(QueryType.Best_Move, Util.START_FEN)
+                    .setTimeBudget(200)
+                    .build();
+
+            long start = System.currentTimeMillis();
+            UCIInfo info = stockfish.search(query, new UCIInfo());
+            long took = System.currentTimeMillis() - start;
+
+            assertTrue(took >= 200 && took < 2000, "took " + took + " ms");
+            assertTrue(info.getDepth() > 0);
+            assertEquals(UCIInfo.BOUND_EXACT, info.getBound());
+            assertTrue(info.getPvLength() > 0);
+            assertNotEquals(UCIInfo.NO_MOVE, info.getBestMove());
+            assertTrue(stockfish.settle(1000));
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    @Test
+    void searchLinesReturnsRankedLines() {
+        try {
+            List<UCIInfo> lines = stockfish.searchLines(new Query.Builder(QueryType.Best_Move, Util.START_FEN)
+                    .setDepth(10)
+                    .setMultiPv(3)
+                    .build(), null);
+
+            assertEquals(3, lines.size());
+            assertEquals(3, lines.stream().map(line -> line.getPvMove(0)).distinct().count());
+            for (int i = 0; i < lines.size(); i++) {
+                assertEquals(10, lines.get(i).getDepth());
+                assertEquals(i + 1, Math.max(1, lines.get(i).getMultiPv()));
+            }
+            assertTrue(lines.get(0).getScore() >= lines.get(1).getScore());
+            assertTrue(lines.get(1).getScore() >= lines.get(2).getScore());
+
+            assertEquals(1, stockfish.searchLines(new Query.Builder(QueryType.Best_Move, Util.START_FEN)
+                    .setDepth(10)
+                    .build(), null).size());
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
     @Test
     void getBestMoveFromContinuationNoMate() {
         try {
@@ -577,11 +745,8 @@ public class StockfishTest {
         output.setAccessible(false);
     }
 
-    private void setInput(File tempFile) throws NoSuchFieldException, FileNotFoundException, IllegalAccessException {
-        Field input = stockfish.getClass().getSuperclass().getDeclaredField("input");
-        input.setAccessible(true);
-        input.set(stockfish, new BufferedReader(new InputStreamReader(new FileInputStream(tempFile))));
-        input.setAccessible(false);
+    private void setInput(File tempFile) throws FileNotFoundException {
+        stockfish.readFrom(new FileInputStream(tempFile));
     }
 
     private File creteTempFile() throws IOException {
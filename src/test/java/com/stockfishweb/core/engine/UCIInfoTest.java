@@ -0,0 +1,78 @@
+package com.stockfishweb.core.engine;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UCIInfoTest {
+
+    @Test
+    void parseScoreAndPv() {
+        UCIInfo info = new UCIInfo();
+        assertTrue(info.parse("info depth 12 seldepth 17 multipv 1 score cp 38 nodes 81342 nps 1016775 hashfull 29 tbhits 0 time 80 pv e2e4 e7e5 g1f3 b8c6"));
+
+        assertEquals(12, info.getDepth());
+        assertEquals(17, info.getSelDepth());
+        assertEquals(1, info.getMultiPv());
+        assertTrue(info.hasScore());
+        assertFalse(info.isMate());
+        assertEquals(38, info.getScore());
+        assertEquals(UCIInfo.BOUND_EXACT, info.getBound());
+        assertEquals(81342, info.getNodes());
+        assertEquals(1016775, info.getNps());
+        assertEquals(29, info.getHashFull());
+        assertEquals(80, info.getTime());
+        assertEquals(4, info.getPvLength());
+        assertEquals("e2e4 e7e5 g1f3 b8c6", info.pvToString());
+    }
+
+    @Test
+    void parseMateAndBound() {
+        UCIInfo info = new UCIInfo();
+        assertTrue(info.parse("info depth 20 seldepth 8 score mate -12 upperbound nodes 100 nps 1000 time 100 pv h7h8q"));
+
+        assertTrue(info.isMate());
+        assertEquals(-12, info.getScore());
+        assertEquals(UCIInfo.BOUND_UPPER, info.getBound());
+        assertEquals("h7h8q", UCIInfo.moveToString(info.getPvMove(0)));
+
+        assertTrue(info.parse("info depth 5 score cp -7 lowerbound"));
+        assertEquals(-7, info.getScore());
+        assertEquals(UCIInfo.BOUND_LOWER, info.getBound());
+        assertEquals(0, info.getPvLength());
+    }
+
+    @Test
+    void progressLinesAreNotResults() {
+        UCIInfo info = new UCIInfo();
+        assertFalse(info.parse("info depth 13 currmove d2d4 currmovenumber 3"));
+        assertFalse(info.parse("info string NNUE evaluation using nn.nnue enabled"));
+    }
+
+    @Test
+    void parseBestMove() {
+        UCIInfo info = new UCIInfo();
+        info.parseBestMove("bestmove e7e8n ponder d1d8");
+        assertEquals("e7e8n", UCIInfo.moveToString(info.getBestMove()));
+        assertEquals("d1d8", UCIInfo.moveToString(info.getPonder()));
+
+        info.parseBestMove("bestmove (none)");
+        assertEquals(UCIInfo.NO_MOVE, info.getBestMove());
+        assertEquals(UCIInfo.NO_MOVE, info.getPonder());
+        assertEquals("none", UCIInfo.moveToString(info.getBestMove()));
+    }
+
+    @Test
+    void renderedLineParsesBack() {
+        UCIInfo info = new UCIInfo();
+        info.parse("info depth 9 seldepth 12 score mate 3 nodes 5000 nps 250000 hashfull 1 time 20 pv a7a8r b2b1 c7c8b");
+
+        UCIInfo copy = new UCIInfo();
+        copy.parse(info.toString());
+        assertEquals(info.toString(), copy.toString());
+
+        UCIInfo other = new UCIInfo();
+        other.copyFrom(info);
+        assertEquals(info.toString(), other.toString());
+    }
+}
@@ -0,0 +1,115 @@
+package com.stockfishweb.core.engine.board;
+
+import com.stockfishweb.core.engine.UCIInfo;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Perft counts from the Chess Programming Wiki, covering castling, en passant, promotions and pins.
+ */
+public class BoardTest {
+
+    private static final String START = "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1";
+    private static final String KIWIPETE = "r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1";
+
+    private static void assertPerft(String fen, long... counts) {
+        Board board = Board.fromFen(fen);
+        for (int depth = 1; depth <= counts.length; depth++) {
+            assertEquals(counts[depth - 1], board.perft(depth), fen + " at depth " + depth);
+        }
+    }
+
+    @Test
+    void perftStartPosition() {
+        assertPerft(START, 20, 400, 8902, 197281);
+    }
+
+    @Test
+    void perftKiwipete() {
+        assertPerft(KIWIPETE, 48, 2039, 97862);
+    }
+
+    @Test
+    void perftEndgameWithEnPassantPins() {
+        assertPerft("8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - - 0 1", 14, 191, 2812, 43238);
+    }
+
+    @Test
+    void perftPromotionsAndChecks() {
+        assertPerft("r3k2r/Pppp1ppp/1b3nbN/nP6/BBP1P3/q4N2/Pp1P2PP/R2Q1RK1 w kq - 0 1", 6, 264, 9467);
+        assertPerft("rnbq1k1r/pp1Pbppp/2p5/8/2B5/8/PPP1NnPP/RNBQK2R w KQ - 1 8", 44, 1486, 62379);
+        assertPerft("r4rk1/1pp1qppp/p1np1n2/2b1p1B1/2B1P1b1/P1NP1N2/1PP1QPPP/R4RK1 w - - 0 10", 46, 2079, 89890);
+    }
+
+    @Test
+    void fenRoundTrip() {
+        assertEquals(START, Board.fromFen(START).toFen());
+        assertEquals(KIWIPETE, Board.fromFen(KIWIPETE).toFen());
+        assertEquals(START, Board.fromFen("rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq -").toFen());
+    }
+
+    @Test
+    void playWritesFenAsStockfishDoes() {
+        Board board = Board.fromFen(START);
+        // no black pawn can take on e3, so the square is left out
+        assertEquals("rnbqkbnr/pppppppp/8/8/4P3/8/PPPP1PPP/RNBQKBNR b KQkq - 0 1", board.play("e2e4").toFen());
+        assertEquals("rnbqkbnr/1pp1pppp/p7/3pP3/8/8/PPPP1PPP/RNBQKBNR w KQkq d6 0 3",
+                board.play("e2e4 a7a6 e4e5 d7d5").toFen());
+        assertEquals("rnbqkbnr/pppppppp/8/8/8/5N2/PPPPPPPP/RNBQKB1R b KQkq - 1 1", board.play("g1f3").toFen());
+    }
+
+    @Test
+    void playStopsAtFirstIllegalMove() {
+        Board board = Board.fromFen(START);
+        assertEquals(START, board.play("a2h6").toFen());
+        assertEquals(START, board.play((String) null).toFen());
+        assertEquals(board.play("e2e4").toFen(), board.play("e2e4 e2e4 e7e5").toFen());
+    }
+
+    @Test
+    void castlingMovesTheRookAndDropsRights() {
+        Board board = Board.fromFen(KIWIPETE).play("e1g1");
+        assertEquals("r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R4RK1 b kq - 1 1", board.toFen());
+        assertEquals("1r2k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R4RK1 w k - 2 2",
+                board.play("a8b8").toFen());
+    }
+
+    @Test
+    void promotionIsCaseInsensitive() {
+        Board board = Board.fromFen("8/P6k/8/8/8/8/8/K7 w - - 0 1");
+        assertEquals("Q7/7k/8/8/8/8/8/K7 b - - 0 1", board.play("a7a8Q").toFen());
+        assertEquals("N7/7k/8/8/8/8/8/K7 b - - 0 1", board.play("a7a8n").toFen());
+        assertEquals(UCIInfo.NO_MOVE, board.findMove("a7a8"));
+    }
+
+    @Test
+    void checkers() {
+        assertEquals(0, Board.fromFen(START).checkers());
+        assertEquals(0, Board.fromFen("4k3/8/8/8/1b6/8/3P4/4K3 w - - 0 1").checkers());
+        long check = Board.fromFen("4k3/8/8/8/1b6/8/8/4K2r w - - 0 1").checkers();
+        assertEquals(1L << Board.square("h1") | 1L << Board.square("b4"), check);
+    }
+
+    @Test
+    void pathToNearbyPosition() {
+        Board start = Board.fromFen(START);
+        assertEquals(0, start.pathTo(start, 2).length);
+
+        int[] path = start.pathTo(start.play("e2e4 e7e5"), 2);
+        assertEquals("e2e4 e7e5", UCIInfo.moveToString(path[0]) + " " + UCIInfo.moveToString(path[1]));
+        assertEquals(1, start.pathTo(start.play("g1f3"), 2).length);
+
+        assertNull(start.pathTo(start.play("g1f3"), 0));
+        assertNull(start.pathTo(start.play("e2e4 e7e5 g1f3"), 2));
+        assertNull(start.pathTo(Board.fromFen(KIWIPETE), 2));
+    }
+
+    @Test
+    void invalidFenIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> Board.fromFen("8/8/8/8/8/8/8/8 b KQkq - 0 1"));
+        assertThrows(IllegalArgumentException.class, () -> Board.fromFen("rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP w KQkq - 0 1"));
+        assertThrows(IllegalArgumentException.class, () -> Board.fromFen("rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR x KQkq - 0 1"));
+        assertThrows(IllegalArgumentException.class, () -> Board.fromFen(null));
+    }
+}
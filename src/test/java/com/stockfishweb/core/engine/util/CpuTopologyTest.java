@@ -0,0 +1,99 @@
+package com.stockfishweb.core.engine.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CpuTopologyTest {
+
+    @TempDir
+    Path sys;
+
+    /**
+     * Two nodes of four cores with two hyper-threads each, siblings numbered 8 apart as on most Intel machines.
+     */
+    private void twoNodes() throws IOException {
+        write("cpu/online", "0-15");
+        write("node/node0/cpulist", "0-3,8-11");
+        write("node/node1/cpulist", "4-7,12-15");
+        for (int cpu = 0; cpu < 16; cpu++) {
+            write("cpu/cpu" + cpu + "/topology/physical_package_id", Integer.toString(cpu % 8 / 4));
+            write("cpu/cpu" + cpu + "/topology/core_id", Integer.toString(cpu % 4));
+        }
+    }
+
+    private void write(String file, String content) throws IOException {
+        Path path = sys.resolve(file);
+        Files.createDirectories(path.getParent());
+        Files.writeString(path, content + "\n");
+    }
+
+    @Test
+    void parseList() {
+        assertArrayEquals(new int[]{0, 1, 2, 3, 8, 10, 11}, CpuTopology.parseList("0-3,8,10-11"));
+        assertArrayEquals(new int[]{5}, CpuTopology.parseList("5\n"));
+    }
+
+    @Test
+    void slicesTakeWholeCoresOnOneNode() throws IOException {
+        twoNodes();
+        List<CpuTopology.Slice> slices = CpuTopology.read(sys, null).slice(4);
+
+        assertEquals(4, slices.size());
+        assertEquals("0,8,1,9", slices.get(0).getCpuList());
+        assertEquals(0, slices.get(0).getNode());
+        assertEquals("2,10,3,11", slices.get(1).getCpuList());
+        assertEquals("4,12,5,13", slices.get(2).getCpuList());
+        assertEquals(1, slices.get(2).getNode());
+    }
+
+    @Test
+    void siblingsAreNeverSplitBetweenSlices() throws IOException {
+        twoNodes();
+        List<CpuTopology.Slice> single = CpuTopology.read(sys, null).slice(1);
+        assertEquals(8, single.size());
+        assertEquals("0,8", single.get(0).getCpuList());
+        assertEquals("1,9", single.get(1).getCpuList());
+
+        List<CpuTopology.Slice> odd = CpuTopology.read(sys, null).slice(3);
+        assertEquals(4, odd.size());
+        assertEquals("0,8,1,9", odd.get(0).getCpuList());
+        assertEquals("2,10,3,11", odd.get(1).getCpuList());
+    }
+
+    @Test
+    void allowedCpusRestrictTheSlices() throws IOException {
+        twoNodes();
+        CpuTopology topology = CpuTopology.read(sys, "0-2,8-10");
+
+        assertEquals(6, topology.getCpuCount());
+        List<CpuTopology.Slice> slices = topology.slice(4);
+        assertEquals(1, slices.size());
+        assertEquals("0,8,1,9", slices.get(0).getCpuList());
+    }
+
+    @Test
+    void slicesLargerThanANodeSpanNodes() throws IOException {
+        twoNodes();
+        List<CpuTopology.Slice> slices = CpuTopology.read(sys, null).slice(12);
+
+        assertEquals(1, slices.size());
+        assertEquals(12, slices.get(0).size());
+        assertEquals(-1, slices.get(0).getNode());
+    }
+
+    @Test
+    void machineSmallerThanASliceStillGetsOne() throws IOException {
+        write("cpu/online", "0-1");
+        List<CpuTopology.Slice> slices = CpuTopology.read(sys, null).slice(4);
+
+        assertEquals(1, slices.size());
+        assertEquals("0,1", slices.get(0).getCpuList());
+    }
+}